@@ -7,6 +7,9 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.preference.Preference;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import amirz.dngprocessor.scheduler.DngParseService;
 import amirz.dngprocessor.scheduler.DngScanJob;
 
@@ -36,6 +39,7 @@ public class MainActivity extends Activity {
     private void tryLoad() {
         if (hasPermissions()) {
             DngScanJob.scheduleJob(this);
+            DngParseService.resume(this);
             getFragmentManager().beginTransaction()
                     .replace(android.R.id.content, new Settings.Fragment())
                     .commit();
@@ -68,12 +72,24 @@ public class MainActivity extends Activity {
         return false;
     }
 
+    public boolean importBacklog(Preference preference) {
+        DngParseService.runImport(this);
+
+        return false;
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         switch (requestCode) {
             case REQUEST_IMAGE:
                 if (resultCode == RESULT_OK) {
-                    if (data.getClipData() != null) {
+                    if (data.getClipData() != null && Settings.mergeBurst(this)) {
+                        List<Uri> uris = new ArrayList<>();
+                        for (int i = 0; i < data.getClipData().getItemCount(); i++) {
+                            uris.add(data.getClipData().getItemAt(i).getUri());
+                        }
+                        DngParseService.runForBurst(this, uris);
+                    } else if (data.getClipData() != null) {
                         for (int i = 0; i < data.getClipData().getItemCount(); i++) {
                             process(data.getClipData().getItemAt(i).getUri());
                         }
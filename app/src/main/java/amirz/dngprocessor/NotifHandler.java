@@ -7,6 +7,10 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.drawable.Icon;
+
+import java.util.ArrayList;
+import java.util.List;
 
 import static amirz.dngprocessor.Utilities.ATLEAST_OREO;
 
@@ -14,6 +18,9 @@ public class NotifHandler {
     private static final String CHANNEL = "default";
     private static final int FOREGROUND_ID = 1;
     private static Notification.Builder mBuilder;
+    private static Notification.Action mCancel;
+    private static Notification.Action mSkip;
+    private static Notification.Action mToggle;
 
     public static void createChannel(Context context) {
         if (ATLEAST_OREO) {
@@ -25,30 +32,107 @@ public class NotifHandler {
         }
     }
 
-    public static void create(Service service, String name) {
-        PendingIntent pendingIntent = PendingIntent.getActivity(service, 0, new Intent(), 0);
-        if (ATLEAST_OREO) {
-            mBuilder = new Notification.Builder(service, CHANNEL);
-        } else {
-            mBuilder = new Notification.Builder(service);
-        }
+    /**
+     * Shows the notification of the service, or updates it when it is already shown. Several
+     * jobs share one notification, which stays until {@link #done(Service)}.
+     * @param pending Number of jobs in progress, including the one that was just started.
+     * @param cancel Stops all jobs when the cancel action is pressed.
+     */
+    public static synchronized void create(Service service, String name, int pending,
+                                           PendingIntent cancel) {
+        if (mBuilder == null) {
+            PendingIntent pendingIntent = PendingIntent.getActivity(service, 0, new Intent(), 0);
+            if (ATLEAST_OREO) {
+                mBuilder = new Notification.Builder(service, CHANNEL);
+            } else {
+                mBuilder = new Notification.Builder(service);
+            }
 
-        mBuilder.setSmallIcon(R.drawable.ic_notif)
-                .setContentTitle("Processing " + name)
-                .setContentIntent(pendingIntent);
+            mCancel = action(service, "Cancel all", cancel);
+            mBuilder.setSmallIcon(R.drawable.ic_notif)
+                    .setContentTitle("Processing " + name)
+                    .setContentIntent(pendingIntent)
+                    .setActions(mCancel);
+        }
+        mBuilder.setContentText(pendingText(pending));
 
         service.startForeground(FOREGROUND_ID, mBuilder.build());
     }
 
-    public static void progress(Context context, int max, int progress) {
+    public static synchronized void pending(Context context, int pending) {
+        if (mBuilder != null) {
+            Notification notif = mBuilder.setContentText(pendingText(pending)).build();
+            manager(context).notify(FOREGROUND_ID, notif);
+        }
+    }
+
+    /**
+     * Shows the progress of an import of existing images, with an action that pauses or
+     * resumes it.
+     * @param status Progress of the import, or null to remove it when the import has ended.
+     */
+    public static synchronized void backlog(Context context, String status, boolean paused,
+                                            PendingIntent toggle) {
+        if (mBuilder == null) {
+            return;
+        }
+        mToggle = status == null
+                ? null : action(context, paused ? "Resume" : "Pause", toggle);
+        mBuilder.setSubText(status);
+        setActions();
+        manager(context).notify(FOREGROUND_ID, mBuilder.build());
+    }
+
+    /**
+     * Shows the image that is being rendered, with an action that cancels only that image.
+     */
+    public static synchronized void title(Context context, String name, PendingIntent skip) {
+        if (mBuilder == null) {
+            return;
+        }
+        mSkip = action(context, "Skip", skip);
+        mBuilder.setContentTitle("Processing " + name);
+        setActions();
+        manager(context).notify(FOREGROUND_ID, mBuilder.build());
+    }
+
+    public static synchronized void progress(Context context, int max, int progress) {
+        if (mBuilder == null) {
+            return;
+        }
         Notification notif = mBuilder.setProgress(max, progress, false).build();
         manager(context).notify(FOREGROUND_ID, notif);
     }
 
-    public static void done(Service service) {
+    public static synchronized void done(Service service) {
+        mBuilder = null;
+        mSkip = null;
+        mToggle = null;
         service.stopForeground(true);
     }
 
+    private static void setActions() {
+        List<Notification.Action> actions = new ArrayList<>();
+        actions.add(mCancel);
+        if (mSkip != null) {
+            actions.add(mSkip);
+        }
+        if (mToggle != null) {
+            actions.add(mToggle);
+        }
+        mBuilder.setActions(actions.toArray(new Notification.Action[0]));
+    }
+
+    private static Notification.Action action(Context context, String title,
+                                              PendingIntent intent) {
+        return new Notification.Action.Builder(
+                Icon.createWithResource(context, R.drawable.ic_notif), title, intent).build();
+    }
+
+    private static String pendingText(int pending) {
+        return pending == 1 ? "1 image in progress" : pending + " images in progress";
+    }
+
     private static NotificationManager manager(Context context) {
         return context.getSystemService(NotificationManager.class);
     }
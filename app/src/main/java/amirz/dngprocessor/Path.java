@@ -8,25 +8,63 @@ import android.net.Uri;
 import android.os.Environment;
 import android.provider.DocumentsContract;
 import android.provider.MediaStore;
-import android.provider.OpenableColumns;
 import android.util.Log;
+import android.util.LruCache;
 
 import java.io.File;
+import java.util.Collection;
 
 public class Path {
     private static final String TAG = "Path";
 
     public static final String EXT_RAW = ".dng";
     public static final String EXT_JPG = ".jpg";
+    public static final String SUFFIX_SHARE = "_share";
 
     public static final String MIME_RAW = "image/x-adobe-dng";
     public static final String MIME_JPG = "image/jpeg";
 
     public static final String ROOT = Environment.getExternalStorageDirectory().toString();
 
-    public static boolean isRaw(ContentResolver contentResolver, Uri uri, String file) {
-        String mime = contentResolver.getType(uri);
-        return MIME_RAW.equals(mime) || (MIME_JPG.equals(mime) && file.endsWith(Path.EXT_RAW));
+    // Holds the images in flight, so a job resolves its image once for all of its phases
+    private static final int CACHE_SIZE = 64;
+    private static final LruCache<Uri, UriInfo> sCache = new LruCache<>(CACHE_SIZE);
+
+    private static final String[] RESOLVE_PROJECTION = {
+            MediaStore.Images.Media.DISPLAY_NAME,
+            MediaStore.Images.Media.DATA,
+            MediaStore.Images.Media.SIZE,
+            MediaStore.Images.Media.MIME_TYPE
+    };
+
+    public static boolean isRaw(String mime, String file) {
+        return MIME_RAW.equals(mime) || (MIME_JPG.equals(mime) && file != null
+                && file.endsWith(Path.EXT_RAW));
+    }
+
+    /**
+     * Selection of the MediaStore rows that {@link #isRaw(String, String)} may accept, to be
+     * used with {@link #rawSelectionArgs()}.
+     */
+    public static final String RAW_SELECTION = MediaStore.Images.Media.MIME_TYPE + " = ? OR ("
+            + MediaStore.Images.Media.MIME_TYPE + " = ? AND "
+            + MediaStore.Images.Media.DISPLAY_NAME + " LIKE ?)";
+
+    public static String[] rawSelectionArgs() {
+        return new String[] { MIME_RAW, MIME_JPG, "%" + EXT_RAW };
+    }
+
+    /**
+     * @return Selection of the MediaStore rows with any of the ids, to look them up in one query.
+     */
+    public static String idSelection(Collection<Long> ids) {
+        StringBuilder selection = new StringBuilder(MediaStore.Images.Media._ID + " IN (");
+        boolean first = true;
+        for (long id : ids) {
+            selection.append(first ? "" : ",").append(id);
+            first = false;
+        }
+        return selection.append(')').toString();
     }
 
     public static String processedPath(String dir, String name) {
@@ -38,41 +76,72 @@ public class Path {
         return dir + File.separator + name.replace(EXT_RAW, EXT_JPG);
     }
 
-    public static String getFileFromUri(Context context, Uri uri) {
-        String fileName = getColumn(context, uri, OpenableColumns.DISPLAY_NAME);
+    public static String sharePath(String processedPath) {
+        return processedPath.replace(EXT_JPG, SUFFIX_SHARE + EXT_JPG);
+    }
 
-        /* document/raw:PATH */
-        if (fileName == null) {
-            String result = getPathFromUri(context, uri);
-            int cut = result.lastIndexOf('/');
-            if (cut != -1) {
-                fileName = result.substring(cut + 1);
-            }
+    /**
+     * Display name, file path, size and type of an image, looked up together.
+     */
+    public static class UriInfo {
+        public final String name;
+        public final String path;
+        public final long size;
+        public final String mime;
+
+        /**
+         * @param size Size of the file in bytes, or zero when it is not known.
+         */
+        public UriInfo(String name, String path, long size, String mime) {
+            this.name = name;
+            this.path = path;
+            this.size = size;
+            this.mime = mime;
         }
+    }
 
-        Log.d(TAG, "Resolved " + uri.toString() + " to name " + fileName);
-        return fileName;
+    /**
+     * @return Details of an image, from the cache or from a single query of the provider.
+     */
+    public static UriInfo resolve(Context context, Uri uri) {
+        UriInfo info = sCache.get(uri);
+        if (info == null) {
+            info = lookup(context, uri);
+            sCache.put(uri, info);
+        }
+        return info;
     }
 
-    public static String getPathFromUri(Context context, Uri uri) {
-        String filePath = getColumn(context, uri, MediaStore.Images.Media.DATA);
+    /**
+     * Caches the details of an image that were already queried along with other images, so
+     * that resolving it later is free.
+     */
+    public static void remember(Uri uri, UriInfo info) {
+        sCache.put(uri, info);
+    }
 
-        /* document/raw:PATH */
-        if (filePath == null) {
-            filePath = uri.getPath();
-            if (filePath.contains(":")) {
-                String[] split = filePath.split(":");
-                filePath = split[split.length - 1];
-            }
-        }
+    public static void forget(Uri uri) {
+        sCache.remove(uri);
+    }
 
-        Log.d(TAG, "Resolved " + uri.toString() + " to path " + filePath);
-        return filePath;
+    public static String getFileFromUri(Context context, Uri uri) {
+        return resolve(context, uri).name;
+    }
+
+    /**
+     * @return Size of the file in bytes, or zero when it is not known.
+     */
+    public static long getSizeFromUri(Context context, Uri uri) {
+        return resolve(context, uri).size;
     }
 
-    private static String getColumn(Context context, Uri uri, String column) {
+    public static String getPathFromUri(Context context, Uri uri) {
+        return resolve(context, uri).path;
+    }
+
+    private static UriInfo lookup(Context context, Uri uri) {
         ContentResolver cr = context.getContentResolver();
-        String result = null;
+        UriInfo info = null;
         if (DocumentsContract.isDocumentUri(context, uri)) {
             String id = DocumentsContract.getDocumentId(uri);
             if (id.contains(":")) {
@@ -80,46 +149,78 @@ public class Path {
             }
 
             /* document/image:NUM */
-            result = query(cr,
+            info = query(cr,
                     MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
-                    column,
+                    RESOLVE_PROJECTION,
                     MediaStore.Images.Media._ID + "=?",
                     new String[] { id });
 
             /* document/NUM */
-            if (result == null) {
+            if (info == null) {
                 try {
                     long l = Long.valueOf(id);
-                    result = query(cr, ContentUris.withAppendedId(
+                    info = query(cr, ContentUris.withAppendedId(
                             Uri.parse("content://downloads/public_downloads"), l),
-                            column);
+                            null, null, null);
                 } catch (Exception ignored) {
                 }
             }
         }
 
         /* media/external/images/media/NUM */
-        if (result == null) {
-            result = query(cr, uri, column);
+        if (info == null) {
+            info = query(cr, uri, null, null, null);
         }
 
-        return result;
-    }
+        String filePath = info == null ? null : info.path;
+
+        /* document/raw:PATH */
+        if (filePath == null) {
+            filePath = uri.getPath();
+            if (filePath.contains(":")) {
+                String[] split = filePath.split(":");
+                filePath = split[split.length - 1];
+            }
+        }
 
-    private static String query(ContentResolver cr, Uri uri, String column) {
-        return query(cr, uri, column, null, null);
+        String fileName = info == null ? null : info.name;
+        if (fileName == null) {
+            int cut = filePath.lastIndexOf('/');
+            if (cut != -1) {
+                fileName = filePath.substring(cut + 1);
+            }
+        }
+
+        String mime = info == null ? null : info.mime;
+        if (mime == null) {
+            mime = cr.getType(uri);
+        }
+
+        Log.d(TAG, "Resolved " + uri.toString() + " to name " + fileName + " at " + filePath);
+        return new UriInfo(fileName, filePath, info == null ? 0 : info.size, mime);
     }
 
-    private static String query(ContentResolver cr, Uri uri, String column, String selection, String[] selectionArgs) {
-        try (Cursor cursor = cr.query(
-                uri, new String[] { column }, selection, selectionArgs, null)) {
-            if (cursor != null) {
-                int columnIndex = cursor.getColumnIndex(column);
-                if (cursor.moveToFirst()) {
-                    return cursor.getString(columnIndex);
-                }
+    /**
+     * @param projection Columns to fetch, or null for providers that may not know all columns
+     *                   of {@link #RESOLVE_PROJECTION}.
+     */
+    private static UriInfo query(ContentResolver cr, Uri uri, String[] projection,
+                                 String selection, String[] selectionArgs) {
+        try (Cursor cursor = cr.query(uri, projection, selection, selectionArgs, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                int size = cursor.getColumnIndex(MediaStore.Images.Media.SIZE);
+                return new UriInfo(
+                        getString(cursor, MediaStore.Images.Media.DISPLAY_NAME),
+                        getString(cursor, MediaStore.Images.Media.DATA),
+                        size < 0 || cursor.isNull(size) ? 0 : cursor.getLong(size),
+                        getString(cursor, MediaStore.Images.Media.MIME_TYPE));
             }
         }
         return null;
     }
+
+    private static String getString(Cursor cursor, String column) {
+        int index = cursor.getColumnIndex(column);
+        return index < 0 ? null : cursor.getString(index);
+    }
 }
@@ -4,20 +4,24 @@ import android.content.Context;
 import android.os.Bundle;
 import android.preference.PreferenceFragment;
 
+import amirz.dngprocessor.params.IntermediateFormat;
+import amirz.dngprocessor.params.PostProcessMode;
+
 public class Settings {
     private static final String PREF_MANUAL_SELECT = "pref_manual_select";
+    private static final String PREF_IMPORT_BACKLOG = "pref_import_backlog";
     private static final String PREF_BACKGROUND_PROCESS = "pref_background_process";
     private static final String PREF_DELETE_ORIGINAL = "pref_delete_original";
     private static final String PREF_SAVE_PATH = "pref_save_path";
     private static final String PREF_NOISE_REDUCE = "pref_noise_reduce";
     private static final String PREF_POST_PROCESS = "pref_post_process_type";
     private static final String PREF_FORWARD_MATRIX = "pref_forward_matrix";
-
-    public enum PostProcessMode {
-        Disabled,
-        Natural,
-        Boosted
-    }
+    private static final String PREF_INTERMEDIATE_FORMAT = "pref_intermediate_format";
+    private static final String PREF_MERGE_BURST = "pref_merge_burst";
+    private static final String PREF_OUTPUT_SIZE = "pref_output_size";
+    private static final String PREF_SHARE_COPY = "pref_share_copy";
+    private static final String PREF_WORKERS = "pref_workers";
+    private static final String PREF_LOCAL_TONEMAP = "pref_local_tonemap";
 
     public static class Fragment extends PreferenceFragment {
         private MainActivity mActivity;
@@ -31,9 +35,14 @@ public class Settings {
             addPreferencesFromResource(R.xml.preferences);
 
             findPreference(PREF_MANUAL_SELECT).setOnPreferenceClickListener(mActivity::requestImage);
+            findPreference(PREF_IMPORT_BACKLOG).setOnPreferenceClickListener(mActivity::importBacklog);
         }
     }
 
+    public static boolean mergeBurst(Context context) {
+        return Utilities.prefs(context).getBoolean(PREF_MERGE_BURST, false);
+    }
+
     public static boolean backgroundProcess(Context context) {
         return Utilities.prefs(context).getBoolean(PREF_BACKGROUND_PROCESS, true);
     }
@@ -47,10 +56,32 @@ public class Settings {
                 context.getString(R.string.pref_save_path_default));
     }
 
+    /**
+     * @return Maximum number of megapixels of the result, or zero to keep the full resolution.
+     */
+    public static int outputMegapixels(Context context) {
+        return Integer.parseInt(Utilities.prefs(context).getString(PREF_OUTPUT_SIZE, "0"));
+    }
+
+    /**
+     * @return Number of threads that parse and save images, or zero to choose automatically.
+     */
+    public static int workers(Context context) {
+        return Integer.parseInt(Utilities.prefs(context).getString(PREF_WORKERS, "0"));
+    }
+
+    public static boolean shareCopy(Context context) {
+        return Utilities.prefs(context).getBoolean(PREF_SHARE_COPY, false);
+    }
+
     public static boolean noiseReduce(Context context) {
         return Utilities.prefs(context).getBoolean(PREF_NOISE_REDUCE, true);
     }
 
+    public static boolean localTonemap(Context context) {
+        return Utilities.prefs(context).getBoolean(PREF_LOCAL_TONEMAP, false);
+    }
+
     public static PostProcessMode postProcess(Context context) {
         return PostProcessMode.valueOf(Utilities.prefs(context).getString(PREF_POST_PROCESS, "Natural"));
     }
@@ -58,4 +89,8 @@ public class Settings {
     public static boolean forwardMatrix(Context context) {
         return Utilities.prefs(context).getBoolean(PREF_FORWARD_MATRIX, true);
     }
+
+    public static IntermediateFormat intermediateFormat(Context context) {
+        return IntermediateFormat.valueOf(Utilities.prefs(context).getString(PREF_INTERMEDIATE_FORMAT, "Full"));
+    }
 }
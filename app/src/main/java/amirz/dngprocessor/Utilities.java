@@ -1,5 +1,6 @@
 package amirz.dngprocessor;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Build;
@@ -15,4 +16,23 @@ public class Utilities {
     public static SharedPreferences prefs(Context context) {
         return context.getSharedPreferences(context.getPackageName(), Context.MODE_PRIVATE);
     }
+
+    /**
+     * @return Bytes that can still be allocated on the heap of this process.
+     */
+    public static long heapBudget() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+    }
+
+    /**
+     * Textures live in system memory that is shared with the GPU, and there is no query for
+     * their limit, so half of the memory that the system considers available is used.
+     * @return Bytes that textures may use.
+     */
+    public static long gpuBudget(Context context) {
+        ActivityManager.MemoryInfo info = new ActivityManager.MemoryInfo();
+        context.getSystemService(ActivityManager.class).getMemoryInfo(info);
+        return Math.max(info.availMem - info.threshold, 0) / 2;
+    }
 }
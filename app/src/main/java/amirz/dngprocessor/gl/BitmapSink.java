@@ -0,0 +1,36 @@
+package amirz.dngprocessor.gl;
+
+import android.graphics.Bitmap;
+
+import java.nio.IntBuffer;
+
+import amirz.dngprocessor.jpeg.RowSink;
+
+/**
+ * Collects all rows of the output into a bitmap, for callers that need the whole image.
+ */
+public class BitmapSink implements RowSink {
+    private final Bitmap mBitmap;
+    private final IntBuffer mBuffer;
+
+    public BitmapSink(Bitmap bitmap) {
+        if (bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            throw new IllegalArgumentException(
+                    "Output bitmap passed to convertToSRGB is not ARGB_8888 format");
+        }
+        mBitmap = bitmap;
+        mBuffer = IntBuffer.allocate(bitmap.getWidth() * bitmap.getHeight());
+    }
+
+    @Override
+    public void onRows(int[] pixels, int offset, int rows) {
+        // ARGB_8888 bitmaps store their pixels in the same byte order as an RGBA readback
+        mBuffer.put(pixels, offset, rows * mBitmap.getWidth());
+    }
+
+    @Override
+    public void finish() {
+        mBuffer.position(0);
+        mBitmap.copyPixelsFromBuffer(mBuffer);
+    }
+}
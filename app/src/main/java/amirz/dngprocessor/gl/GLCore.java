@@ -1,6 +1,5 @@
 package amirz.dngprocessor.gl;
 
-import android.graphics.Bitmap;
 import android.opengl.EGLConfig;
 import android.opengl.EGLContext;
 import android.opengl.EGLDisplay;
@@ -8,25 +7,26 @@ import android.opengl.EGLSurface;
 
 import java.nio.IntBuffer;
 
+import amirz.dngprocessor.jpeg.RowSink;
+import amirz.dngprocessor.params.IntermediateFormat;
+import amirz.dngprocessor.stats.StageTimer;
+
 import static android.opengl.EGL14.*;
 import static android.opengl.GLES20.*;
 
 public class GLCore implements AutoCloseable {
     private static final int BLOCK_HEIGHT = 64;
 
-    private final Bitmap mOut;
     private final int mOutWidth, mOutHeight;
     private final EGLDisplay mDisplay;
     private final EGLContext mContext;
     private final EGLSurface mSurface;
     private final GLProgram mProgram;
     private final IntBuffer mBlockBuffer;
-    private final IntBuffer mOutBuffer;
 
-    public GLCore(Bitmap out) {
-        mOut = out;
-        mOutWidth = out.getWidth();
-        mOutHeight = out.getHeight();
+    public GLCore(int outWidth, int outHeight, IntermediateFormat format) {
+        mOutWidth = outWidth;
+        mOutHeight = outHeight;
 
         int[] major = new int[2];
         int[] minor = new int[2];
@@ -73,6 +73,11 @@ public class GLCore implements AutoCloseable {
                 EGL_NONE
         }, 0);
 
+        if (mContext == EGL_NO_CONTEXT) {
+            eglTerminate(mDisplay);
+            throw new RuntimeException("OpenGL ES 3 context creation failed");
+        }
+
         mSurface = eglCreatePbufferSurface(mDisplay, configs[0], new int[] {
                 EGL_WIDTH, mOutWidth,
                 EGL_HEIGHT, BLOCK_HEIGHT,
@@ -80,36 +85,48 @@ public class GLCore implements AutoCloseable {
         }, 0);
 
         eglMakeCurrent(mDisplay, mSurface, mSurface, mContext);
-        mProgram = new GLProgram();
+        mProgram = new GLProgram(format);
 
         mBlockBuffer = IntBuffer.allocate(mOutWidth * BLOCK_HEIGHT);
-        mOutBuffer = IntBuffer.allocate(mOutWidth * mOutHeight);
     }
 
     public GLProgram getSquare() {
         return mProgram;
     }
 
-    public void intermediateToOutput() {
-        for (int remainingRows = mOutHeight; remainingRows > 0; remainingRows -= BLOCK_HEIGHT) {
-            int y = mOutHeight - remainingRows;
-            int height = Math.min(remainingRows, BLOCK_HEIGHT);
+    /**
+     * Renders the output in blocks of rows and hands every block to the sink. The next block is
+     * queued on the GPU before the sink runs, so the sink overlaps with rendering.
+     */
+    public void intermediateToOutput(GpuTimer gpu, StageTimer timer, RowSink sink) {
+        renderBlock(gpu, timer, 0);
+        for (int y = 0; y < mOutHeight; y += BLOCK_HEIGHT) {
+            int height = Math.min(mOutHeight - y, BLOCK_HEIGHT);
 
-            mProgram.intermediateToOutput(mOutWidth, y, height);
+            timer.begin("readback");
             mBlockBuffer.position(0);
             glReadPixels(0, 0, mOutWidth, height, GL_RGBA, GL_UNSIGNED_BYTE, mBlockBuffer);
-            if (height < BLOCK_HEIGHT) {
-                // This can only happen once
-                int[] data = new int[mOutWidth * height];
-                mBlockBuffer.get(data);
-                mOutBuffer.put(data);
-            } else {
-                mOutBuffer.put(mBlockBuffer);
+            timer.end();
+
+            if (y + BLOCK_HEIGHT < mOutHeight) {
+                renderBlock(gpu, timer, y + BLOCK_HEIGHT);
+                glFlush();
             }
+
+            timer.begin("encode");
+            sink.onRows(mBlockBuffer.array(), 0, height);
+            timer.end();
         }
 
-        mOutBuffer.position(0);
-        mOut.copyPixelsFromBuffer(mOutBuffer);
+        timer.begin("encode");
+        sink.finish();
+        timer.end();
+    }
+
+    private void renderBlock(GpuTimer gpu, StageTimer timer, int y) {
+        gpu.begin("stage3");
+        mProgram.intermediateToOutput(mOutWidth, y, Math.min(mOutHeight - y, BLOCK_HEIGHT));
+        gpu.end(timer);
     }
 
     @Override
@@ -1,15 +1,26 @@
 package amirz.dngprocessor.gl;
 
 import android.util.Log;
-import android.util.Rational;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import amirz.dngprocessor.color.ColorLut;
+import amirz.dngprocessor.math.Rational;
+import amirz.dngprocessor.merge.TileAlignment;
+import amirz.dngprocessor.params.AnalysisParams;
+import amirz.dngprocessor.params.IntermediateFormat;
 
 import static android.opengl.GLES20.*;
 import static android.opengl.GLES30.*;
+import static android.opengl.GLES31.*;
 import static javax.microedition.khronos.opengles.GL10.GL_RGB;
 import static javax.microedition.khronos.opengles.GL10.GL_TEXTURE_2D;
 import static javax.microedition.khronos.opengles.GL10.GL_TEXTURE_MAG_FILTER;
@@ -17,119 +28,421 @@ import static javax.microedition.khronos.opengles.GL10.GL_TEXTURE_MIN_FILTER;
 
 public class GLProgram {
     private static final String TAG = "GLProgram";
+    private static final int COMPUTE_TILE = 16;
+    private static final int TONEMAP_LEVELS = 8;
+    private static final int TONEMAP_MIN_SIZE = 8;
 
     private final GLSquare mSquare = new GLSquare();
-    private final int mProgramSensorToIntermediate;
-    private final int mProgramIntermediateAnalysis;
-    private final int mProgramIntermediateToSRGB;
-
+    private final int mVertexShader;
+    private final Map<String, Integer> mPrograms = new HashMap<>();
+    private int mProgram;
+    private final boolean mCompute; // Whether OpenGL ES 3.1 compute shaders are available
+    private boolean mComputeOutput;
+    private final int[] mOutputTex = new int[1];
+    private int mOutputFrameBuffer;
+
+    private IntermediateFormat mFormat; // Layout of the current intermediate
     private int inWidth, inHeight;
-    private final int[] mIntermediateTex = new int[1];
-    private float a, b;
-    private float[] zRange;
-    private float chromaSigma;
-    private float lumaSigma;
-
-    public GLProgram() {
-        int vertexShader = loadShader(
-                GL_VERTEX_SHADER,
-                Shaders.VS);
-
-        mProgramSensorToIntermediate = glCreateProgram();
-        glAttachShader(mProgramSensorToIntermediate, vertexShader);
-        glAttachShader(mProgramSensorToIntermediate, loadShader(GL_FRAGMENT_SHADER, Shaders.FS1));
-
-        mProgramIntermediateAnalysis = glCreateProgram();
-        glAttachShader(mProgramIntermediateAnalysis, vertexShader);
-        glAttachShader(mProgramIntermediateAnalysis, loadShader(GL_FRAGMENT_SHADER, Shaders.FS2));
+    private int mIntermediateWidth, mIntermediateHeight;
+    private final int[] mIntermediateTex = new int[2]; // Y or xyY, and half resolution xy
+    private final int[] mChromaTex = new int[1]; // Full resolution xy, only until downsampled
+    private final int[] mRawTex = new int[1];
+
+    // Burst merging
+    private final boolean mFloatBlend; // Single precision accumulator can be blended into
+    private final int[] mMergedTex = new int[1];
+    private final int[] mFrameTex = new int[1];
+    private final int[] mAlignmentTex = new int[1];
+    private ByteBuffer mFrameUpload; // Quads of the frame being merged
+    private ShortBuffer mOffsetUpload; // Alignment of the frame being merged
+    private int mMergeFrameBuffer;
+    private float mFrameWeight;
+    private int mMergedFrames;
+    private AnalysisParams mAnalysis;
+    private final int[] mToneGainTex = new int[1];
+
+    // Color lookup table, made once and uploaded again when the table changes
+    private final int[] mLutTex = new int[1];
+
+    public GLProgram(IntermediateFormat format) {
+        mFormat = format;
+        mVertexShader = loadShader(GL_VERTEX_SHADER, Shaders.VS);
+
+        int[] version = new int[2];
+        glGetIntegerv(GL_MAJOR_VERSION, version, 0);
+        glGetIntegerv(GL_MINOR_VERSION, version, 1);
+        mCompute = version[0] > 3 || (version[0] == 3 && version[1] >= 1);
+        Log.d(TAG, "OpenGL ES " + version[0] + "." + version[1] + ", compute " + mCompute);
+
+        String extensions = glGetString(GL_EXTENSIONS);
+        mFloatBlend = extensions != null
+                && extensions.contains("GL_EXT_color_buffer_float")
+                && extensions.contains("GL_EXT_float_blend");
+    }
 
-        mProgramIntermediateToSRGB = glCreateProgram();
-        glAttachShader(mProgramIntermediateToSRGB, vertexShader);
-        glAttachShader(mProgramIntermediateToSRGB, loadShader(GL_FRAGMENT_SHADER, Shaders.FS3));
+    /**
+     * Switches to the variant of a fragment shader with the given definitions compiled in.
+     * Variants are linked on first use and reused for the lifetime of this object.
+     */
+    private void useProgram(String fragmentShader, String... defines) {
+        String source = Shaders.specialize(fragmentShader, defines);
+        Integer program = mPrograms.get(source);
+        if (program == null) {
+            program = glCreateProgram();
+            glAttachShader(program, mVertexShader);
+            glAttachShader(program, loadShader(GL_FRAGMENT_SHADER, source));
+            glLinkProgram(program);
+            mPrograms.put(source, program);
+        }
+        glUseProgram(program);
+        mProgram = program;
+    }
 
-        // Link first program
-        glLinkProgram(mProgramSensorToIntermediate);
-        glUseProgram(mProgramSensorToIntermediate);
+    /**
+     * Switches to the variant of a compute shader with the given definitions compiled in.
+     */
+    private void useComputeProgram(String computeShader, String... defines) {
+        String source = Shaders.specialize(computeShader, defines);
+        Integer program = mPrograms.get(source);
+        if (program == null) {
+            program = glCreateProgram();
+            glAttachShader(program, loadShader(GL_COMPUTE_SHADER, source));
+            glLinkProgram(program);
+            mPrograms.put(source, program);
+        }
+        glUseProgram(program);
+        mProgram = program;
     }
 
+    /**
+     * Adds the definition that selects the intermediate layout in every stage.
+     */
+    private List<String> formatDefines() {
+        List<String> defines = new ArrayList<>();
+        if (mFormat == IntermediateFormat.Split) {
+            defines.add("INTERMEDIATE_SPLIT");
+        } else if (mFormat == IntermediateFormat.Packed) {
+            defines.add("INTERMEDIATE_PACKED");
+        }
+        return defines;
+    }
 
     public void setIn(byte[] in, int inWidth, int inHeight) {
         this.inWidth = inWidth;
         this.inHeight = inHeight;
+        mIntermediateWidth = inWidth;
+        mIntermediateHeight = inHeight;
 
-        // Generate intermediate texture
-        glGenTextures(1, mIntermediateTex, 0);
+        // Generate intermediate textures
+        glGenTextures(2, mIntermediateTex, 0);
 
         glActiveTexture(GL_TEXTURE1);
-        glBindTexture(GL_TEXTURE_2D, mIntermediateTex[0]);
-        glTexImage2D(GL_TEXTURE_2D, 0, GL_RGB16F, inWidth, inHeight, 0, GL_RGB, GL_FLOAT, null);
+        switch (mFormat) {
+            case Full:
+                createTexture(mIntermediateTex[0], GL_RGB16F, inWidth, inHeight, GL_RGB, GL_NEAREST);
+                break;
+            case Split:
+                // Stage 1 writes xy at full resolution, which is box filtered afterwards
+                glGenTextures(1, mChromaTex, 0);
+                createTexture(mIntermediateTex[0], GL_R16F, inWidth, inHeight, GL_RED, GL_NEAREST);
+                createTexture(mChromaTex[0], GL_RG16F, inWidth, inHeight, GL_RG, GL_NEAREST);
+                createTexture(mIntermediateTex[1], GL_RG16F, inWidth / 2, inHeight / 2, GL_RG,
+                        GL_LINEAR);
+                break;
+            case Packed:
+                createTexture(mIntermediateTex[0], GL_R11F_G11F_B10F, inWidth, inHeight, GL_RGB,
+                        GL_NEAREST);
+                break;
+        }
+
+        // Now create the input texture and bind it to TEXTURE0
+        glGenTextures(1, mRawTex, 0);
+        glActiveTexture(GL_TEXTURE0);
+        glBindTexture(GL_TEXTURE_2D, mRawTex[0]);
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+        glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA16UI, inWidth / 2, inHeight / 2, 0,
+                GL_RGBA_INTEGER, GL_UNSIGNED_SHORT,
+                packQuads(ByteBuffer.allocateDirect(in.length), in));
+    }
 
-        // Now create the input texture and bind it to TEXTURE0
-        ByteBuffer buffer = ByteBuffer.allocateDirect(in.length);
-        buffer.put(in);
+    private ByteBuffer packQuads(ByteBuffer buffer, byte[] in) {
+        // Every texel holds one 2x2 Bayer quad, so a 3x3 patch only needs four fetches
+        int quadWidth = inWidth / 2;
+        int quadHeight = inHeight / 2;
+        int rowBytes = inWidth * 2;
+
+        buffer.clear();
+        for (int qy = 0; qy < quadHeight; qy++) {
+            int top = 2 * qy * rowBytes;
+            int bottom = top + rowBytes;
+            for (int qx = 0; qx < quadWidth; qx++) {
+                buffer.put(in, top + 4 * qx, 4);
+                buffer.put(in, bottom + 4 * qx, 4);
+            }
+        }
         buffer.flip();
+        return buffer;
+    }
 
-        int[] rawTex = new int[1];
-        glGenTextures(1, rawTex, 0);
+    /**
+     * Starts accumulating a burst into a float texture, beginning with the frame passed to setIn.
+     * Only the accumulator and one other frame are on the GPU at any time. The accumulator is
+     * single precision where the driver can blend into it, as half floats only keep about 11 bits
+     * of every frame of a 12 to 14 bit sensor.
+     * @param frameCount Total number of frames in the burst, including the first one.
+     */
+    public void beginMerge(int frameCount) {
+        int quadWidth = inWidth / 2;
+        int quadHeight = inHeight / 2;
+        int tilesX = (quadWidth + TileAlignment.TILE_SIZE - 1) / TileAlignment.TILE_SIZE;
+        int tilesY = (quadHeight + TileAlignment.TILE_SIZE - 1) / TileAlignment.TILE_SIZE;
+        mFrameWeight = 1f / frameCount;
+
+        glGenTextures(1, mMergedTex, 0);
+        glActiveTexture(GL_TEXTURE4);
+        createTexture(mMergedTex[0], mFloatBlend ? GL_RGBA32F : GL_RGBA16F, quadWidth, quadHeight,
+                GL_RGBA, GL_NEAREST);
+
+        // Every other frame and its alignment is uploaded into the same storage
+        mFrameUpload = ByteBuffer.allocateDirect(inWidth * inHeight * 2);
+        mOffsetUpload = ByteBuffer.allocateDirect(tilesX * tilesY * 2 * 2)
+                .order(ByteOrder.nativeOrder())
+                .asShortBuffer();
+        glGenTextures(1, mFrameTex, 0);
+        glActiveTexture(GL_TEXTURE5);
+        createStorage2D(mFrameTex[0], GL_RGBA16UI, quadWidth, quadHeight);
+        glGenTextures(1, mAlignmentTex, 0);
+        glActiveTexture(GL_TEXTURE6);
+        createStorage2D(mAlignmentTex[0], GL_RG16I, tilesX, tilesY);
 
-        glActiveTexture(GL_TEXTURE0);
-        glBindTexture(GL_TEXTURE_2D, rawTex[0]);
+        int[] frameBuffer = new int[1];
+        glGenFramebuffers(1, frameBuffer, 0);
+        mMergeFrameBuffer = frameBuffer[0];
+        glBindFramebuffer(GL_FRAMEBUFFER, mMergeFrameBuffer);
+        glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, mMergedTex[0], 0);
+        glClearColor(0f, 0f, 0f, 0f);
+        glClear(GL_COLOR_BUFFER_BIT);
+
+        // The reference frame is aligned with itself
+        accumulate(mRawTex[0], new int[tilesX * tilesY * 2], tilesX, tilesY, 1f);
+    }
+
+    private static void createStorage2D(int texture, int format, int width, int height) {
+        glBindTexture(GL_TEXTURE_2D, texture);
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
-        glTexImage2D(GL_TEXTURE_2D, 0, GL_R16UI, inWidth, inHeight, 0,
-                GL_RED_INTEGER, GL_UNSIGNED_SHORT, buffer);
+        glTexStorage2D(GL_TEXTURE_2D, 1, format, width, height);
+    }
+
+    public void mergeFrame(byte[] in, TileAlignment alignment) {
+        glActiveTexture(GL_TEXTURE5);
+        glBindTexture(GL_TEXTURE_2D, mFrameTex[0]);
+        glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, inWidth / 2, inHeight / 2,
+                GL_RGBA_INTEGER, GL_UNSIGNED_SHORT, packQuads(mFrameUpload, in));
+
+        // The alignment residual is measured on quad averages, single pixels differ twice as much
+        accumulate(mFrameTex[0], alignment.offsets, alignment.tilesX, alignment.tilesY,
+                Math.max(2f * alignment.noiseLevel, 1f));
+    }
+
+    private void accumulate(int frameTex, int[] offsets, int tilesX, int tilesY,
+                            float noiseLevel) {
+        useProgram(Shaders.FS_MERGE);
+        glBindFramebuffer(GL_FRAMEBUFFER, mMergeFrameBuffer);
+        glViewport(0, 0, inWidth / 2, inHeight / 2);
+
+        mOffsetUpload.clear();
+        for (int offset : offsets) {
+            mOffsetUpload.put((short) offset);
+        }
+        mOffsetUpload.flip();
+        glActiveTexture(GL_TEXTURE6);
+        glBindTexture(GL_TEXTURE_2D, mAlignmentTex[0]);
+        glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, tilesX, tilesY,
+                GL_RG_INTEGER, GL_SHORT, mOffsetUpload);
+
+        glActiveTexture(GL_TEXTURE0);
+        glBindTexture(GL_TEXTURE_2D, mRawTex[0]);
+        glActiveTexture(GL_TEXTURE5);
+        glBindTexture(GL_TEXTURE_2D, frameTex);
+
+        glUniform1i(glGetUniformLocation(mProgram, "referenceBuffer"), 0);
+        glUniform1i(glGetUniformLocation(mProgram, "frameBuffer"), 5);
+        glUniform1i(glGetUniformLocation(mProgram, "alignment"), 6);
+        glUniform1i(glGetUniformLocation(mProgram, "tileSize"), TileAlignment.TILE_SIZE);
+        glUniform1f(glGetUniformLocation(mProgram, "frameWeight"), mFrameWeight);
+        glUniform1f(glGetUniformLocation(mProgram, "noiseLevel"), noiseLevel);
+
+        // Every frame adds its weighted contribution to the accumulator
+        glEnable(GL_BLEND);
+        glBlendFunc(GL_ONE, GL_ONE);
+        mSquare.draw(glGetAttribLocation(mProgram, "vPosition"));
+        glDisable(GL_BLEND);
+        mMergedFrames++;
+    }
+
+    /**
+     * Switches to the demosaicing stage. Must be called after setIn, and after merging a burst.
+     */
+    public void prepareForIntermediate(int cfaPattern) {
+        boolean merged = mMergedFrames > 0;
+
+        List<String> defines = formatDefines();
+        defines.add("CFA_PATTERN " + cfaPattern);
+        if (merged) {
+            defines.add("RAW_FLOAT");
+        }
+        useProgram(Shaders.FS1, defines.toArray(new String[0]));
+
+        glActiveTexture(GL_TEXTURE0);
+        if (merged) {
+            glBindTexture(GL_TEXTURE_2D, mMergedTex[0]);
+            glDeleteTextures(1, mFrameTex, 0);
+            glDeleteTextures(1, mAlignmentTex, 0);
+            glDeleteFramebuffers(1, new int[] { mMergeFrameBuffer }, 0);
+            mFrameUpload = null;
+            mOffsetUpload = null;
+
+            // Frames that were skipped did not add their weight
+            glUniform1f(glGetUniformLocation(mProgram, "rawScale"),
+                    65535f / (mFrameWeight * mMergedFrames));
+        } else {
+            glBindTexture(GL_TEXTURE_2D, mRawTex[0]);
+        }
 
-        glUniform1i(glGetUniformLocation(mProgramSensorToIntermediate, "rawBuffer"), 0);
-        glUniform1i(glGetUniformLocation(mProgramSensorToIntermediate, "rawWidth"), inWidth);
-        glUniform1i(glGetUniformLocation(mProgramSensorToIntermediate, "rawHeight"), inHeight);
+        glUniform1i(glGetUniformLocation(mProgram, "rawBuffer"), 0);
+        glUniform1i(glGetUniformLocation(mProgram, "rawWidth"), inWidth);
+        glUniform1i(glGetUniformLocation(mProgram, "rawHeight"), inHeight);
 
         // Configure frame buffer
         int[] frameBuffer = new int[1];
         glGenFramebuffers(1, frameBuffer, 0);
         glBindFramebuffer(GL_FRAMEBUFFER, frameBuffer[0]);
         glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, mIntermediateTex[0], 0);
+        if (mFormat == IntermediateFormat.Split) {
+            glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT1, GL_TEXTURE_2D, mChromaTex[0], 0);
+            glDrawBuffers(2, new int[] { GL_COLOR_ATTACHMENT0, GL_COLOR_ATTACHMENT1 }, 0);
+        }
 
         glViewport(0, 0, inWidth, inHeight);
     }
 
-    public void setCfaPattern(int cfaPattern) {
-        glUniform1ui(glGetUniformLocation(mProgramSensorToIntermediate, "cfaPattern"), cfaPattern);
+    private static void createTexture(int texture, int internalFormat, int width, int height,
+                                      int format, int filter) {
+        glBindTexture(GL_TEXTURE_2D, texture);
+        glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, width, height, 0, format, GL_FLOAT, null);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, filter);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, filter);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+    }
+
+    /**
+     * Binds the intermediate textures for reading by the analysis or output stage.
+     */
+    private void bindIntermediate() {
+        glActiveTexture(GL_TEXTURE0);
+        glBindTexture(GL_TEXTURE_2D, mIntermediateTex[0]);
+        glUniform1i(glGetUniformLocation(mProgram, "intermediateBuffer"), 0);
+
+        if (mFormat == IntermediateFormat.Split) {
+            glActiveTexture(GL_TEXTURE3);
+            glBindTexture(GL_TEXTURE_2D, mIntermediateTex[1]);
+            glUniform1i(glGetUniformLocation(mProgram, "intermediateChroma"), 3);
+        }
     }
 
     public void setBlackWhiteLevel(int[] blackLevel, int whiteLevel) {
-        glUniform4f(glGetUniformLocation(mProgramSensorToIntermediate, "blackLevel"),
+        glUniform4f(glGetUniformLocation(mProgram, "blackLevel"),
                 blackLevel[0], blackLevel[1], blackLevel[2], blackLevel[3]);
 
-        glUniform1f(glGetUniformLocation(mProgramSensorToIntermediate, "whiteLevel"),
+        glUniform1f(glGetUniformLocation(mProgram, "whiteLevel"),
                 whiteLevel);
     }
 
     public void setNeutralPoint(Rational[] neutralPoint) {
-        glUniform3f(glGetUniformLocation(mProgramSensorToIntermediate, "neutralPoint"),
+        glUniform3f(glGetUniformLocation(mProgram, "neutralPoint"),
                 neutralPoint[0].floatValue(), neutralPoint[1].floatValue(), neutralPoint[2].floatValue());
     }
 
     public void setTransforms1(float[] sensorToXYZ) {
-        glUniformMatrix3fv(glGetUniformLocation(mProgramSensorToIntermediate, "sensorToXYZ"),
+        glUniformMatrix3fv(glGetUniformLocation(mProgram, "sensorToXYZ"),
                 1, true, sensorToXYZ, 0);
     }
 
     public void sensorToIntermediate() {
-        mSquare.draw(glGetAttribLocation(mProgramSensorToIntermediate, "vPosition"));
+        mSquare.draw(glGetAttribLocation(mProgram, "vPosition"));
+
+        if (mFormat == IntermediateFormat.Split) {
+            // A linear blit at exactly half size averages every 2x2 block
+            int[] frameBuffer = new int[1];
+            glGenFramebuffers(1, frameBuffer, 0);
+            glBindFramebuffer(GL_DRAW_FRAMEBUFFER, frameBuffer[0]);
+            glFramebufferTexture2D(GL_DRAW_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D,
+                    mIntermediateTex[1], 0);
+            glReadBuffer(GL_COLOR_ATTACHMENT1);
+            glBlitFramebuffer(0, 0, inWidth, inHeight, 0, 0, inWidth / 2, inHeight / 2,
+                    GL_COLOR_BUFFER_BIT, GL_LINEAR);
+            glDeleteFramebuffers(1, frameBuffer, 0);
+            glDeleteTextures(1, mChromaTex, 0);
+        }
+    }
+
+    /**
+     * Replaces the intermediate by an area average of it, so that the analysis and output stages
+     * only process as many pixels as the output has.
+     * @param scale Intermediate pixels per output pixel in each dimension, above one.
+     */
+    public void downscaleIntermediate(float scale) {
+        useProgram(Shaders.FS_DOWNSCALE, formatDefines().toArray(new String[0]));
+        bindIntermediate();
+
+        int width = (int) Math.ceil(mIntermediateWidth / scale);
+        int height = (int) Math.ceil(mIntermediateHeight / scale);
+
+        int[] scaledTex = new int[1];
+        glGenTextures(1, scaledTex, 0);
+        glActiveTexture(GL_TEXTURE1);
+        createTexture(scaledTex[0], GL_RGB16F, width, height, GL_RGB, GL_NEAREST);
+
+        int[] frameBuffer = new int[1];
+        glGenFramebuffers(1, frameBuffer, 0);
+        glBindFramebuffer(GL_FRAMEBUFFER, frameBuffer[0]);
+        glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, scaledTex[0], 0);
+
+        glViewport(0, 0, width, height);
+        glUniform1f(glGetUniformLocation(mProgram, "scale"), scale);
+        mSquare.draw(glGetAttribLocation(mProgram, "vPosition"));
+
+        glDeleteFramebuffers(1, frameBuffer, 0);
+        glDeleteTextures(2, mIntermediateTex, 0);
+
+        // The downscaled intermediate is small enough to always keep at full precision
+        mIntermediateTex[0] = scaledTex[0];
+        mIntermediateTex[1] = 0;
+        mFormat = IntermediateFormat.Full;
+        mIntermediateWidth = width;
+        mIntermediateHeight = height;
     }
 
     public void setOutOffset(int offsetX, int offsetY) {
-        glUniform2i(glGetUniformLocation(mProgramIntermediateToSRGB, "outOffset"),
+        glUniform2i(glGetUniformLocation(mProgram, "outOffset"),
                 offsetX, offsetY);
     }
 
-    public void analyzeIntermediate(int w, int h, int samplingFactor,
+    public void analyzeIntermediate(int w, int h, int offsetX, int offsetY, int samplingFactor,
                                     boolean histEqualization, float[] stretchPerc) {
+        if (mCompute) {
+            analyzeIntermediateCompute(w, h, offsetX, offsetY, samplingFactor,
+                    histEqualization, stretchPerc);
+            logAnalysis();
+            return;
+        }
+
         // Analyze
-        glLinkProgram(mProgramIntermediateAnalysis);
-        glUseProgram(mProgramIntermediateAnalysis);
+        useProgram(Shaders.FS2, formatDefines().toArray(new String[0]));
+        setOutOffset(offsetX, offsetY);
 
         w /= samplingFactor;
         h /= samplingFactor;
@@ -144,11 +457,7 @@ public class GLProgram {
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
 
         // Load intermediate buffer as texture
-        glActiveTexture(GL_TEXTURE0);
-        glBindTexture(GL_TEXTURE_2D, mIntermediateTex[0]);
-        glTexImage2D(GL_TEXTURE_2D, 0, GL_RGB16F, inWidth, inHeight, 0, GL_RGB, GL_FLOAT, null);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+        bindIntermediate();
 
         // Configure frame buffer
         int[] frameBuffer = new int[1];
@@ -157,154 +466,325 @@ public class GLProgram {
         glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, analyzeTex[0], 0);
 
         glViewport(0, 0, w, h);
-        glUniform1i(glGetUniformLocation(mProgramIntermediateAnalysis, "samplingFactor"),
+        glUniform1i(glGetUniformLocation(mProgram, "samplingFactor"),
                 samplingFactor);
-        mSquare.draw(glGetAttribLocation(mProgramIntermediateAnalysis, "vPosition"));
+        mSquare.draw(glGetAttribLocation(mProgram, "vPosition"));
 
-        int whPixels = w * h;
-        float[] f = new float[whPixels * 4];
+        float[] f = new float[w * h * 4];
         FloatBuffer fb = ByteBuffer.allocateDirect(f.length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
         fb.mark();
 
         glReadPixels(0, 0, w, h, GL_RGBA, GL_FLOAT, fb.reset());
         fb.get(f);
 
-        // Calculate a histogram on the result
-        int histBins = 512;
-        int[] hist = new int[histBins];
+        mAnalysis = AnalysisParams.fromSamples(f, histEqualization, stretchPerc);
+        logAnalysis();
+    }
+
+    /**
+     * Reduces the samples to a histogram and sigma sums on the GPU, so only those are read back
+     * instead of every sample.
+     */
+    private void analyzeIntermediateCompute(int w, int h, int offsetX, int offsetY,
+                                            int samplingFactor, boolean histEqualization,
+                                            float[] stretchPerc) {
+        List<String> defines = formatDefines();
+        defines.add("TILE_SIZE " + COMPUTE_TILE);
+        defines.add("HIST_BINS " + AnalysisParams.HIST_BINS);
+        useComputeProgram(Shaders.CS_ANALYSIS, defines.toArray(new String[0]));
+        setOutOffset(offsetX, offsetY);
+        bindIntermediate();
+
+        w /= samplingFactor;
+        h /= samplingFactor;
+        int groupsX = (w + COMPUTE_TILE - 1) / COMPUTE_TILE;
+        int groupsY = (h + COMPUTE_TILE - 1) / COMPUTE_TILE;
+
+        glUniform1i(glGetUniformLocation(mProgram, "samplingFactor"), samplingFactor);
+        glUniform2i(glGetUniformLocation(mProgram, "sampleCount"), w, h);
+
+        int[] buffers = new int[2];
+        glGenBuffers(2, buffers, 0);
+        createStorage(buffers[0], 0, AnalysisParams.HIST_BINS * 4);
+        createStorage(buffers[1], 1, groupsX * groupsY * 2 * 4);
+
+        glDispatchCompute(groupsX, groupsY, 1);
+        glMemoryBarrier(GL_BUFFER_UPDATE_BARRIER_BIT);
+
+        int[] hist = new int[AnalysisParams.HIST_BINS];
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, buffers[0]);
+        ((ByteBuffer) glMapBufferRange(GL_SHADER_STORAGE_BUFFER, 0, hist.length * 4,
+                GL_MAP_READ_BIT)).order(ByteOrder.nativeOrder()).asIntBuffer().get(hist);
+        glUnmapBuffer(GL_SHADER_STORAGE_BUFFER);
 
         float chromaSigmaTotal = 0f;
         float lumaSigmaTotal = 0f;
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, buffers[1]);
+        FloatBuffer sums = ((ByteBuffer) glMapBufferRange(GL_SHADER_STORAGE_BUFFER, 0,
+                groupsX * groupsY * 2 * 4, GL_MAP_READ_BIT))
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        while (sums.hasRemaining()) {
+            chromaSigmaTotal += sums.get();
+            lumaSigmaTotal += sums.get();
+        }
+        glUnmapBuffer(GL_SHADER_STORAGE_BUFFER);
+        glDeleteBuffers(2, buffers, 0);
+
+        mAnalysis = AnalysisParams.fromHistogram(hist, chromaSigmaTotal / (w * h),
+                lumaSigmaTotal / (w * h), histEqualization, stretchPerc);
+    }
 
-        // Loop over all values
-        for (int i = 0; i < f.length; i += 4) {
-            int bin = (int) (f[i] * histBins);
-            if (bin >= histBins) bin = histBins - 1;
-            hist[bin]++;
+    private static void createStorage(int buffer, int binding, int size) {
+        // Zeroed, as the histogram bins are only ever added to
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, buffer);
+        glBufferData(GL_SHADER_STORAGE_BUFFER, size,
+                ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder()), GL_DYNAMIC_READ);
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, binding, buffer);
+    }
+
+    private void logAnalysis() {
+        Log.d(TAG, "ChromaSigma " + mAnalysis.chromaSigma + ", LumaSigma " + mAnalysis.lumaSigma);
+        Log.d(TAG, "Histogram EQ Curve: " + mAnalysis.brightenFactor + ", "
+                + Arrays.toString(mAnalysis.histCurve));
+        Log.d(TAG, "Z Range: " + Arrays.toString(mAnalysis.zRange));
+    }
+
+    /**
+     * Fuses the luminance of the intermediate with a brightened copy of itself in a Laplacian
+     * pyramid, weighting both by how well exposed they are. The result is kept as a gain map at
+     * half resolution, which the output stage applies to z. Must be called after the analysis.
+     */
+    public void localTonemap() {
+        // Halve the size until the coarsest level only holds the global brightness
+        int[] widths = new int[TONEMAP_LEVELS];
+        int[] heights = new int[TONEMAP_LEVELS];
+        widths[0] = Math.max(mIntermediateWidth / 2, 1);
+        heights[0] = Math.max(mIntermediateHeight / 2, 1);
+        int levels = 1;
+        while (levels < TONEMAP_LEVELS && (levels < 2
+                || Math.min(widths[levels - 1], heights[levels - 1]) > TONEMAP_MIN_SIZE)) {
+            widths[levels] = (widths[levels - 1] + 1) / 2;
+            heights[levels] = (heights[levels - 1] + 1) / 2;
+            levels++;
+        }
 
-            chromaSigmaTotal += f[i + 1];
-            lumaSigmaTotal += f[i + 2];
+        int[] levelTex = new int[levels];
+        int[] fusedTex = new int[levels];
+        glGenTextures(levels, levelTex, 0);
+        glGenTextures(levels, fusedTex, 0);
+        glActiveTexture(GL_TEXTURE1);
+        for (int i = 0; i < levels; i++) {
+            createTexture(levelTex[i], GL_RGBA16F, widths[i], heights[i], GL_RGBA, GL_LINEAR);
+            createTexture(fusedTex[i], GL_R16F, widths[i], heights[i], GL_RED, GL_LINEAR);
         }
 
-        chromaSigma = chromaSigmaTotal / whPixels; // [0, 0.2]
-        lumaSigma = lumaSigmaTotal / whPixels;
+        int[] frameBuffer = new int[1];
+        glGenFramebuffers(1, frameBuffer, 0);
+        glBindFramebuffer(GL_FRAMEBUFFER, frameBuffer[0]);
 
-        float[] cumulativeHist = new float[histBins + 1];
-        for (int i = 1; i < cumulativeHist.length; i++) {
-            cumulativeHist[i] = cumulativeHist[i - 1] + hist[i - 1];
+        // Both exposures and their weights
+        List<String> defines = formatDefines();
+        defines.add("PYRAMID_BASE");
+        useProgram(Shaders.FS_TONEMAP, defines.toArray(new String[0]));
+        bindIntermediate();
+        glUniform2f(glGetUniformLocation(mProgram, "zRange"),
+                mAnalysis.zRange[0], mAnalysis.zRange[1]);
+        glUniform2f(glGetUniformLocation(mProgram, "histCurve"),
+                mAnalysis.histCurve[0], mAnalysis.histCurve[1]);
+        renderTo(levelTex[0], widths[0], heights[0]);
+
+        // Gaussian pyramid
+        useProgram(Shaders.FS_TONEMAP, "PYRAMID_DOWN");
+        for (int i = 1; i < levels; i++) {
+            bindLevels(levelTex[i - 1], 0, 0);
+            renderTo(levelTex[i], widths[i], heights[i]);
         }
 
-        float max = cumulativeHist[histBins];
-        int minZ = 0;
-        int maxZ = histBins;
-        for (int i = 0; i < cumulativeHist.length; i++) {
-            cumulativeHist[i] /= max;
-            if (cumulativeHist[i] < stretchPerc[0]) {
-                minZ = i;
-            } else if (cumulativeHist[i] > stretchPerc[1]) {
-                maxZ = Math.min(maxZ, i);
-            }
+        // Collapse the blended Laplacian pyramid from the top
+        int top = levels - 1;
+        useProgram(Shaders.FS_TONEMAP, "PYRAMID_TOP");
+        bindLevels(levelTex[top], 0, 0);
+        renderTo(fusedTex[top], widths[top], heights[top]);
+
+        useProgram(Shaders.FS_TONEMAP, "PYRAMID_UP");
+        for (int i = top - 1; i > 0; i--) {
+            bindLevels(levelTex[i], levelTex[i + 1], fusedTex[i + 1]);
+            renderTo(fusedTex[i], widths[i], heights[i]);
         }
 
-        float brightenFactor = 0.5f;
-        if (histEqualization) {
-            // What fraction of pixels are in the first 25% of luminance
-            brightenFactor = cumulativeHist[histBins / 4]; // [0,1]
-            brightenFactor -= chromaSigma;
-            if (brightenFactor < 0f) {
-                brightenFactor = 0f;
-            } else {
-                brightenFactor *= 0.6f;
-            }
+        useProgram(Shaders.FS_TONEMAP, "PYRAMID_UP", "PYRAMID_GAIN");
+        bindLevels(levelTex[0], levelTex[1], fusedTex[1]);
+        renderTo(fusedTex[0], widths[0], heights[0]);
+
+        glDeleteFramebuffers(1, frameBuffer, 0);
+        glDeleteTextures(levels, levelTex, 0);
+        glDeleteTextures(levels - 1, fusedTex, 1);
+        if (mToneGainTex[0] != 0) {
+            glDeleteTextures(1, mToneGainTex, 0);
         }
+        mToneGainTex[0] = fusedTex[0];
+    }
+
+    private void bindLevels(int fine, int coarse, int fusedCoarse) {
+        glActiveTexture(GL_TEXTURE7);
+        glBindTexture(GL_TEXTURE_2D, fine);
+        glUniform1i(glGetUniformLocation(mProgram, "levelFine"), 7);
+
+        glActiveTexture(GL_TEXTURE8);
+        glBindTexture(GL_TEXTURE_2D, coarse);
+        glUniform1i(glGetUniformLocation(mProgram, "levelCoarse"), 8);
 
-        // Set quadratic compensation curve based on brightenFactor
-        // ax² + bx
-        a = 1f - 2f * brightenFactor;
-        b = 2f * brightenFactor;
+        glActiveTexture(GL_TEXTURE9);
+        glBindTexture(GL_TEXTURE_2D, fusedCoarse);
+        glUniform1i(glGetUniformLocation(mProgram, "fusedCoarse"), 9);
+    }
+
+    private void renderTo(int texture, int width, int height) {
+        glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, texture, 0);
+        glViewport(0, 0, width, height);
+        mSquare.draw(glGetAttribLocation(mProgram, "vPosition"));
+    }
 
-        zRange = new float[] {
-                0.5f * ((float) minZ) / histBins,
-                0.5f * ((float) maxZ) / histBins + 0.5f
-        };
+    public AnalysisParams getAnalysis() {
+        return mAnalysis;
+    }
 
-        Log.d(TAG, "ChromaSigma " + chromaSigma + ", LumaSigma " + lumaSigma);
-        Log.d(TAG, "Histogram EQ Curve: " + brightenFactor + ", " + a + ", " + b);
-        Log.d(TAG, "Z Range: " + Arrays.toString(zRange));
+    public void setAnalysis(AnalysisParams analysis) {
+        mAnalysis = analysis;
     }
 
-    public void prepareForOutput() {
-        // Now switch to the second program
-        glLinkProgram(mProgramIntermediateToSRGB);
-        glUseProgram(mProgramIntermediateToSRGB);
+    public void prepareForOutput(int denoiseFactor, float sharpenFactor) {
+        int radiusDenoise = mAnalysis.denoiseRadius(denoiseFactor);
+        float effectiveSharpen = mAnalysis.sharpenFactor(sharpenFactor);
+
+        // Now switch to the output program, leaving out the stages that are disabled
+        List<String> defines = formatDefines();
+        defines.add("LUT_SIZE " + ColorLut.SIZE);
+        if (radiusDenoise > 0) {
+            defines.add("DENOISE");
+        }
+        if (effectiveSharpen > 0f) {
+            defines.add("SHARPEN");
+        }
+        if (mToneGainTex[0] != 0) {
+            defines.add("TONEMAP");
+        }
+
+        // Without a 3x3 patch there is nothing to share between neighbouring pixels
+        mComputeOutput = mCompute && (radiusDenoise > 0 || effectiveSharpen > 0f);
+        if (mComputeOutput) {
+            defines.add("TILE_SIZE " + COMPUTE_TILE);
+            useComputeProgram(Shaders.CS3, defines.toArray(new String[0]));
+        } else {
+            useProgram(Shaders.FS3, defines.toArray(new String[0]));
+        }
 
         glBindFramebuffer(GL_FRAMEBUFFER, 0);
 
         // Load intermediate buffer as texture
-        glActiveTexture(GL_TEXTURE0);
-        glBindTexture(GL_TEXTURE_2D, mIntermediateTex[0]);
-        glTexImage2D(GL_TEXTURE_2D, 0, GL_RGB16F, inWidth, inHeight, 0, GL_RGB, GL_FLOAT, null);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+        bindIntermediate();
 
-        glUniform1i(glGetUniformLocation(mProgramIntermediateToSRGB, "intermediateWidth"),
-                inWidth);
+        glUniform1i(glGetUniformLocation(mProgram, "intermediateWidth"),
+                mIntermediateWidth);
 
-        glUniform1i(glGetUniformLocation(mProgramIntermediateToSRGB, "intermediateHeight"),
-                inHeight);
+        glUniform1i(glGetUniformLocation(mProgram, "intermediateHeight"),
+                mIntermediateHeight);
 
-        glUniform2f(glGetUniformLocation(mProgramIntermediateToSRGB, "zRange"),
-                zRange[0], zRange[1]);
+        glUniform2f(glGetUniformLocation(mProgram, "zRange"),
+                mAnalysis.zRange[0], mAnalysis.zRange[1]);
 
-        glUniform2f(glGetUniformLocation(mProgramIntermediateToSRGB, "histCurve"),
-                a, b);
+        glUniform2f(glGetUniformLocation(mProgram, "histCurve"),
+                mAnalysis.histCurve[0], mAnalysis.histCurve[1]);
 
-        glUniform1f(glGetUniformLocation(mProgramIntermediateToSRGB, "chromaSigma"),
-                chromaSigma);
+        glUniform1f(glGetUniformLocation(mProgram, "chromaSigma"),
+                mAnalysis.chromaSigma);
 
-        glUniform1f(glGetUniformLocation(mProgramIntermediateToSRGB, "lumaSigma"),
-                lumaSigma);
-    }
+        glUniform1f(glGetUniformLocation(mProgram, "lumaSigma"),
+                mAnalysis.lumaSigma);
 
-    public void setToneMapCoeffs(float[] toneMapCoeffs) {
-        glUniform4f(glGetUniformLocation(mProgramIntermediateToSRGB, "toneMapCoeffs"),
-                toneMapCoeffs[0], toneMapCoeffs[1], toneMapCoeffs[2], toneMapCoeffs[3]);
-    }
+        glUniform1i(glGetUniformLocation(mProgram, "radiusDenoise"),
+                radiusDenoise);
 
-    public void setTransforms2(float[] intermediateToProPhoto, float[] proPhotoToSRGB) {
-        glUniformMatrix3fv(glGetUniformLocation(mProgramIntermediateToSRGB, "intermediateToProPhoto"),
-                1, true, intermediateToProPhoto, 0);
+        glUniform1f(glGetUniformLocation(mProgram, "sharpenFactor"),
+                effectiveSharpen);
 
-        glUniformMatrix3fv(glGetUniformLocation(mProgramIntermediateToSRGB, "proPhotoToSRGB"),
-                1, true, proPhotoToSRGB, 0);
+        if (mToneGainTex[0] != 0) {
+            glActiveTexture(GL_TEXTURE7);
+            glBindTexture(GL_TEXTURE_2D, mToneGainTex[0]);
+            glUniform1i(glGetUniformLocation(mProgram, "toneGain"), 7);
+        }
     }
 
-    public void setDenoiseFactor(int denoiseFactor) {
-        glUniform1i(glGetUniformLocation(mProgramIntermediateToSRGB, "radiusDenoise"),
-                (int)((float) denoiseFactor * chromaSigma));
-    }
+    public void setColorLut(ColorLut lut) {
+        if (mLutTex[0] == 0) {
+            glGenTextures(1, mLutTex, 0);
+        }
 
-    public void setSharpenFactor(float sharpenFactor) {
-        glUniform1f(glGetUniformLocation(mProgramIntermediateToSRGB, "sharpenFactor"),
-                Math.max(sharpenFactor - 9f * chromaSigma, 0));
+        glActiveTexture(GL_TEXTURE2);
+        glBindTexture(GL_TEXTURE_3D, mLutTex[0]);
+        glTexParameteri(GL_TEXTURE_3D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_3D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_3D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_3D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_3D, GL_TEXTURE_WRAP_R, GL_CLAMP_TO_EDGE);
+        glTexImage3D(GL_TEXTURE_3D, 0, GL_RGB16F, ColorLut.SIZE, ColorLut.SIZE, ColorLut.SIZE, 0,
+                GL_RGB, GL_FLOAT, lut.getTable());
+
+        glUniform1i(glGetUniformLocation(mProgram, "colorLut"), 2);
     }
 
-    public void setSaturationCurve(float[] saturationFactor) {
-        glUniform3f(glGetUniformLocation(mProgramIntermediateToSRGB, "saturationCurve"),
-                saturationFactor[0], saturationFactor[1], saturationFactor[2]);
+    /**
+     * Renders a block of output rows, which can then be read from the bound read framebuffer.
+     */
+    public void intermediateToOutput(int outWidth, int y, int height) {
+        glUniform1i(glGetUniformLocation(mProgram, "yOffset"), y);
+        if (mComputeOutput) {
+            if (mOutputFrameBuffer == 0) {
+                // The first block is the tallest, so the image fits every block after it
+                createOutputImage(outWidth, height);
+            }
+
+            glUniform2i(glGetUniformLocation(mProgram, "outSize"), outWidth, height);
+            glDispatchCompute((outWidth + COMPUTE_TILE - 1) / COMPUTE_TILE,
+                    (height + COMPUTE_TILE - 1) / COMPUTE_TILE, 1);
+            glMemoryBarrier(GL_FRAMEBUFFER_BARRIER_BIT);
+        } else {
+            glViewport(0, 0, outWidth, height);
+            mSquare.draw(glGetAttribLocation(mProgram, "vPosition"));
+        }
     }
 
-    public void intermediateToOutput(int outWidth, int y, int height) {
-        glViewport(0, 0, outWidth, height);
-        glUniform1i(glGetUniformLocation(mProgramIntermediateToSRGB, "yOffset"), y);
-        mSquare.draw(glGetAttribLocation(mProgramSensorToIntermediate, "vPosition"));
+    private void createOutputImage(int width, int height) {
+        glGenTextures(1, mOutputTex, 0);
+        glActiveTexture(GL_TEXTURE1);
+        glBindTexture(GL_TEXTURE_2D, mOutputTex[0]);
+        glTexStorage2D(GL_TEXTURE_2D, 1, GL_RGBA8, width, height);
+        glBindImageTexture(0, mOutputTex[0], 0, false, 0, GL_WRITE_ONLY, GL_RGBA8);
+
+        int[] frameBuffer = new int[1];
+        glGenFramebuffers(1, frameBuffer, 0);
+        mOutputFrameBuffer = frameBuffer[0];
+        glBindFramebuffer(GL_READ_FRAMEBUFFER, mOutputFrameBuffer);
+        glFramebufferTexture2D(GL_READ_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D,
+                mOutputTex[0], 0);
     }
 
     public void close() {
         // Clean everything up
-        glDeleteProgram(mProgramSensorToIntermediate);
-        glDeleteProgram(mProgramIntermediateAnalysis);
-        glDeleteProgram(mProgramIntermediateToSRGB);
+        if (mOutputFrameBuffer != 0) {
+            glDeleteFramebuffers(1, new int[] { mOutputFrameBuffer }, 0);
+            glDeleteTextures(1, mOutputTex, 0);
+        }
+        if (mLutTex[0] != 0) {
+            glDeleteTextures(1, mLutTex, 0);
+        }
+        if (mToneGainTex[0] != 0) {
+            glDeleteTextures(1, mToneGainTex, 0);
+        }
+        for (int program : mPrograms.values()) {
+            glDeleteProgram(program);
+        }
+        glDeleteShader(mVertexShader);
     }
 
     private static int loadShader(int type, String shaderCode) {
@@ -0,0 +1,96 @@
+package amirz.dngprocessor.gl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import amirz.dngprocessor.stats.StageTimer;
+
+import static android.opengl.GLES20.*;
+import static android.opengl.GLES30.*;
+
+/**
+ * Measures the GPU duration of stages. Uses EXT_disjoint_timer_query when the driver has it,
+ * otherwise brackets the stage with fences and takes the wall time in between.
+ * Stages cannot be nested.
+ */
+public class GpuTimer {
+    private static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+    private static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+
+    private final boolean mTimerQuery;
+    private final List<String> mQueryStages = new ArrayList<>();
+    private final List<Integer> mQueries = new ArrayList<>();
+    private String mStage;
+    private long mStartNanos;
+
+    public GpuTimer() {
+        String extensions = glGetString(GL_EXTENSIONS);
+        mTimerQuery = extensions != null
+                && extensions.contains("GL_EXT_disjoint_timer_query");
+        if (mTimerQuery) {
+            // Reading the flag clears it.
+            glGetIntegerv(GL_GPU_DISJOINT_EXT, new int[1], 0);
+        }
+    }
+
+    public void begin(String stage) {
+        mStage = stage;
+        if (mTimerQuery) {
+            int[] query = new int[1];
+            glGenQueries(1, query, 0);
+            glBeginQuery(GL_TIME_ELAPSED_EXT, query[0]);
+            mQueryStages.add(stage);
+            mQueries.add(query[0]);
+        } else {
+            waitIdle();
+            mStartNanos = System.nanoTime();
+        }
+    }
+
+    public void end(StageTimer timer) {
+        if (mTimerQuery) {
+            glEndQuery(GL_TIME_ELAPSED_EXT);
+        } else {
+            waitIdle();
+            timer.addGpu(mStage, System.nanoTime() - mStartNanos);
+        }
+    }
+
+    /**
+     * Reads back the pending query results. Call this after the last readback of the job,
+     * so that waiting for the results does not stall the pipeline.
+     */
+    public void collect(StageTimer timer) {
+        if (mQueries.isEmpty()) {
+            return;
+        }
+
+        int[] ids = new int[mQueries.size()];
+        long[] nanos = new long[ids.length];
+        int[] result = new int[1];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = mQueries.get(i);
+            glGetQueryObjectuiv(ids[i], GL_QUERY_RESULT, result, 0);
+            nanos[i] = result[0] & 0xFFFFFFFFL;
+        }
+
+        // A disjoint operation such as a frequency change makes all results meaningless.
+        int[] disjoint = new int[1];
+        glGetIntegerv(GL_GPU_DISJOINT_EXT, disjoint, 0);
+        if (disjoint[0] == 0) {
+            for (int i = 0; i < ids.length; i++) {
+                timer.addGpu(mQueryStages.get(i), nanos[i]);
+            }
+        }
+
+        glDeleteQueries(ids.length, ids, 0);
+        mQueryStages.clear();
+        mQueries.clear();
+    }
+
+    private static void waitIdle() {
+        long sync = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        glClientWaitSync(sync, GL_SYNC_FLUSH_COMMANDS_BIT, GL_TIMEOUT_IGNORED);
+        glDeleteSync(sync);
+    }
+}
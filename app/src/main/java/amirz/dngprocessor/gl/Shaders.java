@@ -15,6 +15,13 @@ public class Shaders {
     public static String FS1;
     public static String FS2;
     public static String FS3;
+    public static String FS_MERGE;
+    public static String FS_DOWNSCALE;
+    public static String FS_TONEMAP;
+
+    // Compute shaders, only used with OpenGL ES 3.1
+    public static String CS_ANALYSIS;
+    public static String CS3;
 
     public static void load(Context context) {
         Resources res = context.getResources();
@@ -24,6 +31,12 @@ public class Shaders {
         FS1 = readRaw(res, R.raw.stage1_fs);
         FS2 = readRaw(res, R.raw.stage2_fs);
         FS3 = readRaw(res, R.raw.stage3_fs);
+        FS_MERGE = readRaw(res, R.raw.merge_fs);
+        FS_DOWNSCALE = readRaw(res, R.raw.downscale_fs);
+        FS_TONEMAP = readRaw(res, R.raw.tonemap_fs);
+
+        CS_ANALYSIS = readRaw(res, R.raw.analysis_cs);
+        CS3 = toCompute(FS3);
     }
 
     private static String readRaw(Resources res, int resId) {
@@ -43,4 +56,36 @@ public class Shaders {
             return null;
         }
     }
+
+    /**
+     * Turns a fragment shader that has a compute entry point into the source of that compute
+     * shader, by raising its version and defining COMPUTE.
+     */
+    private static String toCompute(String shader) {
+        int versionEnd = shader.indexOf('\n') + 1;
+        return "#version 310 es\n#define COMPUTE\n" + shader.substring(versionEnd);
+    }
+
+    /**
+     * Creates a variant of a shader by inserting preprocessor definitions after its version
+     * directive. Configuration that is fixed for a whole image is compiled in this way, so the
+     * shader does not have to branch on it for every pixel.
+     * @param shader Source code of the shader, starting with a #version line.
+     * @param defines Definitions to insert, such as "DENOISE" or "CFA_PATTERN 0".
+     * @return Specialized source code.
+     */
+    public static String specialize(String shader, String... defines) {
+        int versionEnd = shader.indexOf('\n') + 1;
+
+        StringBuilder text = new StringBuilder();
+        text.append(shader, 0, versionEnd);
+        for (String define : defines) {
+            text.append("#define ");
+            text.append(define);
+            text.append('\n');
+        }
+        text.append(shader, versionEnd, shader.length());
+
+        return text.toString();
+    }
 }
@@ -2,143 +2,259 @@ package amirz.dngprocessor.parser;
 
 import android.content.Context;
 import android.content.Intent;
-import android.graphics.Bitmap;
 import android.support.media.ExifInterface;
 import android.net.Uri;
 import android.util.Log;
-import android.util.Rational;
-import android.util.SparseArray;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 import amirz.dngprocessor.NotifHandler;
 import amirz.dngprocessor.Path;
 import amirz.dngprocessor.Settings;
+import amirz.dngprocessor.Utilities;
 import amirz.dngprocessor.gl.RawConverter;
 import amirz.dngprocessor.gl.Shaders;
+import amirz.dngprocessor.jpeg.ExifWriter;
+import amirz.dngprocessor.jpeg.JpegEncoder;
+import amirz.dngprocessor.jpeg.RowSink;
+import amirz.dngprocessor.jpeg.ScaledSink;
+import amirz.dngprocessor.jpeg.TeeSink;
+import amirz.dngprocessor.jpeg.ThumbnailSink;
+import amirz.dngprocessor.math.Rational;
+import amirz.dngprocessor.params.AnalysisParams;
+import amirz.dngprocessor.params.CostEstimate;
 import amirz.dngprocessor.params.Presets;
 import amirz.dngprocessor.params.ProcessParams;
 import amirz.dngprocessor.params.SensorParams;
+import amirz.dngprocessor.stats.StageTimer;
+import amirz.dngprocessor.stats.TimingHistory;
 
 public class DngParser {
     private static final String TAG = "DngParser";
     private static final int JPEG_QUALITY = 95;
+    private static final int SHARE_SIZE = 2048;
+    private static final int THUMBNAIL_SIZE = 160;
+    private static final int THUMBNAIL_CAPACITY = 32 * 1024;
 
+    // Only rendering reports progress, as reading and saving overlap with other images
     private static int STEPS = 0;
     private static final int STEP_READ = STEPS++;
     private static final int STEP_PROCESS_INIT = STEPS++;
     private static final int STEP_PROCESS_SENSOR = STEPS++;
     private static final int STEP_PROCESS_XYZ = STEPS++;
-    private static final int STEP_SAVE = STEPS++;
     private static final int STEP_META = STEPS++;
 
     private final Context mContext;
     private final Uri mUri;
-    private final String mFile;
+    private final List<Uri> mBurst;
+    private volatile String mFile;
+    private final StageTimer mTimer = new StageTimer();
+
+    // State handed from one phase to the next, released as soon as it is no longer needed.
+    private ExifInterface mExif;
+    private Map<Integer, TIFFTag> mTags;
+    private SensorParams mSensor;
+    private ProcessParams mProcess;
+    private byte[] mRawImageInput;
+    private List<byte[]> mBurstFrames; // Raw planes of the other frames that can be merged
+    private CostEstimate mCost;
+    private int mOutWidth, mOutHeight;
+    private String mSavePath;
+    private String mSharePath;
 
     public DngParser(Context context, Uri uri) {
+        this(context, uri, Collections.emptyList());
+    }
+
+    /**
+     * @param uri Reference frame, which also determines the metadata of the result.
+     * @param burst Other frames of the same scene to merge into the reference frame.
+     */
+    public DngParser(Context context, Uri uri, List<Uri> burst) {
+        this(context, uri, burst, null);
+    }
+
+    /**
+     * @param file Display name of the reference frame, or null to look it up when parsing, as
+     *             the provider may be too slow to query on the main thread.
+     */
+    public DngParser(Context context, Uri uri, List<Uri> burst, String file) {
         mContext = context;
         mUri = uri;
-        mFile = Path.getFileFromUri(mContext, mUri);
+        mBurst = burst;
+        mFile = file;
+    }
+
+    public Uri getUri() {
+        return mUri;
+    }
+
+    public List<Uri> getBurst() {
+        return mBurst;
+    }
+
+    /**
+     * @return Display name of the reference frame, or the uri until parsing has looked it up.
+     */
+    public String getFile() {
+        String file = mFile;
+        return file == null ? mUri.toString() : file;
     }
 
     public void run() {
-        NotifHandler.progress(mContext, STEPS, STEP_READ);
+        parse();
+        render();
+        save();
+    }
 
+    /**
+     * Reads the file and its tags. Safe on any thread.
+     */
+    public void parse() {
+        if (mFile == null) {
+            mFile = Path.getFileFromUri(mContext, mUri);
+        }
+
+        mTimer.begin("read");
         ByteReader.ReaderWithExif reader = ByteReader.fromUri(mContext, mUri);
+        mTimer.end();
         Log.e(TAG, "Starting processing of " + mFile + " (" + mUri.getPath() + ") size " +
                 reader.length);
 
         ByteBuffer wrap = reader.wrap;
 
-        byte[] format = { wrap.get(), wrap.get() };
-        if (!new String(format).equals("II"))
-            throw new ParseException("Can only parse Intel byte order");
-
-        short version = wrap.getShort();
-        if (version != 42)
-            throw new ParseException("Can only parse v42");
-
-        int start = wrap.getInt();
-        wrap.position(start);
-
-        SparseArray<TIFFTag> tags = parseTags(wrap);
-
-        TIFFTag subIFD = tags.get(TIFF.TAG_SubIFDs);
-        TIFFTag type = tags.get(TIFF.TAG_NewSubfileType);
-        if (subIFD != null && type != null && type.getInt() == 1) {
-            wrap.position(subIFD.getInt());
-            SparseArray<TIFFTag> subTags = parseTags(wrap);
-            for (int i = 0; i < subTags.size(); i++) {
-                tags.put(subTags.keyAt(i), subTags.valueAt(i));
+        mTimer.begin("parse");
+        mExif = reader.exif;
+        mTags = TagParser.parse(wrap);
+        mSensor = TagParser.readSensor(mTags, Settings.forwardMatrix(mContext));
+        mRawImageInput = TagParser.readRawPlane(mTags, mSensor, wrap);
+        mTimer.end();
+
+        // Reading the other frames would stall the GL thread that all jobs share, so only their
+        // raw planes are handed to rendering
+        mBurstFrames = new ArrayList<>();
+        for (Uri frameUri : mBurst) {
+            mTimer.begin("read");
+            byte[] frame = readBurstFrame(frameUri, mSensor);
+            mTimer.end();
+            if (frame != null) {
+                mBurstFrames.add(frame);
             }
         }
 
-        //int rowsPerStrip = tags.get(TIFF.TAG_RowsPerStrip).getInt();
-        //if (rowsPerStrip != 1)
-        //    throw new ParseException("Can only parse RowsPerStrip = 1");
-
-        SensorParams sensor = new SensorParams();
-
-        // Continue image parsing.
-        sensor.inputHeight = tags.get(TIFF.TAG_ImageLength).getInt();
-        sensor.inputWidth = tags.get(TIFF.TAG_ImageWidth).getInt();
-
-        int[] stripOffsets = tags.get(TIFF.TAG_StripOffsets).getIntArray();
-        int[] stripByteCounts = tags.get(TIFF.TAG_StripByteCounts).getIntArray();
+        // Downscaled exports are rendered at their final size
+        int outWidth = mSensor.outputWidth;
+        int outHeight = mSensor.outputHeight;
+        int outPixels = Settings.outputMegapixels(mContext) * 1000000;
+        if (outPixels > 0 && outPixels < outWidth * outHeight) {
+            double scale = Math.sqrt((double) outPixels / (outWidth * outHeight));
+            outWidth = (int) Math.round(outWidth * scale);
+            outHeight = (int) Math.round(outHeight * scale);
+        }
 
-        if (stripOffsets.length != stripByteCounts.length) {
-            throw new RuntimeException("StripOffsets was not equal to StripByteCounts");
+        mProcess = new ProcessParams();
+        mProcess.denoiseFactor = Settings.noiseReduce(mContext) ? 3000 : 0;
+        mProcess.intermediateFormat = Settings.intermediateFormat(mContext);
+        mProcess.localTonemap = Settings.localTonemap(mContext);
+        Presets.apply(Settings.postProcess(mContext), mTags, mSensor, mProcess);
+
+        // Images that do not fit are split into strips, or rendered smaller as a last resort.
+        // The raw plane is part of the estimate, so it is not counted against the budget.
+        mCost = CostEstimate.choose(mSensor, mProcess, mBurstFrames.size() + 1,
+                outWidth, outHeight, Utilities.heapBudget() + mRawImageInput.length
+                        + mBurstFrames.size() * (long) mRawImageInput.length,
+                Utilities.gpuBudget(mContext));
+        mOutWidth = mCost.outWidth;
+        mOutHeight = mCost.outHeight;
+        Log.w(TAG, "Processing " + mFile + " as " + mCost);
+        if (mCost.mode == CostEstimate.Mode.Tiled && mProcess.localTonemap) {
+            Log.w(TAG, "Local tone mapping needs the full frame, it is skipped for strips");
+            mProcess.localTonemap = false;
         }
+    }
 
-        sensor.inputStride = stripByteCounts[0];
+    /**
+     * Estimates the heap that parsing this job will take, before its file is read.
+     * @return Bytes, or zero when the size of the file is not known.
+     */
+    public long estimateHeapBytes() {
+        return CostEstimate.heapBeforeParse(Path.getSizeFromUri(mContext, mUri),
+                mBurst.size() + 1);
+    }
 
-        byte[] rawImageInput = new byte[sensor.inputWidth * sensor.inputHeight * 2];
-        int rawImageOffset = 0;
-        for (int i = 0; i < stripOffsets.length; i++) {
-            ((ByteBuffer) wrap.position(stripOffsets[i]))
-                    .get(rawImageInput, rawImageOffset, stripByteCounts[i]);
-            rawImageOffset += stripByteCounts[i];
+    /**
+     * Converts the raw data and encodes the JPEG, its thumbnail and the optional share copy
+     * while the rows are rendered. Must run on a thread that may own an EGL context, and
+     * consumes the raw data read by {@link #parse()}.
+     */
+    public void render() {
+        NotifHandler.progress(mContext, STEPS, STEP_PROCESS_INIT);
+        Shaders.load(mContext);
+        mSavePath = Path.processedPath(Settings.savePath(mContext), mFile);
+
+        mSharePath = Settings.shareCopy(mContext) ? Path.sharePath(mSavePath) : null;
+
+        // The metadata is part of the stream, so the file is written exactly once, apart from
+        // the thumbnail that is filled in after all rows were seen
+        mTimer.begin("exif");
+        ExifWriter exif = buildExif();
+        exif.reserveThumbnail(THUMBNAIL_CAPACITY);
+        mTimer.end();
+
+        ThumbnailSink thumbnail = new ThumbnailSink(mOutWidth, mOutHeight,
+                THUMBNAIL_SIZE, THUMBNAIL_CAPACITY);
+
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(mSavePath));
+             OutputStream shareOut = mSharePath == null ? null
+                     : new BufferedOutputStream(new FileOutputStream(mSharePath))) {
+            RowSink sink = createSink(out, shareOut, exif, thumbnail);
+            if (mCost.mode == CostEstimate.Mode.Tiled) {
+                renderTiled(sink);
+            } else {
+                renderFrame(sink);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
 
-        sensor.cfa = CFAPattern.get(tags.get(TIFF.TAG_CFAPattern).getIntArray());
-        sensor.blackLevelPattern = tags.get(TIFF.TAG_BlackLevel).getIntArray();
-        sensor.whiteLevel = tags.get(TIFF.TAG_WhiteLevel).getInt();
-        sensor.referenceIlluminant1 = tags.get(TIFF.TAG_CalibrationIlluminant1).getInt();
-        sensor.referenceIlluminant2 = tags.get(TIFF.TAG_CalibrationIlluminant2).getInt();
-        sensor.calibrationTransform1 = tags.get(TIFF.TAG_CameraCalibration1).getFloatArray();
-        sensor.calibrationTransform2 = tags.get(TIFF.TAG_CameraCalibration2).getFloatArray();
-        sensor.colorMatrix1 = tags.get(TIFF.TAG_ColorMatrix1).getFloatArray();
-        sensor.colorMatrix2 = tags.get(TIFF.TAG_ColorMatrix2).getFloatArray();
-        if (Settings.forwardMatrix(mContext)) {
-            TIFFTag fm1 = tags.get(TIFF.TAG_ForwardMatrix1);
-            TIFFTag fm2 = tags.get(TIFF.TAG_ForwardMatrix2);
-            if (fm1 != null && fm2 != null) {
-                sensor.forwardTransform1 = fm1.getFloatArray();
-                sensor.forwardTransform2 = fm2.getFloatArray();
+        mTimer.begin("exif");
+        byte[] jpeg = thumbnail.getJpeg();
+        if (jpeg != null) {
+            try (RandomAccessFile file = new RandomAccessFile(mSavePath, "rw")) {
+                exif.writeThumbnail(file, jpeg);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not write thumbnail", e);
             }
         }
-        sensor.neutralColorPoint = tags.get(TIFF.TAG_AsShotNeutral).getRationalArray();
-        //LensShadingMap shadingMap = dynamicMetadata.get(CaptureResult.STATISTICS_LENS_SHADING_CORRECTION_MAP);
-
-        int[] defaultCropOrigin = tags.get(TIFF.TAG_DefaultCropOrigin).getIntArray();
-        sensor.outputOffsetX = defaultCropOrigin[0];
-        sensor.outputOffsetY = defaultCropOrigin[1];
-
-        int[] defaultCropSize = tags.get(TIFF.TAG_DefaultCropSize).getIntArray();
-        Bitmap argbOutput = Bitmap.createBitmap(defaultCropSize[0], defaultCropSize[1], Bitmap.Config.ARGB_8888);
-
-        ProcessParams process = new ProcessParams();
-        process.denoiseFactor = Settings.noiseReduce(mContext) ? 3000 : 0;
-        Presets.apply(Settings.postProcess(mContext), tags, sensor, process);
+        mTimer.end();
+    }
 
-        NotifHandler.progress(mContext, STEPS, STEP_PROCESS_INIT);
-        Shaders.load(mContext);
-        try (RawConverter converter = new RawConverter(sensor, process, rawImageInput, argbOutput)) {
+    private void renderFrame(RowSink sink) {
+        try (RawConverter converter = new RawConverter(mSensor, mProcess, mRawImageInput,
+                mOutWidth, mOutHeight, sink, mTimer)) {
             Log.w(TAG, "Raw conversion 1/3");
+            mRawImageInput = null;
+
+            if (!mBurstFrames.isEmpty()) {
+                // Every plane is dropped once it is merged
+                int frames = mBurstFrames.size() + 1;
+                converter.startBurst(frames);
+                while (!mBurstFrames.isEmpty()) {
+                    converter.mergeFrame(mBurstFrames.remove(mBurstFrames.size() - 1));
+                }
+                Log.w(TAG, "Merged burst of " + frames + " frames");
+            }
 
             NotifHandler.progress(mContext, STEPS, STEP_PROCESS_SENSOR);
             converter.sensorToIntermediate();
@@ -148,126 +264,226 @@ public class DngParser {
             converter.intermediateToOutput();
             Log.w(TAG, "Raw conversion 3/3");
         }
+    }
 
-        NotifHandler.progress(mContext, STEPS, STEP_SAVE);
-        String savePath = Path.processedPath(Settings.savePath(mContext), mFile);
-        try (FileOutputStream out = new FileOutputStream(savePath)) {
-            argbOutput.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
-        } catch (Exception e) {
-            e.printStackTrace();
+    /**
+     * Renders the frame in strips that each fit in memory. All strips use the statistics of
+     * the whole frame, so their tones and noise reduction match at the seams and the full
+     * render. Those are combined from a first pass that only analyzes every strip, as the
+     * intermediate of the whole frame does not fit at once.
+     */
+    private void renderTiled(RowSink sink) {
+        int strips = mCost.strips;
+        int[] outRows = new int[strips + 1];
+        for (int i = 0; i <= strips; i++) {
+            outRows[i] = (int) ((long) mOutHeight * i / strips);
         }
 
-        NotifHandler.progress(mContext, 3, 2);
-        argbOutput.recycle();
-
-        NotifHandler.progress(mContext, STEPS, STEP_META);
-
-        try {
-            ExifInterface newExif = new ExifInterface(savePath);
-            copyAttributes(reader.exif, newExif);
+        // Every strip finishes its readback, but the outputs only finish after the last strip
+        RowSink stripSink = new RowSink() {
+            @Override
+            public void onRows(int[] pixels, int offset, int rows) {
+                sink.onRows(pixels, offset, rows);
+            }
 
-            if (tags.get(TIFF.TAG_FocalLength) != null) {
-                newExif.setAttribute(ExifInterface.TAG_FOCAL_LENGTH,
-                        tags.get(TIFF.TAG_FocalLength).getRational().toString());
+            @Override
+            public void finish() {
             }
+        };
 
-            if (tags.get(TIFF.TAG_FNumber) != null) {
-                newExif.setAttribute(ExifInterface.TAG_APERTURE_VALUE,
-                        tags.get(TIFF.TAG_FNumber).getRational().toString());
+        NotifHandler.progress(mContext, STEPS, STEP_PROCESS_SENSOR);
+        List<AnalysisParams> parts = new ArrayList<>();
+        for (int i = 0; i < strips; i++) {
+            try (RawConverter converter = forStrip(outRows, i, stripSink, null)) {
+                converter.sensorToIntermediate();
+                parts.add(converter.getAnalysis());
             }
+        }
+        AnalysisParams analysis = AnalysisParams.combine(parts, mProcess.histEqualization,
+                mProcess.stretchPerc);
+        Log.w(TAG, "Analyzed " + strips + " strips");
+
+        NotifHandler.progress(mContext, STEPS, STEP_PROCESS_XYZ);
+        for (int i = 0; i < strips; i++) {
+            try (RawConverter converter = forStrip(outRows, i, stripSink, analysis)) {
+                converter.sensorToIntermediate();
+                converter.intermediateToOutput();
+            }
+            Log.w(TAG, "Raw conversion of strip " + (i + 1) + "/" + strips);
+        }
+        mRawImageInput = null;
+        sink.finish();
+    }
+
+    private RawConverter forStrip(int[] outRows, int strip, RowSink sink,
+                                  AnalysisParams analysis) {
+        // Strips are mapped to the default crop by rounding down, so none is shorter than its
+        // output rows
+        int top = (int) ((long) mSensor.outputHeight * outRows[strip] / mOutHeight);
+        int bottom = (int) ((long) mSensor.outputHeight * outRows[strip + 1] / mOutHeight);
+        return RawConverter.forRegion(mSensor, mProcess, mRawImageInput,
+                mOutWidth, outRows[strip + 1] - outRows[strip], sink, mTimer,
+                0, top, mSensor.outputWidth, bottom - top, analysis);
+    }
+
+    /**
+     * Fans the rendered rows out to every output, so each is built from the same readback.
+     */
+    private RowSink createSink(OutputStream out, OutputStream shareOut, ExifWriter exif,
+                               ThumbnailSink thumbnail) {
+        RowSink full = new JpegEncoder(out, mOutWidth, mOutHeight, JPEG_QUALITY, exif);
+        if (shareOut == null) {
+            return new TeeSink(full, thumbnail);
+        }
+
+        int factor = ScaledSink.factorFor(mOutWidth, mOutHeight, SHARE_SIZE);
+        int shareWidth = (mOutWidth + factor - 1) / factor;
+        int shareHeight = (mOutHeight + factor - 1) / factor;
+        RowSink share = new ScaledSink(mOutWidth, mOutHeight, factor, new JpegEncoder(shareOut,
+                shareWidth, shareHeight, JPEG_QUALITY, buildExif()));
+        return new TeeSink(full, share, thumbnail);
+    }
+
+    /**
+     * Records the timings of the job and announces the encoded file. Safe on any thread.
+     */
+    public void save() {
+        Log.w(TAG, "Timings of " + mFile + ": " + mTimer);
+        // Runs with local tone mapping keep their own history, so both paths can be compared
+        TIFFTag model = mTags.get(TIFF.TAG_Model);
+        String history = model == null ? "Unknown" : model.toString().trim();
+        if (mProcess.localTonemap) {
+            history += " local tonemap";
+        }
+        Log.w(TAG, TimingHistory.record(mContext, history, mTimer));
+
+        mContext.sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE,
+                Uri.fromFile(new File(mSavePath))));
+        if (mSharePath != null) {
+            mContext.sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE,
+                    Uri.fromFile(new File(mSharePath))));
+        }
+    }
+
+    /**
+     * Drops the image data held by this job, also when one of its phases failed.
+     */
+    public void release() {
+        mRawImageInput = null;
+        mBurstFrames = null;
+    }
 
-            if (tags.get(TIFF.TAG_ExposureTime) != null) {
-                newExif.setAttribute(ExifInterface.TAG_EXPOSURE_TIME,
-                        String.valueOf(tags.get(TIFF.TAG_ExposureTime).getFloat()));
+    /**
+     * Deletes the outputs of a job that failed or was cancelled, as they may be incomplete.
+     */
+    public void discard() {
+        for (String path : new String[] { mSavePath, mSharePath }) {
+            if (path != null && new File(path).delete()) {
+                Log.w(TAG, "Discarded " + path);
             }
+        }
+    }
 
-            if (tags.get(TIFF.TAG_ISOSpeedRatings) != null) {
-                newExif.setAttribute(ExifInterface.TAG_PHOTOGRAPHIC_SENSITIVITY,
-                        String.valueOf(tags.get(TIFF.TAG_ISOSpeedRatings).getInt()));
+    private byte[] readBurstFrame(Uri uri, SensorParams reference) {
+        ByteReader.ReaderWithExif reader = ByteReader.fromUri(mContext, uri);
+        if (reader == null) {
+            Log.w(TAG, "Skipping unreadable burst frame " + uri.getPath());
+            return null;
+        }
+
+        try {
+            Map<Integer, TIFFTag> tags = TagParser.parse(reader.wrap);
+            SensorParams sensor = TagParser.readSensor(tags, false);
+            if (sensor.inputWidth != reference.inputWidth
+                    || sensor.inputHeight != reference.inputHeight
+                    || sensor.cfa != reference.cfa) {
+                Log.w(TAG, "Skipping burst frame " + uri.getPath() + " with a different sensor layout");
+                return null;
             }
+            return TagParser.readRawPlane(tags, sensor, reader.wrap);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Skipping burst frame " + uri.getPath(), e);
+            return null;
+        }
+    }
 
-            newExif.saveAttributes();
-        } catch (Exception e) {
-            e.printStackTrace();
+    /**
+     * Collects the metadata of the result from the EXIF of the DNG and its TIFF tags.
+     */
+    private ExifWriter buildExif() {
+        ExifWriter exif = new ExifWriter();
+        copyAttributes(mExif, exif);
+
+        TIFFTag focalLength = mTags.get(TIFF.TAG_FocalLength);
+        if (focalLength != null) {
+            exif.setRational(ExifWriter.TAG_FOCAL_LENGTH, focalLength.getRational());
         }
 
-        mContext.sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE,
-                Uri.fromFile(new File(savePath))));
+        TIFFTag fNumber = mTags.get(TIFF.TAG_FNumber);
+        if (fNumber != null) {
+            exif.setRational(ExifWriter.TAG_F_NUMBER, fNumber.getRational());
+        }
 
-        NotifHandler.progress(mContext, STEPS, STEPS);
+        TIFFTag exposureTime = mTags.get(TIFF.TAG_ExposureTime);
+        if (exposureTime != null) {
+            exif.setRational(ExifWriter.TAG_EXPOSURE_TIME, exposureTime.getRational());
+        }
+
+        TIFFTag iso = mTags.get(TIFF.TAG_ISOSpeedRatings);
+        if (iso != null) {
+            exif.setShort(ExifWriter.TAG_ISO_SPEED_RATINGS, iso.getInt());
+        }
+
+        return exif;
     }
 
-    @SuppressWarnings("deprecation")
-    private static void copyAttributes(ExifInterface oldExif, ExifInterface newExif) {
-        String[] tags = {
-                ExifInterface.TAG_ORIENTATION,
+    private static void copyAttributes(ExifInterface oldExif, ExifWriter newExif) {
+        String[] asciiTags = {
                 ExifInterface.TAG_DATETIME,
                 ExifInterface.TAG_MAKE,
                 ExifInterface.TAG_MODEL,
                 ExifInterface.TAG_SOFTWARE,
-                ExifInterface.TAG_X_RESOLUTION,
-                ExifInterface.TAG_Y_RESOLUTION,
+        };
+        int[] asciiIds = {
+                ExifWriter.TAG_DATETIME,
+                ExifWriter.TAG_MAKE,
+                ExifWriter.TAG_MODEL,
+                ExifWriter.TAG_SOFTWARE,
         };
 
-        for (String tag : tags) {
-            String value = oldExif.getAttribute(tag);
+        for (int i = 0; i < asciiTags.length; i++) {
+            String value = oldExif.getAttribute(asciiTags[i]);
             if (value != null) {
-                newExif.setAttribute(tag, value);
+                newExif.setAscii(asciiIds[i], value);
             }
         }
-    }
-
-    private static SparseArray<TIFFTag> parseTags(ByteBuffer wrap) {
-        short tagCount = wrap.getShort();
-        SparseArray<TIFFTag> tags = new SparseArray<>(tagCount);
-
-        for (int tagNum = 0; tagNum < tagCount; tagNum++) {
-            short tag = wrap.getShort();
-            short type = wrap.getShort();
-            int elementCount = wrap.getInt();
-            int elementSize = TIFF.TYPE_SIZES.get(type);
 
-            byte[] buffer = new byte[Math.max(4, elementCount * elementSize)];
-            if (buffer.length == 4) {
-                wrap.get(buffer);
-            } else {
-                int dataPos = wrap.getInt();
-                independentMove(wrap, dataPos).get(buffer);
-            }
-
-            ByteBuffer valueWrap = ByteReader.wrap(buffer);
-            Object[] values = new Object[elementCount];
-            for (int elementNum = 0; elementNum < elementCount; elementNum++) {
-                if (type == TIFF.TYPE_Byte) {
-                    values[elementNum] = valueWrap.get() & 0xFF;
-                } else if (type == TIFF.TYPE_String) {
-                    values[elementNum] = (char) valueWrap.get();
-                } else if (type == TIFF.TYPE_UInt_16) {
-                    values[elementNum] = valueWrap.getShort() & 0xFFFF;
-                } else if (type == TIFF.TYPE_UInt_32) {
-                    values[elementNum] = valueWrap.getInt();
-                } else if (type == TIFF.TYPE_UFrac) {
-                    values[elementNum] = new Rational(valueWrap.getInt(), valueWrap.getInt());
-                } else if (type == TIFF.TYPE_Frac) {
-                    values[elementNum] = new Rational(valueWrap.getInt(), valueWrap.getInt());
-                } else if (type == TIFF.TYPE_Double) {
-                    values[elementNum] = valueWrap.getDouble();
-                }
-            }
-
-            tags.append(tag & 0xFFFF, new TIFFTag(type, values));
+        int orientation = oldExif.getAttributeInt(ExifInterface.TAG_ORIENTATION, 0);
+        if (orientation > 0) {
+            newExif.setShort(ExifWriter.TAG_ORIENTATION, orientation);
         }
 
-        return tags;
-    }
+        Rational xResolution = parseRational(oldExif.getAttribute(ExifInterface.TAG_X_RESOLUTION));
+        if (xResolution != null) {
+            newExif.setRational(ExifWriter.TAG_X_RESOLUTION, xResolution);
+        }
 
-    private static ByteBuffer independentMove(ByteBuffer wrap, int position) {
-        return (ByteBuffer) wrap.duplicate().order(ByteOrder.LITTLE_ENDIAN).position(position);
+        Rational yResolution = parseRational(oldExif.getAttribute(ExifInterface.TAG_Y_RESOLUTION));
+        if (yResolution != null) {
+            newExif.setRational(ExifWriter.TAG_Y_RESOLUTION, yResolution);
+        }
     }
 
-    private class ParseException extends RuntimeException {
-        private ParseException(String s) {
-            super(s);
+    private static Rational parseRational(String value) {
+        if (value != null) {
+            String[] parts = value.split("/");
+            try {
+                return new Rational(Integer.parseInt(parts[0].trim()),
+                        parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Unparsable rational " + value);
+            }
         }
+        return null;
     }
 }
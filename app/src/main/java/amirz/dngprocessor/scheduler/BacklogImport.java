@@ -0,0 +1,169 @@
+package amirz.dngprocessor.scheduler;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import amirz.dngprocessor.Path;
+
+/**
+ * Existing RAW images that have not been processed yet, found with a single MediaStore query
+ * and fed to the pipeline a few at a time. Only the images in flight are journaled, and images
+ * are marked as processed once they are saved, so an import that was stopped continues where it
+ * left off when it is started again, images that were cancelled or failed are tried again, and
+ * pausing only has to stop feeding it.
+ */
+class BacklogImport {
+    private static final String TAG = "BacklogImport";
+
+    // Enough images to keep every worker and the GL thread busy, while the journal stays small
+    private static final int WINDOW = 8;
+
+    private static final String[] PROJECTION = {
+            MediaStore.Images.Media._ID,
+            MediaStore.Images.Media.SIZE,
+            MediaStore.Images.Media.DATE_MODIFIED,
+            MediaStore.Images.Media.MIME_TYPE,
+            MediaStore.Images.Media.DISPLAY_NAME,
+            MediaStore.Images.Media.DATA
+    };
+
+    /**
+     * Looks up all RAW images, oldest first, and drops the ones that were already processed.
+     */
+    static BacklogImport find(Context context) {
+        ProcessedIndex index = ProcessedIndex.get(context);
+        BacklogImport backlog = new BacklogImport();
+        int total = 0;
+
+        try (Cursor cursor = context.getContentResolver().query(
+                MediaStore.Images.Media.EXTERNAL_CONTENT_URI, PROJECTION, Path.RAW_SELECTION,
+                Path.rawSelectionArgs(), MediaStore.Images.Media.DATE_ADDED)) {
+            while (cursor != null && cursor.moveToNext()) {
+                String file = cursor.getString(4);
+                if (!Path.isRaw(cursor.getString(3), file)) {
+                    continue;
+                }
+
+                total++;
+                long id = cursor.getLong(0);
+                long key = ProcessedIndex.key(id, cursor.getLong(1), cursor.getLong(2));
+                if (!index.isProcessed(key)) {
+                    backlog.mUris.add(ContentUris.withAppendedId(
+                            MediaStore.Images.Media.EXTERNAL_CONTENT_URI, id));
+                    backlog.mInfos.add(new Path.UriInfo(file, cursor.getString(5),
+                            cursor.getLong(1), cursor.getString(3)));
+                    backlog.mKeys.add(key);
+                }
+            }
+        }
+
+        Log.w(TAG, "Found " + backlog.size() + " of " + total + " images to import");
+        return backlog;
+    }
+
+    private final List<Uri> mUris = new ArrayList<>();
+    private final List<Path.UriInfo> mInfos = new ArrayList<>();
+    private final List<Long> mKeys = new ArrayList<>();
+    private final Set<Uri> mInFlight = new HashSet<>();
+    private int mNext;
+    private int mDone;
+    private int mSkipped;
+    private boolean mPaused;
+    private long mActiveMs;
+    private long mResumedAt = SystemClock.elapsedRealtime();
+
+    private BacklogImport() {
+    }
+
+    int size() {
+        return mUris.size();
+    }
+
+    boolean isPaused() {
+        return mPaused;
+    }
+
+    boolean isDone() {
+        return mNext == mUris.size() && mInFlight.isEmpty();
+    }
+
+    /**
+     * Takes the images that fill up the window.
+     */
+    List<JobJournal.Entry> next(ProcessedIndex index, JobJournal journal) {
+        List<JobJournal.Entry> entries = new ArrayList<>();
+        while (!mPaused && mInFlight.size() < WINDOW && mNext < mUris.size()) {
+            int i = mNext++;
+
+            // The scan job may have picked it up since the query
+            Uri uri = mUris.get(i);
+            long key = mKeys.get(i);
+            if (index.isProcessed(key) || journal.get(uri) != null) {
+                mSkipped++;
+                continue;
+            }
+
+            // Only images in flight are cached, as the import may be far larger than the cache
+            Path.UriInfo info = mInfos.get(i);
+            Path.remember(uri, info);
+            mInFlight.add(uri);
+            entries.add(new JobJournal.Entry(uri, Collections.emptyList(), info.name, key,
+                    ProcessingPipeline.PRIORITY_BACKGROUND));
+        }
+        return entries;
+    }
+
+    /**
+     * @return False when the image is not part of the import.
+     */
+    boolean finished(Uri uri) {
+        if (mInFlight.remove(uri)) {
+            mDone++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Stops or continues feeding images. Images in flight are not affected, and the time while
+     * paused does not count towards the throughput.
+     */
+    void setPaused(boolean paused) {
+        if (paused == mPaused) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (paused) {
+            mActiveMs += now - mResumedAt;
+        } else {
+            mResumedAt = now;
+        }
+        mPaused = paused;
+    }
+
+    float imagesPerMinute() {
+        long activeMs = mActiveMs;
+        if (!mPaused) {
+            activeMs += SystemClock.elapsedRealtime() - mResumedAt;
+        }
+        return activeMs <= 0 ? 0f : mDone * 60000f / activeMs;
+    }
+
+    String status() {
+        return String.format(Locale.US, "%s %d of %d, %.1f per minute",
+                mPaused ? "Paused import at" : "Imported", mDone + mSkipped, size(),
+                imagesPerMinute());
+    }
+}
@@ -9,6 +9,7 @@ public class BootReceiver extends BroadcastReceiver {
     public void onReceive(Context context, Intent intent) {
         if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
             DngScanJob.scheduleJob(context);
+            DngParseService.resume(context);
         }
     }
 }
@@ -1,15 +1,21 @@
 package amirz.dngprocessor.scheduler;
 
-import android.app.IntentService;
+import android.app.PendingIntent;
+import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.IBinder;
 import android.support.annotation.Nullable;
 import android.util.Log;
 import android.widget.Toast;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
 
 import amirz.dngprocessor.NotifHandler;
 import amirz.dngprocessor.Path;
@@ -18,15 +24,62 @@ import amirz.dngprocessor.parser.DngParser;
 
 import static amirz.dngprocessor.Utilities.ATLEAST_OREO;
 
-public class DngParseService extends IntentService {
+/**
+ * Foreground service that feeds every requested image into a {@link ProcessingPipeline},
+ * and stops itself once the pipeline has drained. One notification covers all images in flight.
+ * Accepted images are kept in a {@link JobJournal} until they finish, and the service is sticky,
+ * so they are resumed when the process was killed. An import of existing images is fed to the
+ * pipeline as earlier images of it finish, and can be paused from the notification.
+ */
+public class DngParseService extends Service {
     private static final String TAG = "DngParseService";
+    private static final String EXTRA_BURST = "burst";
+    private static final String EXTRA_URIS = "uris";
+    private static final String EXTRA_INTERACTIVE = "interactive";
+    private static final String EXTRA_PAUSED = "paused";
+    private static final String ACTION_CANCEL = "amirz.dngprocessor.action.CANCEL";
+    private static final String ACTION_RESUME = "amirz.dngprocessor.action.RESUME";
+    private static final String ACTION_IMPORT = "amirz.dngprocessor.action.IMPORT";
+    private static final String ACTION_PAUSE = "amirz.dngprocessor.action.PAUSE";
+
+    // Jobs that were started this often without finishing are assumed to crash the process
+    private static final int MAX_ATTEMPTS = 2;
 
     public static void runForUri(Context context, Uri uri) {
+        runForBurst(context, Collections.singletonList(uri));
+    }
+
+    /**
+     * Processes several unrelated images with a single start of the service, behind the images
+     * that the user requested.
+     * @param uris Images that were added to the {@link JobJournal} already.
+     */
+    public static void runForUris(Context context, ArrayList<Uri> uris) {
         context = context.getApplicationContext();
 
         Intent intent = new Intent(context, DngParseService.class);
-        intent.setData(uri);
+        intent.putParcelableArrayListExtra(EXTRA_URIS, uris);
+        startForeground(context, intent);
+    }
+
+    /**
+     * Merges multiple frames of the same scene into one result, ahead of background images.
+     * @param uris Frames of the burst, of which the first is used as the reference.
+     */
+    public static void runForBurst(Context context, List<Uri> uris) {
+        context = context.getApplicationContext();
 
+        Intent intent = new Intent(context, DngParseService.class);
+        intent.setData(uris.get(0));
+        if (uris.size() > 1) {
+            intent.putParcelableArrayListExtra(EXTRA_BURST,
+                    new ArrayList<>(uris.subList(1, uris.size())));
+        }
+        intent.putExtra(EXTRA_INTERACTIVE, true);
+        startForeground(context, intent);
+    }
+
+    private static void startForeground(Context context, Intent intent) {
         if (ATLEAST_OREO) {
             context.startForegroundService(intent);
         } else {
@@ -34,38 +87,362 @@ public class DngParseService extends IntentService {
         }
     }
 
-    public DngParseService() {
-        super(TAG);
+    /**
+     * Processes all existing images that were not processed yet, in the background.
+     */
+    public static void runImport(Context context) {
+        context = context.getApplicationContext();
+        startForeground(context, new Intent(context, DngParseService.class)
+                .setAction(ACTION_IMPORT));
+    }
+
+    /**
+     * Stops processing an image before its next phase, and deletes its outputs.
+     * @param uri Image to cancel, or null to cancel all images.
+     */
+    private static Intent cancelIntent(Context context, Uri uri) {
+        Intent intent = new Intent(context, DngParseService.class);
+        intent.setAction(ACTION_CANCEL);
+        intent.setData(uri);
+        return intent;
+    }
+
+    private static Intent pauseIntent(Context context, boolean paused) {
+        Intent intent = new Intent(context, DngParseService.class);
+        intent.setAction(ACTION_PAUSE);
+        intent.putExtra(EXTRA_PAUSED, paused);
+        return intent;
+    }
+
+    /**
+     * Continues the jobs of the journal, after the process was killed while they were pending.
+     * A running service has all of them in flight or finishing already.
+     */
+    public static void resume(Context context) {
+        Context appContext = context.getApplicationContext();
+
+        // The journal is read from disk on first use
+        new Thread(() -> {
+            if (!sRunning && !JobJournal.get(appContext).isEmpty()) {
+                startForeground(appContext, new Intent(appContext, DngParseService.class)
+                        .setAction(ACTION_RESUME));
+            }
+        }, TAG).start();
+    }
+
+    private static volatile boolean sRunning;
+
+    private JobJournal mJournal;
+    private ProcessingPipeline mPipeline;
+    private Handler mHandler;
+    private int mPending;
+    private int mLastStartId;
+    private BacklogImport mImport;
+    private boolean mFinding;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        sRunning = true;
+        mHandler = new Handler(getMainLooper());
+        mJournal = JobJournal.get(this);
+        mPipeline = new ProcessingPipeline(new ProcessingPipeline.Listener() {
+            @Override
+            public void onStarted(DngParser parser) {
+                mJournal.started(parser.getUri());
+            }
+
+            @Override
+            public void onRendering(DngParser parser) {
+                // Each image is rendered in turn, so it can be skipped by the name that is shown
+                NotifHandler.title(DngParseService.this, parser.getFile(),
+                        PendingIntent.getService(DngParseService.this, 2,
+                                cancelIntent(DngParseService.this, parser.getUri()),
+                                PendingIntent.FLAG_UPDATE_CURRENT));
+            }
+
+            @Override
+            public void onFinished(DngParser parser, Exception error) {
+                // Only a saved image is marked, so a later import retries those that were
+                // cancelled or failed. It is in the index before it leaves the journal, so it
+                // is never lost in between.
+                JobJournal.Entry entry = mJournal.get(parser.getUri());
+                if (error == null && entry != null && entry.key != null) {
+                    ProcessedIndex.get(DngParseService.this).markProcessed(entry.key);
+                }
+
+                // Resolving the paths to delete queries the provider, so it stays off the main
+                // thread. Only a saved image is deleted, and saving runs on a worker.
+                if (error == null && Settings.deleteOriginal(DngParseService.this)) {
+                    deleteOriginal(parser.getUri());
+                    for (Uri frameUri : parser.getBurst()) {
+                        deleteOriginal(frameUri);
+                    }
+                }
+                mHandler.post(() -> DngParseService.this.onFinished(parser, error));
+            }
+        }, Settings.workers(this));
     }
 
     @Override
-    protected void onHandleIntent(@Nullable Intent intent) {
-        Uri uri = intent.getData();
-        String file = Path.getFileFromUri(this, uri);
-        Log.e(TAG, "onHandleIntent " + file);
-
-        NotifHandler.create(this, file);
-        try {
-            new DngParser(this, uri).run();
-            if (Settings.deleteOriginal(this)) {
-                String path = Path.getPathFromUri(this, uri);
-                Log.e(TAG, "Deleting " + path);
-                File resolvedFile = new File(path);
-                if (resolvedFile.delete()) {
-                    sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE,
-                            Uri.fromFile(resolvedFile)));
-                } else {
-                    new Handler(getMainLooper()).post(() ->
-                            Toast.makeText(this, "Could not delete " + file,
-                                    Toast.LENGTH_SHORT).show());
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        mLastStartId = startId;
+
+        // A restart after the process was killed has no intent, and resumes the journal
+        if (intent == null || ACTION_RESUME.equals(intent.getAction())) {
+            onResume();
+            return START_STICKY;
+        }
+
+        if (ACTION_CANCEL.equals(intent.getAction())) {
+            onCancel(intent.getData());
+            return START_STICKY;
+        }
+
+        if (ACTION_IMPORT.equals(intent.getAction())) {
+            onImport();
+            return START_STICKY;
+        }
+
+        if (ACTION_PAUSE.equals(intent.getAction())) {
+            onPause(intent.getBooleanExtra(EXTRA_PAUSED, false));
+            return START_STICKY;
+        }
+
+        List<JobJournal.Entry> entries = new ArrayList<>();
+        List<Uri> uris = intent.getParcelableArrayListExtra(EXTRA_URIS);
+        if (uris != null) {
+            for (Uri uri : uris) {
+                // Gone when a resume of the journal has finished it already
+                JobJournal.Entry entry = mJournal.get(uri);
+                if (entry != null) {
+                    entries.add(entry);
                 }
             }
-        } catch (Exception e) {
-            e.printStackTrace();
-            new Handler(getMainLooper()).post(() ->
-                    Toast.makeText(this, "DNG Processor could not load " + file,
+        } else {
+            int priority = intent.getBooleanExtra(EXTRA_INTERACTIVE, false)
+                    ? ProcessingPipeline.PRIORITY_INTERACTIVE
+                    : ProcessingPipeline.PRIORITY_BACKGROUND;
+            List<Uri> burst = intent.getParcelableArrayListExtra(EXTRA_BURST);
+            if (burst == null) {
+                burst = Collections.emptyList();
+            }
+            entries.add(new JobJournal.Entry(intent.getData(), burst, null, null, priority));
+        }
+
+        submit(entries);
+        return START_STICKY;
+    }
+
+    private void onResume() {
+        List<JobJournal.Entry> entries = new ArrayList<>();
+        for (JobJournal.Entry entry : mJournal.getEntries()) {
+            if (mPipeline.contains(entry.uri)) {
+                // Started by this process, so its attempts did not crash it
+                continue;
+            }
+            if (entry.attempts >= MAX_ATTEMPTS) {
+                Log.w(TAG, "Skipping " + entry.uri + " after " + entry.attempts + " attempts");
+                mJournal.remove(entry.uri);
+            } else {
+                entries.add(entry);
+            }
+        }
+        Log.w(TAG, "Resuming " + entries.size() + " images");
+        submit(entries);
+    }
+
+    private void submit(List<JobJournal.Entry> entries) {
+        String first = null;
+        for (JobJournal.Entry entry : entries) {
+            enqueue(entry);
+            if (first == null) {
+                first = entry.name;
+            }
+        }
+
+        // Every foreground start has to be answered, even when the service is already running.
+        // Names that are not known yet are shown once the image is rendered.
+        showNotification(first == null ? "" : first);
+        if (isIdle()) {
+            NotifHandler.done(this);
+            stopSelf(mLastStartId);
+        }
+    }
+
+    /**
+     * Builds the job without querying the provider, which is left to the ingest worker.
+     */
+    private void enqueue(JobJournal.Entry entry) {
+        DngParser parser = new DngParser(this, entry.uri, entry.burst, entry.name);
+        Log.e(TAG, "onStartCommand " + parser.getFile());
+
+        // The job is journaled before it can start, and the write is on disk before it does any
+        // work. Images of the scan job were written already, and those of an import are found
+        // again when they are lost before that.
+        mJournal.add(entry);
+        if (mPipeline.submit(parser, entry.priority)) {
+            mPending++;
+        }
+    }
+
+    private void showNotification(String name) {
+        NotifHandler.create(this, name, mPending,
+                PendingIntent.getService(this, 0, cancelIntent(this, null), 0));
+    }
+
+    private boolean isIdle() {
+        return mPending == 0 && mImport == null && !mFinding;
+    }
+
+    private void onImport() {
+        showNotification("existing images");
+        if (mImport != null || mFinding) {
+            Log.w(TAG, "Import is already running");
+            return;
+        }
+
+        // One query over the whole library is too slow for the main thread
+        mFinding = true;
+        new Thread(() -> {
+            BacklogImport backlog = null;
+            try {
+                backlog = BacklogImport.find(this);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Cannot find images to import", e);
+            }
+            BacklogImport found = backlog;
+            mHandler.post(() -> onFound(found));
+        }, TAG).start();
+    }
+
+    private void onFound(BacklogImport backlog) {
+        if (!mFinding) {
+            // Cancelled while the images were looked up
+            return;
+        }
+        mFinding = false;
+
+        if (backlog == null) {
+            Toast.makeText(this, "DNG Processor could not look up existing images",
+                    Toast.LENGTH_SHORT).show();
+        } else if (backlog.size() == 0) {
+            Toast.makeText(this, "All existing images were already processed",
+                    Toast.LENGTH_SHORT).show();
+        } else {
+            mImport = backlog;
+            feedImport();
+        }
+
+        if (isIdle()) {
+            NotifHandler.done(this);
+            stopSelf(mLastStartId);
+        } else {
+            NotifHandler.pending(this, mPending);
+        }
+    }
+
+    private void onPause(boolean paused) {
+        if (mImport != null) {
+            Log.w(TAG, paused ? "Pausing import" : "Resuming import");
+            mImport.setPaused(paused);
+            feedImport();
+            NotifHandler.pending(this, mPending);
+        }
+
+        // A pause request may arrive after the import has ended
+        if (isIdle()) {
+            NotifHandler.done(this);
+            stopSelf(mLastStartId);
+        }
+    }
+
+    /**
+     * Queues the next images of the import, and ends it once all of them have finished.
+     */
+    private void feedImport() {
+        for (JobJournal.Entry entry : mImport.next(ProcessedIndex.get(this), mJournal)) {
+            enqueue(entry);
+        }
+
+        if (mImport.isDone()) {
+            Log.w(TAG, "Imported " + mImport.size() + " images at "
+                    + mImport.imagesPerMinute() + " per minute");
+            mImport = null;
+            NotifHandler.backlog(this, null, false, null);
+        } else {
+            boolean paused = mImport.isPaused();
+            NotifHandler.backlog(this, mImport.status(), paused, PendingIntent.getService(
+                    this, 1, pauseIntent(this, !paused), PendingIntent.FLAG_UPDATE_CURRENT));
+        }
+    }
+
+    private void onCancel(Uri uri) {
+        if (uri == null) {
+            Log.w(TAG, "Cancelling all images");
+            mImport = null;
+            mFinding = false;
+            NotifHandler.backlog(this, null, false, null);
+            mPipeline.cancelAll();
+        } else if (!mPipeline.cancel(uri)) {
+            Log.w(TAG, "Cannot cancel " + uri + ", it is not being processed");
+        }
+
+        // A cancel request may arrive after the last image has finished
+        if (isIdle()) {
+            NotifHandler.done(this);
+            stopSelf(mLastStartId);
+        }
+    }
+
+    private void onFinished(DngParser parser, Exception error) {
+        mJournal.remove(parser.getUri());
+        if (error instanceof CancellationException) {
+            Log.w(TAG, "Cancelled " + parser.getFile());
+        } else if (error != null) {
+            Toast.makeText(this, "DNG Processor could not load " + parser.getFile(),
+                    Toast.LENGTH_SHORT).show();
+        }
+
+        mPending--;
+        if (mImport != null && mImport.finished(parser.getUri())) {
+            feedImport();
+        }
+
+        if (isIdle()) {
+            NotifHandler.done(this);
+            stopSelf(mLastStartId);
+        } else {
+            NotifHandler.pending(this, mPending);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        sRunning = false;
+        mPipeline.shutdown();
+        super.onDestroy();
+    }
+
+    @Nullable
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    private void deleteOriginal(Uri uri) {
+        String path = Path.getPathFromUri(this, uri);
+        Log.e(TAG, "Deleting " + path);
+        File resolvedFile = new File(path);
+        if (resolvedFile.delete()) {
+            Path.forget(uri);
+            sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE,
+                    Uri.fromFile(resolvedFile)));
+        } else {
+            String file = Path.getFileFromUri(this, uri);
+            mHandler.post(() ->
+                    Toast.makeText(this, "Could not delete " + file,
                             Toast.LENGTH_SHORT).show());
         }
-        NotifHandler.done(this);
     }
 }
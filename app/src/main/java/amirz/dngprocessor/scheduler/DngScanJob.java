@@ -5,21 +5,41 @@ import android.app.job.JobParameters;
 import android.app.job.JobScheduler;
 import android.app.job.JobService;
 import android.content.ComponentName;
-import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.Context;
-import android.content.SharedPreferences;
+import android.database.Cursor;
 import android.net.Uri;
 import android.provider.MediaStore;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
 import amirz.dngprocessor.Path;
 import amirz.dngprocessor.Settings;
-import amirz.dngprocessor.Utilities;
 
 public class DngScanJob extends JobService {
     private static final String TAG = "DngScanJob";
     private static final int SCAN_DNG_JOB = 9500;
 
+    // Changes are collected until the media store has been quiet for a moment, so a burst of
+    // shots is handled as one batch, but never held back for long.
+    private static final long TRIGGER_UPDATE_DELAY_MS = 2000;
+    private static final long TRIGGER_MAX_DELAY_MS = 10000;
+    private static final long OVERFLOW_WINDOW_SECONDS = 60;
+
+    private static final String[] PROJECTION = {
+            MediaStore.Images.Media._ID,
+            MediaStore.Images.Media.SIZE,
+            MediaStore.Images.Media.DATE_MODIFIED,
+            MediaStore.Images.Media.MIME_TYPE,
+            MediaStore.Images.Media.DISPLAY_NAME,
+            MediaStore.Images.Media.DATA
+    };
+
     public static final JobInfo.TriggerContentUri TRIGGER_CONTENT_URI =
             new JobInfo.TriggerContentUri(MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
                     JobInfo.TriggerContentUri.FLAG_NOTIFY_FOR_DESCENDANTS);
@@ -33,7 +53,8 @@ public class DngScanJob extends JobService {
                 sJobInfo = new JobInfo.Builder(SCAN_DNG_JOB,
                         new ComponentName(context.getApplicationContext(), DngScanJob.class))
                         .addTriggerContentUri(DngScanJob.TRIGGER_CONTENT_URI)
-                        .setTriggerContentMaxDelay(1)
+                        .setTriggerContentUpdateDelay(TRIGGER_UPDATE_DELAY_MS)
+                        .setTriggerContentMaxDelay(TRIGGER_MAX_DELAY_MS)
                         .build();
             }
 
@@ -47,41 +68,93 @@ public class DngScanJob extends JobService {
 
     @Override
     public boolean onStartJob(JobParameters params) {
-        boolean backgroundProcess = Settings.backgroundProcess(this);
+        if (params.getTriggeredContentAuthorities() == null) {
+            scheduleJob(this);
+            return false;
+        }
+
+        // Probing MediaStore is too slow for the main thread when many images arrive at once
+        Uri[] uris = params.getTriggeredContentUris();
+        new Thread(() -> {
+            try {
+                scan(uris);
+            } catch (Exception e) {
+                Log.w(TAG, "Scan failed", e);
+            }
+            scheduleJob(this);
+            jobFinished(params, false);
+        }, TAG).start();
+        return true;
+    }
+
+    /**
+     * Looks up all changed images in one query, and hands the new RAW images to the service
+     * as a single batch. The batch is journaled first, so the images are taken by the service
+     * even when the process is killed before it receives them.
+     * @param uris Changed URIs, or null when there were too many to report individually.
+     */
+    private void scan(Uri[] uris) {
+        String selection;
+        if (uris == null) {
+            long since = System.currentTimeMillis() / 1000 - OVERFLOW_WINDOW_SECONDS;
+            selection = MediaStore.Images.Media.DATE_ADDED + " >= " + since;
+        } else {
+            // Every URI is usually reported several times while the file is being written
+            Set<Long> ids = new LinkedHashSet<>();
+            for (Uri uri : uris) {
+                try {
+                    ids.add(ContentUris.parseId(uri.buildUpon().clearQuery().build()));
+                } catch (RuntimeException ignored) {
+                }
+            }
+            if (ids.isEmpty()) {
+                return;
+            }
+            selection = Path.idSelection(ids);
+        }
 
+        ProcessedIndex index = ProcessedIndex.get(this);
+        List<JobJournal.Entry> found = new ArrayList<>();
         StringBuilder sb = new StringBuilder();
         sb.append("onStartJob: Media content has changed: ");
 
-        ContentResolver contentResolver = getContentResolver();
-        SharedPreferences prefs = Utilities.prefs(this);
-
-        if (params.getTriggeredContentAuthorities() != null) {
-            if (params.getTriggeredContentUris() != null) {
-                for (Uri uri : params.getTriggeredContentUris()) {
-                    try {
-                        String file = Path.getFileFromUri(this, uri);
-                        String key = uri.buildUpon().clearQuery().build().toString();
-
-                        // If this is an unprocessed RAW image, process it and save that we did.
-                        if (Path.isRaw(contentResolver, uri, file) && prefs.getBoolean(key, true)) {
-                            prefs.edit().putBoolean(key, false).apply();
-                            if (backgroundProcess) {
-                                DngParseService.runForUri(this, uri);
-                            }
-                            sb.append("PROCESS@");
-                        }
-
-                        sb.append(file);
-                        sb.append(", ");
-                    } catch (Exception ignored) {
-                    }
+        try (Cursor cursor = getContentResolver().query(
+                MediaStore.Images.Media.EXTERNAL_CONTENT_URI, PROJECTION, selection, null,
+                MediaStore.Images.Media._ID)) {
+            while (cursor != null && cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                String file = cursor.getString(4);
+                long key = ProcessedIndex.key(id, cursor.getLong(1), cursor.getLong(2));
+
+                // If this is an unprocessed RAW image, process it.
+                if (Path.isRaw(cursor.getString(3), file) && !index.isProcessed(key)) {
+                    Uri uri = ContentUris.withAppendedId(
+                            MediaStore.Images.Media.EXTERNAL_CONTENT_URI, id);
+                    Path.remember(uri, new Path.UriInfo(file, cursor.getString(5),
+                            cursor.getLong(1), cursor.getString(3)));
+                    found.add(new JobJournal.Entry(uri, Collections.emptyList(), file, key,
+                            ProcessingPipeline.PRIORITY_BACKGROUND));
+                    sb.append("PROCESS@");
                 }
+
+                sb.append(file);
+                sb.append(", ");
             }
         }
-
         Log.w(TAG, sb.toString());
-        scheduleJob(this);
-        return true;
+
+        if (found.isEmpty() || !Settings.backgroundProcess(this)) {
+            return;
+        }
+
+        // Images that are journaled already were reported before, and are in flight
+        ArrayList<Uri> batch = new ArrayList<>();
+        for (JobJournal.Entry entry : JobJournal.get(this).addAll(found)) {
+            batch.add(entry.uri);
+        }
+        if (!batch.isEmpty()) {
+            DngParseService.runForUris(this, batch);
+        }
     }
 
     @Override
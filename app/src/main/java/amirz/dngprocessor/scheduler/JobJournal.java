@@ -0,0 +1,350 @@
+package amirz.dngprocessor.scheduler;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Durable list of the jobs that were accepted but have not finished, so they survive the process
+ * being killed. A job is written when it enters the pipeline and removed once it finished,
+ * and every start is counted, so a job that keeps crashing the process can be skipped.
+ * Changes are appended to a log on a background thread, several at a time, and the log is
+ * rewritten as a list of the remaining jobs once it has grown long. A start is on disk before
+ * the job does any work, together with all records before it, and so is a batch of images that
+ * is accepted in the background.
+ */
+public class JobJournal {
+    private static final String TAG = "JobJournal";
+    private static final String FILE_NAME = "jobs.journal";
+    private static final int VERSION = 3;
+
+    private static final int RECORD_ADD = 0;
+    private static final int RECORD_STARTED = 1;
+    private static final int RECORD_REMOVE = 2;
+
+    // Records in the log beyond those of the remaining jobs, before it is rewritten
+    private static final int COMPACT_RECORDS = 256;
+
+    public static class Entry {
+        public final Uri uri;
+        public final List<Uri> burst;
+        public final String name;
+        public final Long key; // In the ProcessedIndex, or null for images picked by the user
+        public final int priority;
+        public int attempts;
+
+        public Entry(Uri uri, List<Uri> burst, String name, Long key, int priority) {
+            this.uri = uri;
+            this.burst = burst;
+            this.name = name;
+            this.key = key;
+            this.priority = priority;
+        }
+    }
+
+    private static JobJournal sInstance;
+
+    public static synchronized JobJournal get(Context context) {
+        if (sInstance == null) {
+            sInstance = new JobJournal(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private final AtomicFile mFile;
+    private final Map<Uri, Entry> mEntries = new LinkedHashMap<>();
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor(
+            r -> new Thread(r, TAG));
+
+    // Records that were not written yet, and the number of records in the log
+    private final ByteArrayOutputStream mPendingBytes = new ByteArrayOutputStream();
+    private final DataOutputStream mPending = new DataOutputStream(mPendingBytes);
+    private boolean mWriteQueued;
+    private boolean mRewrite;
+    private int mRecords;
+
+    private JobJournal(Context context) {
+        mFile = new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+        load();
+    }
+
+    public synchronized boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<>(mEntries.values());
+    }
+
+    /**
+     * @return The job of an image, or null when it is not recorded.
+     */
+    public synchronized Entry get(Uri uri) {
+        return mEntries.get(uri);
+    }
+
+    /**
+     * Records a job when it is accepted, and writes it in the background. A job that is already
+     * recorded keeps its attempts.
+     * @return False when the job was already recorded at the same or a higher priority.
+     */
+    public synchronized boolean add(Entry entry) {
+        if (!put(entry)) {
+            return false;
+        }
+        queueWrite();
+        return true;
+    }
+
+    /**
+     * Records the jobs of a batch, and returns once they are on disk, so they can be marked as
+     * taken elsewhere without being lost. Not for the main thread.
+     * @return Jobs that were not recorded yet at the same or a higher priority.
+     */
+    public List<Entry> addAll(List<Entry> entries) {
+        List<Entry> added = new ArrayList<>();
+        synchronized (this) {
+            for (Entry entry : entries) {
+                if (put(entry)) {
+                    added.add(entry);
+                }
+            }
+        }
+        if (!added.isEmpty()) {
+            flush();
+        }
+        return added;
+    }
+
+    /**
+     * Counts a start of a job, and returns once it is on disk, so a job that crashes the process
+     * right away has its attempt counted. Not for the main thread.
+     */
+    public void started(Uri uri) {
+        synchronized (this) {
+            Entry entry = mEntries.get(uri);
+            if (entry == null) {
+                return;
+            }
+            entry.attempts++;
+            writeUri(RECORD_STARTED, uri);
+        }
+        flush();
+    }
+
+    public synchronized void remove(Uri uri) {
+        if (mEntries.remove(uri) != null) {
+            writeUri(RECORD_REMOVE, uri);
+            queueWrite();
+        }
+    }
+
+    private boolean put(Entry entry) {
+        Entry existing = mEntries.get(entry.uri);
+        if (existing != null && existing.priority <= entry.priority) {
+            return false;
+        }
+        if (existing != null) {
+            entry.attempts = existing.attempts;
+        }
+        mEntries.put(entry.uri, entry);
+        try {
+            writeAdd(mPending, entry);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        mRecords++;
+        return true;
+    }
+
+    private void writeUri(int type, Uri uri) {
+        try {
+            mPending.writeByte(type);
+            mPending.writeUTF(uri.toString());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        mRecords++;
+    }
+
+    private static void writeAdd(DataOutputStream out, Entry entry) throws IOException {
+        out.writeByte(RECORD_ADD);
+        out.writeUTF(entry.uri.toString());
+        out.writeInt(entry.burst.size());
+        for (Uri frame : entry.burst) {
+            out.writeUTF(frame.toString());
+        }
+        out.writeBoolean(entry.name != null);
+        if (entry.name != null) {
+            out.writeUTF(entry.name);
+        }
+        out.writeBoolean(entry.key != null);
+        if (entry.key != null) {
+            out.writeLong(entry.key);
+        }
+        out.writeInt(entry.priority);
+        out.writeInt(entry.attempts);
+    }
+
+    /**
+     * Schedules a write of the pending records, unless one is already scheduled. All records
+     * that arrive before it runs, such as those of one batch of images, are written together.
+     */
+    private void queueWrite() {
+        if (!mWriteQueued) {
+            mWriteQueued = true;
+            mWriter.execute(this::write);
+        }
+    }
+
+    /**
+     * Writes the pending records on the writer thread, after any write that is queued already,
+     * and waits until they are synced. Must not be called while holding the lock.
+     */
+    private void flush() {
+        try {
+            mWriter.submit(this::write).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Cannot write journal", e);
+        }
+    }
+
+    private void write() {
+        byte[] records;
+        boolean rewrite;
+        synchronized (this) {
+            mWriteQueued = false;
+            rewrite = mRewrite || mRecords > mEntries.size() + COMPACT_RECORDS;
+            if (rewrite) {
+                records = snapshot();
+                mRecords = mEntries.size();
+                mRewrite = false;
+            } else {
+                records = mPendingBytes.toByteArray();
+            }
+            mPendingBytes.reset();
+        }
+
+        if (rewrite) {
+            rewrite(records);
+        } else if (records.length > 0) {
+            append(records);
+        }
+    }
+
+    /**
+     * @return Log that adds all remaining jobs, with their attempts so far.
+     */
+    private byte[] snapshot() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(VERSION);
+            for (Entry entry : mEntries.values()) {
+                writeAdd(out, entry);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void rewrite(byte[] log) {
+        FileOutputStream stream = null;
+        try {
+            stream = mFile.startWrite();
+            stream.write(log);
+            mFile.finishWrite(stream);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write journal", e);
+            if (stream != null) {
+                mFile.failWrite(stream);
+            }
+            synchronized (this) {
+                mRewrite = true;
+            }
+        }
+    }
+
+    private void append(byte[] records) {
+        try (FileOutputStream stream = new FileOutputStream(mFile.getBaseFile(), true)) {
+            stream.write(records);
+            stream.getFD().sync();
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot append to journal", e);
+        }
+    }
+
+    private void load() {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(mFile.openRead()))) {
+            if (in.readInt() != VERSION) {
+                Log.w(TAG, "Dropping journal of an unknown version");
+                scheduleRewrite();
+                return;
+            }
+
+            int type;
+            while ((type = in.read()) != -1) {
+                Uri uri = Uri.parse(in.readUTF());
+                if (type == RECORD_ADD) {
+                    int burstSize = in.readInt();
+                    List<Uri> burst = new ArrayList<>();
+                    for (int j = 0; j < burstSize; j++) {
+                        burst.add(Uri.parse(in.readUTF()));
+                    }
+                    String name = in.readBoolean() ? in.readUTF() : null;
+                    Long key = in.readBoolean() ? in.readLong() : null;
+
+                    Entry entry = new Entry(uri, burst.isEmpty()
+                            ? Collections.emptyList() : burst, name, key, in.readInt());
+                    entry.attempts = in.readInt();
+                    mEntries.put(uri, entry);
+                } else if (type == RECORD_STARTED) {
+                    Entry entry = mEntries.get(uri);
+                    if (entry != null) {
+                        entry.attempts++;
+                    }
+                } else if (type == RECORD_REMOVE) {
+                    mEntries.remove(uri);
+                } else {
+                    throw new IOException("Unknown record " + type);
+                }
+                mRecords++;
+            }
+        } catch (FileNotFoundException e) {
+            // Appends need the header in place
+            scheduleRewrite();
+        } catch (IOException e) {
+            // An append was interrupted, so later records must not follow the partial one
+            Log.w(TAG, "Cannot read journal past " + mRecords + " records", e);
+            scheduleRewrite();
+        }
+    }
+
+    private synchronized void scheduleRewrite() {
+        mRewrite = true;
+        mWriteQueued = true;
+        mWriter.execute(this::write);
+    }
+}
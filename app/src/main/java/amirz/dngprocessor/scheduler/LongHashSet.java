@@ -0,0 +1,80 @@
+package amirz.dngprocessor.scheduler;
+
+/**
+ * Open addressing set of longs without boxing, so large indexes cost eight bytes per slot.
+ * Zero marks an empty slot, and is stored as a separate flag.
+ */
+class LongHashSet {
+    private static final float MAX_LOAD = 0.5f;
+
+    private long[] mSlots = new long[1024];
+    private int mSize;
+    private boolean mHasZero;
+
+    int size() {
+        return mSize + (mHasZero ? 1 : 0);
+    }
+
+    boolean contains(long value) {
+        if (value == 0) {
+            return mHasZero;
+        }
+        int mask = mSlots.length - 1;
+        for (int i = mix(value) & mask; mSlots[i] != 0; i = (i + 1) & mask) {
+            if (mSlots[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return False when the value was already in the set.
+     */
+    boolean add(long value) {
+        if (value == 0) {
+            boolean added = !mHasZero;
+            mHasZero = true;
+            return added;
+        }
+        if (mSize + 1 > mSlots.length * MAX_LOAD) {
+            rehash(mSlots.length * 2);
+        }
+        if (!insert(mSlots, value)) {
+            return false;
+        }
+        mSize++;
+        return true;
+    }
+
+    private void rehash(int capacity) {
+        long[] slots = new long[capacity];
+        for (long value : mSlots) {
+            if (value != 0) {
+                insert(slots, value);
+            }
+        }
+        mSlots = slots;
+    }
+
+    private static boolean insert(long[] slots, long value) {
+        int mask = slots.length - 1;
+        int i = mix(value) & mask;
+        while (slots[i] != 0) {
+            if (slots[i] == value) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        slots[i] = value;
+        return true;
+    }
+
+    private static int mix(long value) {
+        // Finalizer of MurmurHash3, so sequential ids spread over the table
+        value ^= value >>> 33;
+        value *= 0xFF51AFD7ED558CCDL;
+        value ^= value >>> 33;
+        return (int) value;
+    }
+}
@@ -0,0 +1,177 @@
+package amirz.dngprocessor.scheduler;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import amirz.dngprocessor.Path;
+import amirz.dngprocessor.Utilities;
+
+/**
+ * Remembers which images were processed in the background, as an append-only file of 64-bit
+ * keys that is loaded into a hash set once per process. A key combines the MediaStore id with
+ * the size and modification time, so a recycled id of a different file is not mistaken for it.
+ * Images in flight are covered by the {@link JobJournal}, and are only added here once their
+ * output was saved, before they leave the journal.
+ */
+public class ProcessedIndex {
+    private static final String TAG = "ProcessedIndex";
+    private static final String FILE_NAME = "processed.idx";
+    private static final String LEGACY_KEY_PREFIX = "content://";
+    private static final int MIGRATE_BATCH = 500;
+
+    private static final String[] PROJECTION = {
+            MediaStore.Images.Media._ID,
+            MediaStore.Images.Media.SIZE,
+            MediaStore.Images.Media.DATE_MODIFIED
+    };
+
+    private static ProcessedIndex sInstance;
+
+    public static synchronized ProcessedIndex get(Context context) {
+        if (sInstance == null) {
+            sInstance = new ProcessedIndex(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private final File mFile;
+    private final LongHashSet mKeys = new LongHashSet();
+
+    private ProcessedIndex(Context context) {
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+        load();
+        migrate(context);
+        Log.w(TAG, "Loaded " + mKeys.size() + " processed images");
+    }
+
+    public static long key(long id, long size, long modified) {
+        long key = id;
+        key = key * 0x9E3779B97F4A7C15L + size;
+        key = key * 0x9E3779B97F4A7C15L + modified;
+        return key ^ (key >>> 29);
+    }
+
+    private static long key(Cursor cursor) {
+        return key(cursor.getLong(0), cursor.getLong(1), cursor.getLong(2));
+    }
+
+    public synchronized boolean isProcessed(long key) {
+        return mKeys.contains(key);
+    }
+
+    /**
+     * Adds an image to the index, and returns once its key is on disk. Not for the main thread.
+     */
+    public synchronized void markProcessed(long key) {
+        if (mKeys.add(key)) {
+            append(Collections.singletonList(key));
+        }
+    }
+
+    private void load() {
+        long count = mFile.length() / 8;
+        if (mFile.length() % 8 != 0) {
+            // A write was interrupted, drop the partial key so later keys stay aligned
+            try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+                file.setLength(count * 8);
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot truncate " + mFile, e);
+            }
+        }
+
+        if (count > 0) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(mFile)))) {
+                for (long i = 0; i < count; i++) {
+                    mKeys.add(in.readLong());
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot read " + mFile, e);
+            }
+        }
+    }
+
+    private void append(List<Long> keys) {
+        try (FileOutputStream stream = new FileOutputStream(mFile, true)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            for (long key : keys) {
+                out.writeLong(key);
+            }
+            out.flush();
+            stream.getFD().sync();
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot append to " + mFile, e);
+        }
+    }
+
+    /**
+     * Moves the URI keys that older versions stored in the settings into the index. Images that
+     * no longer exist are dropped, as their keys can never match again.
+     */
+    private void migrate(Context context) {
+        SharedPreferences prefs = Utilities.prefs(context);
+        List<String> legacyKeys = new ArrayList<>();
+        List<Long> ids = new ArrayList<>();
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            String legacyKey = entry.getKey();
+            if (legacyKey.startsWith(LEGACY_KEY_PREFIX)) {
+                legacyKeys.add(legacyKey);
+                try {
+                    if (Boolean.FALSE.equals(entry.getValue())) {
+                        ids.add(ContentUris.parseId(Uri.parse(legacyKey)));
+                    }
+                } catch (RuntimeException ignored) {
+                }
+            }
+        }
+        if (legacyKeys.isEmpty()) {
+            return;
+        }
+
+        ContentResolver cr = context.getContentResolver();
+        List<Long> keys = new ArrayList<>();
+        for (int start = 0; start < ids.size(); start += MIGRATE_BATCH) {
+            List<Long> batch = ids.subList(start, Math.min(start + MIGRATE_BATCH, ids.size()));
+            try (Cursor cursor = cr.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                    PROJECTION, Path.idSelection(batch), null, null)) {
+                while (cursor != null && cursor.moveToNext()) {
+                    long key = key(cursor);
+                    if (mKeys.add(key)) {
+                        keys.add(key);
+                    }
+                }
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Cannot migrate processed images", e);
+                return;
+            }
+        }
+        append(keys);
+
+        SharedPreferences.Editor editor = prefs.edit();
+        for (String legacyKey : legacyKeys) {
+            editor.remove(legacyKey);
+        }
+        editor.apply();
+        Log.w(TAG, "Migrated " + keys.size() + " of " + legacyKeys.size() + " legacy keys");
+    }
+}
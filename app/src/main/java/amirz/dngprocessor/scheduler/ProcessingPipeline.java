@@ -0,0 +1,397 @@
+package amirz.dngprocessor.scheduler;
+
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import amirz.dngprocessor.parser.DngParser;
+
+/**
+ * Overlaps the phases of several images, so that other images are parsed and saved by a pool of
+ * workers while the current one is rendered and encoded. GL contexts are bound to the thread
+ * that made them current, so all rendering shares a single GL thread. Images are admitted by
+ * the heap they are estimated to need, so that small images run side by side while a huge one
+ * runs by itself.
+ *
+ * Interactive jobs are admitted, parsed and rendered before background jobs. While interactive
+ * ones are in flight, background jobs are paused before parsing, also when they were already
+ * waiting for memory, and between rendering and saving. Jobs that have been parsed hold memory
+ * until they are rendered, so they are not paused in between.
+ */
+public class ProcessingPipeline {
+    private static final String TAG = "ProcessingPipeline";
+
+    // File buffer, raw plane and GL upload copy of a 12 MP image, rounded up. Used to size the
+    // pools, and for images of which the size cannot be probed.
+    private static final long IMAGE_BYTES = 160L * 1024 * 1024;
+    private static final int MAX_IN_FLIGHT = 3;
+
+    // Part of the heap that the images in flight may take together
+    private static final float HEAP_SHARE = 0.75f;
+
+    public static final int PRIORITY_INTERACTIVE = 0;
+    public static final int PRIORITY_BACKGROUND = 1;
+
+    public interface Listener {
+        /**
+         * Called on a worker thread right before an image is parsed.
+         */
+        void onStarted(DngParser parser);
+
+        /**
+         * Called on the GL thread right before an image is rendered, after it was parsed.
+         */
+        void onRendering(DngParser parser);
+
+        /**
+         * Called on the thread of the last phase that ran.
+         * @param error The exception that aborted the job, or null when it completed. Cancelled
+         *              jobs report a {@link CancellationException}.
+         */
+        void onFinished(DngParser parser, Exception error);
+    }
+
+    private static class Job {
+        final DngParser parser;
+        final long sequence;
+        volatile int priority;
+        volatile boolean cancelled;
+        boolean started;
+        int permits; // Held while the image data is in memory
+        Task ingest;
+        Runnable resume; // Continues a parked job
+
+        Job(DngParser parser, int priority, long sequence) {
+            this.parser = parser;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Phase of a job, ordered by the priority of the job and then by submission.
+     */
+    private static class Task implements Runnable, Comparable<Task> {
+        final Job job;
+        final Runnable body;
+
+        Task(Job job, Runnable body) {
+            this.job = job;
+            this.body = body;
+        }
+
+        @Override
+        public void run() {
+            body.run();
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            return compare(job, other.job);
+        }
+    }
+
+    private static int compare(Job job, Job other) {
+        if (job.priority != other.priority) {
+            return Integer.compare(job.priority, other.priority);
+        }
+        return Long.compare(job.sequence, other.sequence);
+    }
+
+    private final Listener mListener;
+    private final int mTotalMegabytes;
+    private final ThreadPoolExecutor mIngest;
+    private final ThreadPoolExecutor mGl;
+    private final ThreadPoolExecutor mSave;
+
+    // Guarded by this.
+    private final Map<Uri, Job> mJobs = new HashMap<>();
+    private final List<Job> mParked = new ArrayList<>();
+    private final PriorityQueue<Job> mWaiting = new PriorityQueue<>(
+            ProcessingPipeline::compare);
+    private int mFreeMegabytes;
+    private long mSequence;
+    private int mInteractive;
+
+    /**
+     * @param workers Number of threads that parse and save images, or zero to size the pool by
+     *                the available memory and cores.
+     */
+    public ProcessingPipeline(Listener listener, int workers) {
+        mListener = listener;
+
+        int inFlight = (int) (Runtime.getRuntime().maxMemory() / IMAGE_BYTES);
+        inFlight = Math.max(1, Math.min(MAX_IN_FLIGHT, inFlight));
+        if (workers <= 0) {
+            // The GL thread keeps one core busy, and more workers than images cannot be used.
+            int cores = Runtime.getRuntime().availableProcessors();
+            workers = Math.max(1, Math.min(inFlight, cores - 1));
+        }
+        mTotalMegabytes = (int) (Runtime.getRuntime().maxMemory() * HEAP_SHARE / (1 << 20));
+        Log.w(TAG, "Allowing " + mTotalMegabytes + " MB of images in flight on "
+                + workers + " workers");
+        mFreeMegabytes = mTotalMegabytes;
+
+        // Pending jobs have not read anything yet, so they can queue up without a bound, and
+        // admission bounds the later phases.
+        mIngest = pool("Ingest", workers, new PriorityBlockingQueue<>());
+        mGl = pool("GL", 1, new PriorityBlockingQueue<>());
+        mSave = pool("Save", workers, new LinkedBlockingQueue<>());
+    }
+
+    /**
+     * Queues an image, or merges the request into the job that already processes it.
+     * @param priority {@link #PRIORITY_INTERACTIVE} or {@link #PRIORITY_BACKGROUND}.
+     * @return False when the request was merged, so no new job will finish for it.
+     */
+    public synchronized boolean submit(DngParser parser, int priority) {
+        Job existing = mJobs.get(parser.getUri());
+        if (existing != null && !existing.cancelled) {
+            if (priority < existing.priority && !existing.started) {
+                promote(existing, priority);
+            }
+            Log.w(TAG, "Merged request for " + parser.getUri());
+            return false;
+        }
+
+        Job job = new Job(parser, priority, mSequence++);
+        mJobs.put(parser.getUri(), job);
+        if (priority == PRIORITY_INTERACTIVE) {
+            mInteractive++;
+            notifyAll(); // Background jobs that wait for memory are parked
+        }
+        enqueue(job);
+        return true;
+    }
+
+    public synchronized boolean contains(Uri uri) {
+        return mJobs.containsKey(uri);
+    }
+
+    /**
+     * Stops the job of an image before its next phase starts.
+     * @return False when the image is not in the pipeline.
+     */
+    public boolean cancel(Uri uri) {
+        Job job;
+        synchronized (this) {
+            job = mJobs.get(uri);
+        }
+        if (job == null) {
+            return false;
+        }
+        cancel(job);
+        return true;
+    }
+
+    public void cancelAll() {
+        List<Job> jobs;
+        synchronized (this) {
+            jobs = new ArrayList<>(mJobs.values());
+        }
+        for (Job job : jobs) {
+            cancel(job);
+        }
+    }
+
+    public void shutdown() {
+        cancelAll();
+        mIngest.shutdownNow();
+        mGl.shutdown();
+        mSave.shutdown();
+    }
+
+    private void cancel(Job job) {
+        job.cancelled = true;
+
+        // Parked jobs would never reach a phase that notices the flag
+        boolean parked;
+        synchronized (this) {
+            parked = mParked.remove(job);
+            notifyAll(); // Jobs that wait for memory give up
+        }
+        if (parked) {
+            if (job.started) {
+                job.parser.discard();
+            }
+            finish(job, new CancellationException());
+        }
+    }
+
+    private void promote(Job job, int priority) {
+        // The order of a queued task must not change, so it is queued again
+        boolean queued = mIngest.remove(job.ingest);
+        boolean parked = mParked.remove(job);
+        job.priority = priority;
+        if (priority == PRIORITY_INTERACTIVE) {
+            mInteractive++;
+            notifyAll();
+        }
+        if (queued || parked) {
+            enqueue(job);
+        }
+    }
+
+    /**
+     * Holds a job until no interactive jobs are left. Guarded by this.
+     */
+    private void park(Job job, Runnable resume) {
+        job.resume = resume;
+        mParked.add(job);
+    }
+
+    private void enqueue(Job job) {
+        job.ingest = new Task(job, () -> start(job));
+        mIngest.execute(job.ingest);
+    }
+
+    private void start(Job job) {
+        if (job.cancelled) {
+            finish(job, new CancellationException());
+            return;
+        }
+
+        synchronized (this) {
+            if (job.priority == PRIORITY_BACKGROUND && mInteractive > 0) {
+                park(job, () -> enqueue(job));
+                return;
+            }
+            job.started = true;
+        }
+
+        DngParser parser = job.parser;
+        long bytes = parser.estimateHeapBytes();
+        if (bytes <= 0) {
+            bytes = IMAGE_BYTES;
+        }
+        if (!admit(job, (int) Math.max(1, Math.min(bytes >> 20, mTotalMegabytes)))) {
+            return;
+        }
+
+        mListener.onStarted(parser);
+        if (runPhase(job, parser::parse)) {
+            mGl.execute(new Task(job, () -> {
+                if (!job.cancelled) {
+                    mListener.onRendering(parser);
+                }
+                if (runPhase(job, parser::render)) {
+                    // Rendering consumed the image data, only the outputs are left to announce
+                    releaseMemory(job);
+
+                    Runnable save = () -> {
+                        if (runPhase(job, parser::save)) {
+                            finish(job, null);
+                        }
+                    };
+                    synchronized (this) {
+                        if (job.priority == PRIORITY_BACKGROUND && mInteractive > 0) {
+                            park(job, () -> mSave.execute(save));
+                            return;
+                        }
+                    }
+                    mSave.execute(save);
+                }
+            }));
+        }
+    }
+
+    /**
+     * Blocks this worker until earlier images have freed enough memory. Waiting jobs are
+     * admitted in the order of their tasks, so interactive jobs go first, and an image larger
+     * than the share waits for all others and then runs alone, without smaller images of its
+     * priority overtaking it. A background job that is waiting is parked instead when an
+     * interactive job arrives, which frees this worker for it.
+     * @return False when the job was parked or cancelled instead.
+     */
+    private boolean admit(Job job, int permits) {
+        synchronized (this) {
+            mWaiting.add(job);
+            try {
+                while (!job.cancelled) {
+                    if (job.priority == PRIORITY_BACKGROUND && mInteractive > 0) {
+                        job.started = false;
+                        park(job, () -> enqueue(job));
+                        return false;
+                    }
+                    if (mWaiting.peek() == job && mFreeMegabytes >= permits) {
+                        mFreeMegabytes -= permits;
+                        job.permits = permits;
+                        return true;
+                    }
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                // The pipeline is shutting down
+                Thread.currentThread().interrupt();
+            } finally {
+                mWaiting.remove(job);
+                notifyAll();
+            }
+        }
+        finish(job, new CancellationException());
+        return false;
+    }
+
+    private synchronized void releaseMemory(Job job) {
+        mFreeMegabytes += job.permits;
+        job.permits = 0;
+        notifyAll();
+    }
+
+    private void unpark() {
+        // Jobs were parked in the order they reached a pause, which need not be their own
+        mParked.sort(ProcessingPipeline::compare);
+        for (Job job : mParked) {
+            job.resume.run();
+        }
+        mParked.clear();
+    }
+
+    private boolean runPhase(Job job, Runnable phase) {
+        try {
+            if (job.cancelled) {
+                throw new CancellationException();
+            }
+            phase.run();
+            return true;
+        } catch (Exception e) {
+            if (!(e instanceof CancellationException)) {
+                e.printStackTrace();
+            }
+            job.parser.release();
+            job.parser.discard();
+            finish(job, e);
+            return false;
+        }
+    }
+
+    private void finish(Job job, Exception error) {
+        synchronized (this) {
+            mJobs.remove(job.parser.getUri(), job);
+            if (job.priority == PRIORITY_INTERACTIVE && --mInteractive == 0) {
+                unpark();
+            }
+        }
+        releaseMemory(job);
+        mListener.onFinished(job.parser, error);
+    }
+
+    private static ThreadPoolExecutor pool(String name, int threads,
+                                           BlockingQueue<Runnable> queue) {
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, queue,
+                r -> new Thread(r, TAG + "-" + name + "-" + count.incrementAndGet()));
+    }
+}
@@ -0,0 +1,66 @@
+package amirz.dngprocessor.stats;
+
+import android.os.Trace;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects the wall time of the CPU stages of one job, and the GPU durations reported for it.
+ * Every stage is also emitted as a systrace section. Stages may be nested, and a stage that is
+ * entered more than once accumulates its durations.
+ */
+public class StageTimer {
+    private final Map<String, Long> mCpuNanos = new LinkedHashMap<>();
+    private final Map<String, Long> mGpuNanos = new LinkedHashMap<>();
+    private final Deque<String> mStages = new ArrayDeque<>();
+    private final Deque<Long> mStarts = new ArrayDeque<>();
+
+    public void begin(String stage) {
+        Trace.beginSection(stage);
+        mStages.push(stage);
+        mStarts.push(System.nanoTime());
+    }
+
+    public void end() {
+        long nanos = System.nanoTime() - mStarts.pop();
+        add(mCpuNanos, mStages.pop(), nanos);
+        Trace.endSection();
+    }
+
+    public void addGpu(String stage, long nanos) {
+        add(mGpuNanos, stage, nanos);
+    }
+
+    public Map<String, Long> getCpuNanos() {
+        return Collections.unmodifiableMap(mCpuNanos);
+    }
+
+    public Map<String, Long> getGpuNanos() {
+        return Collections.unmodifiableMap(mGpuNanos);
+    }
+
+    private static void add(Map<String, Long> map, String stage, long nanos) {
+        Long prev = map.get(stage);
+        map.put(stage, prev == null ? nanos : prev + nanos);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("cpu:");
+        append(sb, mCpuNanos);
+        sb.append(" | gpu:");
+        append(sb, mGpuNanos);
+        return sb.toString();
+    }
+
+    private static void append(StringBuilder sb, Map<String, Long> map) {
+        for (Map.Entry<String, Long> entry : map.entrySet()) {
+            sb.append(' ').append(entry.getKey()).append('=')
+                    .append(String.format("%.1f", entry.getValue() / 1e6)).append("ms");
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package amirz.dngprocessor.stats;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the most recent stage timings per device model, to report p50/p95 values across jobs.
+ * The samples are stored in their own preferences file so they never mix with the settings.
+ */
+public class TimingHistory {
+    private static final String PREFS_NAME = "timings";
+    private static final int MAX_SAMPLES = 50;
+
+    /**
+     * Adds the timings of a finished job to the history of this model. Jobs are saved on several
+     * workers at once, so the samples are read and written back as one step, and apply updates
+     * the preferences in memory before the next job reads them.
+     * @return Summary of the p50/p95 values of every stage, in milliseconds.
+     */
+    public static synchronized String record(Context context, String model, StageTimer timer) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = prefs.edit();
+        StringBuilder summary = new StringBuilder(model).append(':');
+        record(prefs, editor, summary, model + "/cpu/", timer.getCpuNanos());
+        record(prefs, editor, summary, model + "/gpu/", timer.getGpuNanos());
+        editor.apply();
+        return summary.toString();
+    }
+
+    private static void record(SharedPreferences prefs, SharedPreferences.Editor editor,
+                               StringBuilder summary, String prefix, Map<String, Long> nanos) {
+        for (Map.Entry<String, Long> entry : nanos.entrySet()) {
+            String key = prefix + entry.getKey();
+            List<Float> samples = parse(prefs.getString(key, ""));
+            samples.add(entry.getValue() / 1e6f);
+            while (samples.size() > MAX_SAMPLES) {
+                samples.remove(0);
+            }
+            editor.putString(key, join(samples));
+
+            float[] sorted = new float[samples.size()];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = samples.get(i);
+            }
+            Arrays.sort(sorted);
+            summary.append(' ').append(key.substring(prefix.length() - 4))
+                    .append(String.format(" p50=%.1f p95=%.1f",
+                            percentile(sorted, 0.5f), percentile(sorted, 0.95f)));
+        }
+    }
+
+    private static float percentile(float[] sorted, float p) {
+        // Nearest rank.
+        int rank = (int) Math.ceil(p * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static List<Float> parse(String value) {
+        List<Float> samples = new ArrayList<>();
+        if (!value.isEmpty()) {
+            for (String sample : value.split(",")) {
+                samples.add(Float.parseFloat(sample));
+            }
+        }
+        return samples;
+    }
+
+    private static String join(List<Float> samples) {
+        StringBuilder sb = new StringBuilder();
+        for (float sample : samples) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(sample);
+        }
+        return sb.toString();
+    }
+}
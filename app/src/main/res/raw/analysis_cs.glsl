@@ -0,0 +1,92 @@
+#version 310 es
+
+precision mediump float;
+
+// TILE_SIZE and HIST_BINS are defined by GLProgram
+layout(local_size_x = TILE_SIZE, local_size_y = TILE_SIZE) in;
+
+uniform sampler2D intermediateBuffer;
+#ifdef INTERMEDIATE_SPLIT
+uniform sampler2D intermediateChroma; // xy at half resolution, Y is in intermediateBuffer
+#endif
+uniform ivec2 outOffset;
+uniform int samplingFactor;
+uniform ivec2 sampleCount;
+
+// Out
+layout(std430, binding = 0) buffer Histogram {
+    uint bins[HIST_BINS];
+};
+layout(std430, binding = 1) buffer SigmaSums {
+    highp vec2 groupSigma[]; // Chroma and luma sigma summed over every work group
+};
+
+shared uint localBins[HIST_BINS];
+shared highp vec2 localSigma[TILE_SIZE * TILE_SIZE];
+
+vec3 loadIntermediate(ivec2 xy) {
+#if defined(INTERMEDIATE_SPLIT)
+    // Chroma is upsampled bilinearly from half resolution
+    highp vec2 uv = (vec2(xy) + 0.5f) / vec2(textureSize(intermediateBuffer, 0));
+    return vec3(texture(intermediateChroma, uv).xy, texelFetch(intermediateBuffer, xy, 0).x);
+#elif defined(INTERMEDIATE_PACKED)
+    return texelFetch(intermediateBuffer, xy, 0).yzx;
+#else
+    return texelFetch(intermediateBuffer, xy, 0).xyz;
+#endif
+}
+
+void main() {
+    uint local = gl_LocalInvocationIndex;
+    for (uint i = local; i < uint(HIST_BINS); i += uint(TILE_SIZE * TILE_SIZE)) {
+        localBins[i] = 0u;
+    }
+    memoryBarrierShared();
+    barrier();
+
+    ivec2 sampleXY = ivec2(gl_GlobalInvocationID.xy);
+    vec2 sigma = vec2(0.f);
+    if (all(lessThan(sampleXY, sampleCount))) {
+        ivec2 xy = samplingFactor * sampleXY + outOffset;
+
+        // Samples are usually far apart, so their patches are fetched directly instead of shared
+        vec3 impatch[9];
+        vec3 mean = vec3(0.f);
+        for (int i = 0; i < 9; i++) {
+            impatch[i] = loadIntermediate(xy + ivec2((i % 3) - 1, (i / 3) - 1));
+            mean += impatch[i];
+        }
+        mean /= 9.f;
+        float chromaSigma = 0.f, lumaSigma = 0.f;
+        for (int i = 0; i < 9; i++) {
+            vec3 diff = mean - impatch[i];
+            chromaSigma += diff.x * diff.x + diff.y * diff.y;
+            lumaSigma += diff.z * diff.z;
+        }
+        sigma = sqrt(vec2(chromaSigma, lumaSigma) / 9.f);
+
+        int bin = clamp(int(impatch[4].z * float(HIST_BINS)), 0, HIST_BINS - 1);
+        atomicAdd(localBins[bin], 1u);
+    }
+
+    // Sum the sigmas of the work group as a tree
+    localSigma[local] = sigma;
+    memoryBarrierShared();
+    barrier();
+    for (uint stride = uint(TILE_SIZE * TILE_SIZE) / 2u; stride > 0u; stride /= 2u) {
+        if (local < stride) {
+            localSigma[local] += localSigma[local + stride];
+        }
+        memoryBarrierShared();
+        barrier();
+    }
+
+    if (local == 0u) {
+        groupSigma[gl_WorkGroupID.y * gl_NumWorkGroups.x + gl_WorkGroupID.x] = localSigma[0];
+    }
+    for (uint i = local; i < uint(HIST_BINS); i += uint(TILE_SIZE * TILE_SIZE)) {
+        if (localBins[i] > 0u) {
+            atomicAdd(bins[i], localBins[i]);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+#version 300 es
+
+precision mediump float;
+
+uniform sampler2D intermediateBuffer;
+#ifdef INTERMEDIATE_SPLIT
+uniform sampler2D intermediateChroma; // xy at half resolution, Y is in intermediateBuffer
+#endif
+uniform float scale; // Intermediate pixels per output pixel
+
+// Out
+out vec3 intermediate;
+
+vec3 loadIntermediate(ivec2 xy) {
+#if defined(INTERMEDIATE_SPLIT)
+    // Chroma is upsampled bilinearly from half resolution
+    highp vec2 uv = (vec2(xy) + 0.5f) / vec2(textureSize(intermediateBuffer, 0));
+    return vec3(texture(intermediateChroma, uv).xy, texelFetch(intermediateBuffer, xy, 0).x);
+#elif defined(INTERMEDIATE_PACKED)
+    return texelFetch(intermediateBuffer, xy, 0).yzx;
+#else
+    return texelFetch(intermediateBuffer, xy, 0).xyz;
+#endif
+}
+
+void main() {
+    // Area covered by this pixel, which does not have to align with intermediate pixels
+    highp vec2 start = floor(gl_FragCoord.xy) * scale;
+    highp vec2 end = start + scale;
+    ivec2 first = ivec2(start);
+    ivec2 last = min(ivec2(ceil(end)) - 1, textureSize(intermediateBuffer, 0) - 1);
+
+    // Average in XYZ, where light adds up linearly
+    highp vec3 XYZ = vec3(0.f);
+    highp float totalWeight = 0.f;
+    for (int y = first.y; y <= last.y; y++) {
+        highp float wy = min(float(y + 1), end.y) - max(float(y), start.y);
+        for (int x = first.x; x <= last.x; x++) {
+            highp float w = wy * (min(float(x + 1), end.x) - max(float(x), start.x));
+            vec3 xyY = loadIntermediate(ivec2(x, y));
+            if (xyY.y > 0.f) {
+                XYZ += w * xyY.z / xyY.y * vec3(xyY.x, xyY.y, 1.f - xyY.x - xyY.y);
+            }
+            totalWeight += w;
+        }
+    }
+    XYZ /= totalWeight;
+
+    float sum = XYZ.x + XYZ.y + XYZ.z;
+    intermediate = sum > 0.f ? vec3(XYZ.xy / sum, XYZ.y) : vec3(0.f);
+}
@@ -0,0 +1,34 @@
+#version 300 es
+
+precision mediump float;
+
+// Bayer quads packed as (x, y), (x + 1, y), (x, y + 1), (x + 1, y + 1)
+uniform highp usampler2D referenceBuffer;
+uniform highp usampler2D frameBuffer;
+
+// Offset of frameBuffer per tile of tileSize quads
+uniform highp isampler2D alignment;
+uniform int tileSize;
+
+uniform highp float frameWeight; // Reciprocal of the number of frames in the burst
+uniform float noiseLevel; // Mismatch below which a frame is fully trusted
+
+// Out
+out highp vec4 merged;
+
+void main() {
+    ivec2 quad = ivec2(gl_FragCoord.xy);
+    ivec2 offset = texelFetch(alignment, quad / tileSize, 0).xy;
+    ivec2 framePos = clamp(quad + offset, ivec2(0), textureSize(frameBuffer, 0) - 1);
+
+    highp vec4 reference = vec4(texelFetch(referenceBuffer, quad, 0));
+    highp vec4 frame = vec4(texelFetch(frameBuffer, framePos, 0));
+
+    // Fall back to the reference where the tile did not align, such as on moving subjects
+    highp vec4 diff = abs(frame - reference);
+    float mismatch = (diff.x + diff.y + diff.z + diff.w) * 0.25f;
+    float trust = clamp(2.f - mismatch / noiseLevel, 0.f, 1.f);
+
+    // Normalize to the 16 bit range so the accumulated sum also fits in the half float fallback
+    merged = mix(reference, frame, trust) * (frameWeight / 65535.f);
+}
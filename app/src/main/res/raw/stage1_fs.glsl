@@ -2,12 +2,18 @@
 
 precision mediump float;
 
-uniform usampler2D rawBuffer;
+// Bayer quads packed as (x, y), (x + 1, y), (x, y + 1), (x + 1, y + 1)
+#ifdef RAW_FLOAT
+uniform highp sampler2D rawBuffer; // Merged burst, normalized
+uniform highp float rawScale; // Restores the raw range
+#else
+uniform highp usampler2D rawBuffer;
+#endif
 uniform int rawWidth;
 uniform int rawHeight;
 
 // Sensor and picture variables
-uniform uint cfaPattern; // The Color Filter Arrangement pattern used
+// CFA_PATTERN is defined by GLProgram as the Color Filter Arrangement pattern used
 uniform vec4 blackLevel; // Blacklevel to subtract for each channel, given in CFA order
 uniform float whiteLevel; // Whitelevel of sensor
 uniform vec3 neutralPoint; // The camera neutral
@@ -16,46 +22,50 @@ uniform vec3 neutralPoint; // The camera neutral
 uniform mat3 sensorToXYZ; // Color transform from sensor to XYZ.
 
 // Out
+#ifdef INTERMEDIATE_SPLIT
+layout(location = 0) out float intermediateY;
+layout(location = 1) out vec2 intermediateXY; // Box filtered to half resolution by GLProgram
+#else
 out vec3 intermediate;
+#endif
 
 float[9] load3x3(int x, int y) {
+    // The 3x3 patch always lies within the four quads starting at its top left pixel
+    ivec2 quad = ivec2(x - 1, y - 1) >> 1;
+    highp vec4 q00 = vec4(texelFetch(rawBuffer, quad, 0));
+    highp vec4 q10 = vec4(texelFetch(rawBuffer, quad + ivec2(1, 0), 0));
+    highp vec4 q01 = vec4(texelFetch(rawBuffer, quad + ivec2(0, 1), 0));
+    highp vec4 q11 = vec4(texelFetch(rawBuffer, quad + ivec2(1, 1), 0));
+#ifdef RAW_FLOAT
+    q00 *= rawScale;
+    q10 *= rawScale;
+    q01 *= rawScale;
+    q11 *= rawScale;
+#endif
+
+    float block[16] = float[16](
+        q00.x, q00.y, q10.x, q10.y,
+        q00.z, q00.w, q10.z, q10.w,
+        q01.x, q01.y, q11.x, q11.y,
+        q01.z, q01.w, q11.z, q11.w);
+
+    // Patches around an even pixel start at the second column or row of the 4x4 block
+    int dx = 1 - (x & 1);
+    int dy = 1 - (y & 1);
+
     float outputArray[9];
     for (int i = 0; i < 9; i++) {
-        outputArray[i] = float(texelFetch(rawBuffer, ivec2(x + (i % 3) - 1, y + (i / 3) - 1), 0).x);
+        outputArray[i] = block[(dy + i / 3) * 4 + dx + i % 3];
     }
     return outputArray;
 }
 
 void linearizeAndGainmap(int x, int y, inout float[9] outputArray) {
-    uint kk = uint(0);
+    int kk = 0;
     for (int j = y - 1; j <= y + 1; j++) {
         for (int i = x - 1; i <= x + 1; i++) {
-            uint index = uint((i & 1) | ((j & 1) << 1));  // bits [0,1] are blacklevel offset
-            index |= (cfaPattern << 2);  // bits [2,3] are cfa
-            float bl = 0.f;
-            switch (index) {
-                // RGGB
-                case 0: bl = blackLevel.x; break;
-                case 1: bl = blackLevel.y; break;
-                case 2: bl = blackLevel.z; break;
-                case 3: bl = blackLevel.w; break;
-                // GRBG
-                case 4: bl = blackLevel.x; break;
-                case 5: bl = blackLevel.y; break;
-                case 6: bl = blackLevel.z; break;
-                case 7: bl = blackLevel.w; break;
-                // GBRG
-                case 8: bl = blackLevel.x; break;
-                case 9: bl = blackLevel.y; break;
-                case 10: bl = blackLevel.z; break;
-                case 11: bl = blackLevel.w; break;
-                // BGGR
-                case 12: bl = blackLevel.x; break;
-                case 13: bl = blackLevel.y; break;
-                case 14: bl = blackLevel.z; break;
-                case 15: bl = blackLevel.w; break;
-            }
-
+            // Blacklevel is given in CFA order, so only the position in the quad matters
+            float bl = blackLevel[(i & 1) | ((j & 1) << 1)];
             outputArray[kk] = (outputArray[kk] - bl) / (whiteLevel - bl);
             kk++;
         }
@@ -65,29 +75,23 @@ void linearizeAndGainmap(int x, int y, inout float[9] outputArray) {
 
 // Apply bilinear-interpolation to demosaic
 vec3 demosaic(int x, int y, float[9] inputArray) {
-    uint index = uint((x & 1) | ((y & 1) << 1));
-    index |= (cfaPattern << 2);
+    // Position in the quad relative to the red pixel of the CFA_PATTERN layout
+    int index = ((x & 1) | ((y & 1) << 1)) ^ CFA_PATTERN;
     vec3 pRGB;
     float gMin, gMax;
     // Denoise green subpixels, as the human eye is most sensitive to green luminance.
     switch (index) {
-        case 0:
-        case 5:
-        case 10:
-        case 15:  // Red centered
-                  // B G B
-                  // G R G
-                  // B G B
+        case 0:  // Red centered
+                 // B G B
+                 // G R G
+                 // B G B
             pRGB.r = inputArray[4];
             gMin = min(min(inputArray[1], inputArray[3]), min(inputArray[5], inputArray[7]));
             gMax = max(max(inputArray[1], inputArray[3]), max(inputArray[5], inputArray[7]));
             pRGB.g = (inputArray[1] + inputArray[3] + inputArray[5] + inputArray[7] - gMin - gMax) / 2.f;
             pRGB.b = (inputArray[0] + inputArray[2] + inputArray[6] + inputArray[8]) / 4.f;
             break;
-        case 1:
-        case 4:
-        case 11:
-        case 14: // Green centered w/ horizontally adjacent Red
+        case 1:  // Green centered w/ horizontally adjacent Red
                  // G B G
                  // R G R
                  // G B G
@@ -97,10 +101,7 @@ vec3 demosaic(int x, int y, float[9] inputArray) {
             pRGB.g = clamp(inputArray[4], gMin * 0.5f, gMax * 2.0f);
             pRGB.b = (inputArray[1] + inputArray[7]) / 2.f;
             break;
-        case 2:
-        case 7:
-        case 8:
-        case 13: // Green centered w/ horizontally adjacent Blue
+        case 2:  // Green centered w/ horizontally adjacent Blue
                  // G R G
                  // B G B
                  // G R G
@@ -110,10 +111,7 @@ vec3 demosaic(int x, int y, float[9] inputArray) {
             pRGB.g = clamp(inputArray[4], gMin * 0.5f, gMax * 2.0f);
             pRGB.b = (inputArray[3] + inputArray[5]) / 2.f;
             break;
-        case 3:
-        case 6:
-        case 9:
-        case 12: // Blue centered
+        case 3:  // Blue centered
                  // R G R
                  // G B G
                  // R G R
@@ -153,5 +151,14 @@ void main() {
     float[9] inoutPatch = load3x3(x, y);
     linearizeAndGainmap(x, y, inoutPatch);
     vec3 sensor = demosaic(x, y, inoutPatch);
-    intermediate = convertSensorToIntermediate(sensor);
+    vec3 xyY = convertSensorToIntermediate(sensor);
+#if defined(INTERMEDIATE_SPLIT)
+    intermediateY = xyY.z;
+    intermediateXY = xyY.xy;
+#elif defined(INTERMEDIATE_PACKED)
+    // Y gets one of the 11 bit channels, as it is stretched by the output stage
+    intermediate = xyY.zxy;
+#else
+    intermediate = xyY;
+#endif
 }
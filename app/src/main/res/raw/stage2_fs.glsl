@@ -3,16 +3,31 @@
 precision mediump float;
 
 uniform sampler2D intermediateBuffer;
+#ifdef INTERMEDIATE_SPLIT
+uniform sampler2D intermediateChroma; // xy at half resolution, Y is in intermediateBuffer
+#endif
 uniform ivec2 outOffset;
 uniform int samplingFactor;
 
 // Out
 out vec4 analysis;
 
+vec3 loadIntermediate(ivec2 xy) {
+#if defined(INTERMEDIATE_SPLIT)
+    // Chroma is upsampled bilinearly from half resolution
+    highp vec2 uv = (vec2(xy) + 0.5f) / vec2(textureSize(intermediateBuffer, 0));
+    return vec3(texture(intermediateChroma, uv).xy, texelFetch(intermediateBuffer, xy, 0).x);
+#elif defined(INTERMEDIATE_PACKED)
+    return texelFetch(intermediateBuffer, xy, 0).yzx;
+#else
+    return texelFetch(intermediateBuffer, xy, 0).xyz;
+#endif
+}
+
 vec3[9] load3x3(ivec2 xy) {
     vec3 outputArray[9];
     for (int i = 0; i < 9; i++) {
-        outputArray[i] = texelFetch(intermediateBuffer, xy + ivec2((i % 3) - 1, (i / 3) - 1), 0).xyz;
+        outputArray[i] = loadIntermediate(xy + ivec2((i % 3) - 1, (i / 3) - 1));
     }
     return outputArray;
 }
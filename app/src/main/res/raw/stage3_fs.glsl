@@ -3,47 +3,95 @@
 precision mediump float;
 
 uniform sampler2D intermediateBuffer;
+#ifdef INTERMEDIATE_SPLIT
+uniform sampler2D intermediateChroma; // xy at half resolution, Y is in intermediateBuffer
+#endif
 uniform int intermediateWidth;
 uniform int intermediateHeight;
 
 uniform int yOffset;
 
 uniform vec2 zRange;
-uniform int radiusDenoise;
+uniform int radiusDenoise; // Only used when DENOISE is defined
 
-// Sensor and picture variables
-uniform vec4 toneMapCoeffs; // Coefficients for a polynomial tonemapping curve
-
-// Transform
-uniform mat3 intermediateToProPhoto; // Color transform from XYZ to a wide-gamut colorspace
-uniform mat3 proPhotoToSRGB; // Color transform from wide-gamut colorspace to sRGB
+// Colorspace transform, tonemapping, gamma and saturation, baked by ColorLut
+// LUT_SIZE is defined by GLProgram as the number of entries per dimension
+uniform mediump sampler3D colorLut;
 
 uniform float chromaSigma;
 uniform float lumaSigma;
 
 // Post processing
-uniform float sharpenFactor;
-uniform vec3 saturationCurve;
+uniform float sharpenFactor; // Only used when SHARPEN is defined
 uniform float histFactor;
 uniform vec2 histCurve;
+uniform sampler2D toneGain; // Half resolution local tone map, only used when TONEMAP is defined
 
 // Size
 uniform ivec2 outOffset;
 
+#ifdef COMPUTE
+// Every work group covers TILE_SIZE x TILE_SIZE output pixels, defined by GLProgram
+layout(local_size_x = TILE_SIZE, local_size_y = TILE_SIZE) in;
+uniform ivec2 outSize;
+
+// Out
+layout(rgba8, binding = 0) uniform writeonly highp image2D outImage;
+
+// Intermediate pixels of the work group, with a border of one for the 3x3 patches
+#define TILE_SPAN (TILE_SIZE + 2)
+shared vec3 tile[TILE_SPAN * TILE_SPAN];
+ivec2 tileOrigin;
+#else
 // Out
 out vec4 color;
+#endif
+
+vec3 loadIntermediate(ivec2 xy) {
+#if defined(INTERMEDIATE_SPLIT)
+    // Chroma is upsampled bilinearly from half resolution
+    highp vec2 uv = (vec2(xy) + 0.5f) / vec2(textureSize(intermediateBuffer, 0));
+    return vec3(texture(intermediateChroma, uv).xy, texelFetch(intermediateBuffer, xy, 0).x);
+#elif defined(INTERMEDIATE_PACKED)
+    return texelFetch(intermediateBuffer, xy, 0).yzx;
+#else
+    return texelFetch(intermediateBuffer, xy, 0).xyz;
+#endif
+}
+
+vec3 loadNeighbour(ivec2 xy) {
+#ifdef COMPUTE
+    // Only the far end of the denoise walk leaves the tile
+    ivec2 local = xy - tileOrigin;
+    if (all(greaterThanEqual(local, ivec2(0))) && all(lessThan(local, ivec2(TILE_SPAN)))) {
+        return tile[local.y * TILE_SPAN + local.x];
+    }
+#endif
+    return loadIntermediate(xy);
+}
 
 vec3[9] load3x3(ivec2 xy) {
     vec3 outputArray[9];
     for (int i = 0; i < 9; i++) {
-        outputArray[i] = texelFetch(intermediateBuffer, xy + ivec2((i % 3) - 1, (i / 3) - 1), 0).xyz;
+        outputArray[i] = loadNeighbour(xy + ivec2((i % 3) - 1, (i / 3) - 1));
     }
     return outputArray;
 }
 
 vec3 processPatch(ivec2 xyPos) {
+#if defined(DENOISE) || defined(SHARPEN)
     vec3[9] impatch = load3x3(xyPos);
 
+    // Take unfiltered xy and z as starting point.
+    vec2 xy = impatch[4].xy;
+    float z = impatch[4].z;
+#else
+    vec3 center = loadIntermediate(xyPos);
+    vec2 xy = center.xy;
+    float z = center.z;
+#endif
+
+#ifdef DENOISE
     vec3 mean;
     for (int i = 0; i < 9; i++) {
         mean += impatch[i];
@@ -66,10 +114,6 @@ vec3 processPatch(ivec2 xyPos) {
     float distxy = distance(minxyz.xy, maxxyz.xy);
     float distz = distance(minxyz.z, maxxyz.z);
 
-    // Take unfiltered xy and z as starting point.
-    vec2 xy = impatch[4].xy;
-    float z = impatch[4].z;
-
     /**
     CHROMA NOISE REDUCE
     **/
@@ -91,7 +135,7 @@ vec3 processPatch(ivec2 xyPos) {
     count = 0;
     localdistz = 0.f;
     while (coord > bound && localdistz < thZStop) {
-        neighbour = texelFetch(intermediateBuffer, ivec2(coord, xyPos.y), 0).xyz;
+        neighbour = loadNeighbour(ivec2(coord, xyPos.y));
         coord -= 2 << (count / shiftFactor);
         localdistz = distance(z, neighbour.z);
         if (distance(xy, neighbour.xy) <= thXY && localdistz <= thZ) {
@@ -107,7 +151,7 @@ vec3 processPatch(ivec2 xyPos) {
     count = 0;
     localdistz = 0.f;
     while (coord < bound && localdistz < thZStop) {
-        neighbour = texelFetch(intermediateBuffer, ivec2(coord, xyPos.y), 0).xyz;
+        neighbour = loadNeighbour(ivec2(coord, xyPos.y));
         coord += 2 << (count / shiftFactor);
         localdistz = distance(z, neighbour.z);
         if (distance(xy, neighbour.xy) <= thXY && localdistz <= thZ) {
@@ -123,7 +167,7 @@ vec3 processPatch(ivec2 xyPos) {
     count = 0;
     localdistz = 0.f;
     while (coord > bound && localdistz < thZStop) {
-        neighbour = texelFetch(intermediateBuffer, ivec2(xyPos.x, coord), 0).xyz;
+        neighbour = loadNeighbour(ivec2(xyPos.x, coord));
         coord -= 2 << (count / shiftFactor);
         localdistz = distance(z, neighbour.z);
         if (distance(xy, neighbour.xy) <= thXY && localdistz <= thZ) {
@@ -139,7 +183,7 @@ vec3 processPatch(ivec2 xyPos) {
     count = 0;
     localdistz = 0.f;
     while (coord < bound && localdistz < thZStop) {
-        neighbour = texelFetch(intermediateBuffer, ivec2(xyPos.x, coord), 0).xyz;
+        neighbour = loadNeighbour(ivec2(xyPos.x, coord));
         coord += 2 << (count / shiftFactor);
         localdistz = distance(z, neighbour.z);
         if (distance(xy, neighbour.xy) <= thXY && localdistz <= thZ) {
@@ -152,171 +196,75 @@ vec3 processPatch(ivec2 xyPos) {
     xy = sum / float(totalCount);
 
     // Grayshift xy based on noise level
-    if (radiusDenoise > 0) {
-        float shiftFactor = clamp(30.f * chromaSigmaLocal, 0.f, 1.f);
-        xy = shiftFactor * vec2(0.3127f, 0.3290f) + (1.f - shiftFactor) * xy;
-    }
+    float grayShift = clamp(30.f * chromaSigmaLocal, 0.f, 1.f);
+    xy = grayShift * vec2(0.3127f, 0.3290f) + (1.f - grayShift) * xy;
+#endif
 
     /**
     LUMA DENOISE AND SHARPEN
     **/
-    if (sharpenFactor > 0.f) {
-        float effectiveSharpen = sharpenFactor;
-        if (radiusDenoise > 0) {
-            // Bias in favour of edges and against noise
-            effectiveSharpen *= clamp(0.8f + distz - 2.f * distxy, 0.f, 1.f);
-            //return vec3(0.3127f, 0.3290f, effectiveSharpen / sharpenFactor);
-        }
-
-        // Sum of difference with all pixels nearby
-        float dz = impatch[4].z * 9.f;
-        for (int i = 0; i < 9; i++) {
-            dz -= impatch[i].z;
-        }
-
-        // Use this difference to boost sharpness
-        z += effectiveSharpen * dz;
+#ifdef SHARPEN
+    float effectiveSharpen = sharpenFactor;
+#ifdef DENOISE
+    // Bias in favour of edges and against noise
+    effectiveSharpen *= clamp(0.8f + distz - 2.f * distxy, 0.f, 1.f);
+    //return vec3(0.3127f, 0.3290f, effectiveSharpen / sharpenFactor);
+#endif
+
+    // Sum of difference with all pixels nearby
+    float dz = impatch[4].z * 9.f;
+    for (int i = 0; i < 9; i++) {
+        dz -= impatch[i].z;
     }
 
+    // Use this difference to boost sharpness
+    z += effectiveSharpen * dz;
+#endif
+
     // Histogram equalization and contrast stretching
     z = clamp((z - zRange.x) / (zRange.y - zRange.x), 0.f, 1.f);
     z = histCurve.x * z*z + histCurve.y * z;
 
-    return vec3(xy, z);
-}
+#ifdef TONEMAP
+    highp vec2 uv = (vec2(xyPos) + 0.5f) / vec2(intermediateWidth, intermediateHeight);
+    z *= texture(toneGain, uv).x;
+#endif
 
-vec3 xyYtoXYZ(vec3 xyY) {
-    vec3 result = vec3(0.f, xyY.z, 0.f);
-    if (xyY.y > 0.f) {
-        result.x = xyY.x * xyY.z / xyY.y;
-        result.z = (1.f - xyY.x - xyY.y) * xyY.z / xyY.y;
-    }
-    return clamp(result, 0.f, 1.f);
+    return vec3(xy, z);
 }
 
-vec3 tonemap(vec3 rgb) {
-    vec3 sorted = rgb;
+vec3 applyColorLut(vec3 intermediate) {
+    highp vec3 coord = clamp(vec3(intermediate.xy, sqrt(intermediate.z)), 0.f, 1.f);
 
-    float tmp;
-    int permutation = 0;
+    // Sample at texel centers, so the edges of the table map to 0 and 1
+    coord = (coord * float(LUT_SIZE - 1) + 0.5f) / float(LUT_SIZE);
+    return texture(colorLut, coord).rgb;
+}
 
-    // Sort the RGB channels by value
-    if (sorted.z < sorted.y) {
-        tmp = sorted.z;
-        sorted.z = sorted.y;
-        sorted.y = tmp;
-        permutation |= 1;
-    }
-    if (sorted.y < sorted.x) {
-        tmp = sorted.y;
-        sorted.y = sorted.x;
-        sorted.x = tmp;
-        permutation |= 2;
-    }
-    if (sorted.z < sorted.y) {
-        tmp = sorted.z;
-        sorted.z = sorted.y;
-        sorted.y = tmp;
-        permutation |= 4;
-    }
+#ifdef COMPUTE
+void main() {
+    ivec2 outXY = ivec2(gl_GlobalInvocationID.xy);
+    tileOrigin = ivec2(gl_WorkGroupID.xy) * TILE_SIZE + outOffset + ivec2(0, yOffset) - 1;
 
-    vec2 minmax;
-    minmax.x = sorted.x;
-    minmax.y = sorted.z;
-
-    // Apply tonemapping curve to min, max RGB channel values
-    minmax = pow(minmax, vec2(3.f, 3.f)) * toneMapCoeffs.x +
-        pow(minmax, vec2(2.f, 2.f)) * toneMapCoeffs.y +
-        minmax * toneMapCoeffs.z +
-        toneMapCoeffs.w;
-
-    // Rescale middle value
-    float newMid;
-    if (sorted.z == sorted.x) {
-        newMid = minmax.y;
-    } else {
-        float yprog = (sorted.y - sorted.x) / (sorted.z - sorted.x);
-        newMid = minmax.x + (minmax.y - minmax.x) * yprog;
+    // Fetch every pixel of the tile once, shared by all patches that contain it
+    for (int i = int(gl_LocalInvocationIndex); i < TILE_SPAN * TILE_SPAN;
+            i += TILE_SIZE * TILE_SIZE) {
+        tile[i] = loadIntermediate(tileOrigin + ivec2(i % TILE_SPAN, i / TILE_SPAN));
     }
+    memoryBarrierShared();
+    barrier();
 
-    vec3 finalRGB;
-    switch (permutation) {
-        case 0: // b >= g >= r
-            finalRGB.r = minmax.x;
-            finalRGB.g = newMid;
-            finalRGB.b = minmax.y;
-            break;
-        case 1: // g >= b >= r
-            finalRGB.r = minmax.x;
-            finalRGB.b = newMid;
-            finalRGB.g = minmax.y;
-            break;
-        case 2: // b >= r >= g
-            finalRGB.g = minmax.x;
-            finalRGB.r = newMid;
-            finalRGB.b = minmax.y;
-            break;
-        case 3: // g >= r >= b
-            finalRGB.b = minmax.x;
-            finalRGB.r = newMid;
-            finalRGB.g = minmax.y;
-            break;
-        case 6: // r >= b >= g
-            finalRGB.g = minmax.x;
-            finalRGB.b = newMid;
-            finalRGB.r = minmax.y;
-            break;
-        case 7: // r >= g >= b
-            finalRGB.b = minmax.x;
-            finalRGB.g = newMid;
-            finalRGB.r = minmax.y;
-            break;
+    if (any(greaterThanEqual(outXY, outSize))) {
+        return;
     }
-    return finalRGB;
-}
-
-// Apply gamma correction using sRGB gamma curve
-float gammaEncode(float x) {
-    return x <= 0.0031308f
-        ? x * 12.92f
-        : 1.055f * pow(x, 0.4166667f) - 0.055f;
-}
 
-// Apply gamma correction to each color channel in RGB pixel
-vec3 gammaCorrectPixel(vec3 rgb) {
-    vec3 ret;
-    ret.r = gammaEncode(rgb.r);
-    ret.g = gammaEncode(rgb.g);
-    ret.b = gammaEncode(rgb.b);
-    return ret;
-}
-
-vec3 applyColorspace(vec3 intermediate) {
-    vec3 proPhoto, sRGB;
-
-    intermediate = xyYtoXYZ(intermediate);
-
-    proPhoto = clamp(intermediateToProPhoto * intermediate, 0.f, 1.f);
-    proPhoto = tonemap(proPhoto);
-
-    sRGB = clamp(proPhotoToSRGB * proPhoto, 0.f, 1.f);
-    sRGB = gammaCorrectPixel(sRGB);
-
-    return sRGB;
-}
+    ivec2 xy = outXY + outOffset;
+    xy.y += yOffset;
 
-const vec3 gMonoMult = vec3(0.299f, 0.587f, 0.114f);
-vec3 saturate(vec3 rgb) {
-    float maxv = max(max(rgb.r, rgb.g), rgb.b);
-    float minv = min(min(rgb.r, rgb.g), rgb.b);
-    if (maxv > minv) {
-        float s = maxv - minv; // [0,1]
-        float saturation = saturationCurve.x - saturationCurve.y * pow(s, saturationCurve.z);
-        rgb = rgb * saturation + dot(rgb, gMonoMult) * (1.f - saturation);
-    }
-    return rgb;
+    vec3 sRGB = applyColorLut(processPatch(xy));
+    imageStore(outImage, outXY, vec4(sRGB, 1.f));
 }
-
+#else
 void main() {
     ivec2 xy = ivec2(gl_FragCoord.xy) + outOffset;
     xy.y += yOffset;
@@ -324,12 +272,9 @@ void main() {
     // Sharpen and denoise value
     vec3 intermediate = processPatch(xy);
 
-    // Convert to final colorspace
-    vec3 sRGB = applyColorspace(intermediate);
-
-    // Add saturation
-    sRGB = saturate(sRGB);
-    sRGB = clamp(sRGB, 0.f, 1.f);
+    // Convert to final colorspace and add saturation
+    vec3 sRGB = applyColorLut(intermediate);
 
     color = vec4(sRGB, 1.f);
 }
+#endif
@@ -0,0 +1,91 @@
+#version 300 es
+
+precision mediump float;
+
+// One of PYRAMID_BASE, PYRAMID_DOWN, PYRAMID_TOP or PYRAMID_UP is defined by GLProgram.
+// Every level holds (normal exposure, brightened exposure, weight of the normal exposure).
+
+#ifdef PYRAMID_BASE
+uniform sampler2D intermediateBuffer; // Only z is fused, so split chroma is not read
+uniform vec2 zRange;
+uniform vec2 histCurve;
+#else
+uniform sampler2D levelFine;
+uniform sampler2D levelCoarse;
+uniform sampler2D fusedCoarse;
+#endif
+
+// Out
+out vec4 result;
+
+// The brightened exposure lifts shadows by two stops
+const float BOOST = 4.f;
+const float WELL_EXPOSED_SIGMA = 0.2f;
+
+#ifdef PYRAMID_BASE
+float loadZ(ivec2 xy) {
+#if defined(INTERMEDIATE_SPLIT)
+    return texelFetch(intermediateBuffer, xy, 0).x;
+#elif defined(INTERMEDIATE_PACKED)
+    return texelFetch(intermediateBuffer, xy, 0).y;
+#else
+    return texelFetch(intermediateBuffer, xy, 0).z;
+#endif
+}
+
+float wellExposed(float exposure) {
+    // Measured after the approximate gamma of the output
+    float d = sqrt(exposure) - 0.5f;
+    return exp(-d * d / (2.f * WELL_EXPOSED_SIGMA * WELL_EXPOSED_SIGMA));
+}
+#endif
+
+void main() {
+    ivec2 xy = ivec2(gl_FragCoord.xy);
+
+#if defined(PYRAMID_BASE)
+    // The pyramid starts at half resolution, as the gain it produces is smooth
+    ivec2 xy2 = 2 * xy;
+    float z = 0.25f * (loadZ(xy2) + loadZ(xy2 + ivec2(1, 0))
+            + loadZ(xy2 + ivec2(0, 1)) + loadZ(xy2 + ivec2(1, 1)));
+
+    // Same global tone curve as the output stage
+    z = clamp((z - zRange.x) / (zRange.y - zRange.x), 0.f, 1.f);
+    z = histCurve.x * z*z + histCurve.y * z;
+
+    float bright = min(z * BOOST, 1.f);
+    float w = wellExposed(z);
+    float wBright = wellExposed(bright);
+    result = vec4(z, bright, w / (w + wBright + 1e-5f), 1.f);
+
+#elif defined(PYRAMID_DOWN)
+    // Four bilinear taps make a separable [1 3 3 1] / 8 kernel
+    highp vec2 size = vec2(textureSize(levelFine, 0));
+    highp vec2 center = vec2(2 * xy + 1);
+    result = 0.25f * (texture(levelFine, (center + vec2(-0.75f, -0.75f)) / size)
+            + texture(levelFine, (center + vec2(0.75f, -0.75f)) / size)
+            + texture(levelFine, (center + vec2(-0.75f, 0.75f)) / size)
+            + texture(levelFine, (center + vec2(0.75f, 0.75f)) / size));
+
+#elif defined(PYRAMID_TOP)
+    // The coarsest level is blended directly
+    vec4 level = texelFetch(levelFine, xy, 0);
+    result = vec4(mix(level.y, level.x, level.z), 0.f, 0.f, 1.f);
+
+#elif defined(PYRAMID_UP)
+    highp vec2 uv = (vec2(xy) + 0.5f) / vec2(textureSize(levelFine, 0));
+    vec4 fine = texelFetch(levelFine, xy, 0);
+    vec4 coarse = texture(levelCoarse, uv);
+
+    // Blend the Laplacian of both exposures with the weights of this level
+    float detail = mix(fine.y - coarse.y, fine.x - coarse.x, fine.z);
+    float fused = texture(fusedCoarse, uv).x + detail;
+
+#ifdef PYRAMID_GAIN
+    // The output stage applies the fused result as a gain on its own z
+    result = vec4(clamp(fused / max(fine.x, 1e-3f), 1.f, BOOST), 0.f, 0.f, 1.f);
+#else
+    result = vec4(fused, 0.f, 0.f, 1.f);
+#endif
+#endif
+}
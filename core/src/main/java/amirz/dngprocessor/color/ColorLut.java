@@ -0,0 +1,209 @@
+package amirz.dngprocessor.color;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Colour pipeline from the processed xyY intermediate to saturated sRGB, baked into a 3D table.
+ * The table is indexed by x, y and sqrt(Y), which spends more entries on the shadows where the
+ * gamma curve is steep.
+ */
+public class ColorLut {
+    public static final int SIZE = 65;
+    private static final int CACHE_SIZE = 4;
+
+    private static final float[] MONO_MULT = { 0.299f, 0.587f, 0.114f };
+
+    private static final Map<String, ColorLut> sCache =
+            new LinkedHashMap<String, ColorLut>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ColorLut> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Returns the table for a parameter set, reusing it when the same parameters were used for
+     * one of the previous images.
+     */
+    public static ColorLut get(float[] toneMapCoeffs, float[] intermediateToProPhoto,
+                               float[] proPhotoToSRGB, float[] saturationCurve) {
+        String key = Arrays.toString(toneMapCoeffs)
+                + Arrays.toString(intermediateToProPhoto)
+                + Arrays.toString(proPhotoToSRGB)
+                + Arrays.toString(saturationCurve);
+
+        synchronized (sCache) {
+            ColorLut lut = sCache.get(key);
+            if (lut == null) {
+                lut = new ColorLut(toneMapCoeffs, intermediateToProPhoto, proPhotoToSRGB,
+                        saturationCurve);
+                sCache.put(key, lut);
+            }
+            return lut;
+        }
+    }
+
+    private final float[] mToneMapCoeffs;
+    private final float[] mIntermediateToProPhoto;
+    private final float[] mProPhotoToSRGB;
+    private final float[] mSaturationCurve;
+    private FloatBuffer mTable;
+
+    private ColorLut(float[] toneMapCoeffs, float[] intermediateToProPhoto,
+                     float[] proPhotoToSRGB, float[] saturationCurve) {
+        mToneMapCoeffs = toneMapCoeffs.clone();
+        mIntermediateToProPhoto = intermediateToProPhoto.clone();
+        mProPhotoToSRGB = proPhotoToSRGB.clone();
+        mSaturationCurve = saturationCurve.clone();
+    }
+
+    /**
+     * RGB float entries with x varying fastest, then y, then sqrt(Y), ready for upload.
+     */
+    public synchronized FloatBuffer getTable() {
+        if (mTable == null) {
+            FloatBuffer table = ByteBuffer.allocateDirect(SIZE * SIZE * SIZE * 3 * 4)
+                    .order(ByteOrder.nativeOrder())
+                    .asFloatBuffer();
+
+            float[] xyY = new float[3];
+            float[] tmp = new float[3];
+            float[] rgb = new float[3];
+            for (int k = 0; k < SIZE; k++) {
+                float sqrtY = (float) k / (SIZE - 1);
+                xyY[2] = sqrtY * sqrtY;
+                for (int j = 0; j < SIZE; j++) {
+                    xyY[1] = (float) j / (SIZE - 1);
+                    for (int i = 0; i < SIZE; i++) {
+                        xyY[0] = (float) i / (SIZE - 1);
+                        apply(xyY, tmp, rgb);
+                        table.put(rgb);
+                    }
+                }
+            }
+
+            table.flip();
+            mTable = table;
+        }
+        mTable.position(0);
+        return mTable;
+    }
+
+    /**
+     * Exact evaluation of the colour pipeline for a single pixel.
+     * @param xyY Processed intermediate value.
+     * @param tmp Scratch space of three floats.
+     * @param rgb Set to the gamma encoded and saturated sRGB value.
+     */
+    public void apply(float[] xyY, float[] tmp, float[] rgb) {
+        xyYtoXYZ(xyY, tmp);
+
+        map(mIntermediateToProPhoto, tmp, rgb);
+        clamp(rgb);
+        tonemap(rgb, tmp);
+
+        map(mProPhotoToSRGB, tmp, rgb);
+        clamp(rgb);
+        for (int i = 0; i < 3; i++) {
+            rgb[i] = gammaEncode(rgb[i]);
+        }
+
+        saturate(rgb);
+        clamp(rgb);
+    }
+
+    private static void xyYtoXYZ(float[] xyY, float[] XYZ) {
+        XYZ[0] = 0f;
+        XYZ[1] = xyY[2];
+        XYZ[2] = 0f;
+        if (xyY[1] > 0f) {
+            XYZ[0] = xyY[0] * xyY[2] / xyY[1];
+            XYZ[2] = (1f - xyY[0] - xyY[1]) * xyY[2] / xyY[1];
+        }
+        clamp(XYZ);
+    }
+
+    /**
+     * Applies the tonemapping curve to the smallest and largest channel, and rescales the
+     * middle channel to keep the hue.
+     */
+    private void tonemap(float[] rgb, float[] out) {
+        int lo = 0, mid = 1, hi = 2, tmp;
+
+        // Sort the RGB channels by value
+        if (rgb[hi] < rgb[mid]) {
+            tmp = hi;
+            hi = mid;
+            mid = tmp;
+        }
+        if (rgb[mid] < rgb[lo]) {
+            tmp = mid;
+            mid = lo;
+            lo = tmp;
+        }
+        if (rgb[hi] < rgb[mid]) {
+            tmp = hi;
+            hi = mid;
+            mid = tmp;
+        }
+
+        float min = tonemapCurve(rgb[lo]);
+        float max = tonemapCurve(rgb[hi]);
+
+        // Rescale middle value
+        float newMid;
+        if (rgb[hi] == rgb[lo]) {
+            newMid = max;
+        } else {
+            float yprog = (rgb[mid] - rgb[lo]) / (rgb[hi] - rgb[lo]);
+            newMid = min + (max - min) * yprog;
+        }
+
+        out[lo] = min;
+        out[mid] = newMid;
+        out[hi] = max;
+    }
+
+    private float tonemapCurve(float x) {
+        return ((mToneMapCoeffs[0] * x + mToneMapCoeffs[1]) * x + mToneMapCoeffs[2]) * x
+                + mToneMapCoeffs[3];
+    }
+
+    // Apply gamma correction using sRGB gamma curve
+    private static float gammaEncode(float x) {
+        return x <= 0.0031308f
+                ? x * 12.92f
+                : 1.055f * (float) Math.pow(x, 0.4166667f) - 0.055f;
+    }
+
+    private void saturate(float[] rgb) {
+        float maxv = Math.max(Math.max(rgb[0], rgb[1]), rgb[2]);
+        float minv = Math.min(Math.min(rgb[0], rgb[1]), rgb[2]);
+        if (maxv > minv) {
+            float s = maxv - minv; // [0,1]
+            float saturation = mSaturationCurve[0]
+                    - mSaturationCurve[1] * (float) Math.pow(s, mSaturationCurve[2]);
+            float mono = rgb[0] * MONO_MULT[0] + rgb[1] * MONO_MULT[1] + rgb[2] * MONO_MULT[2];
+            for (int i = 0; i < 3; i++) {
+                rgb[i] = rgb[i] * saturation + mono * (1f - saturation);
+            }
+        }
+    }
+
+    private static void map(float[] matrix, float[] input, /*out*/float[] output) {
+        output[0] = input[0] * matrix[0] + input[1] * matrix[1] + input[2] * matrix[2];
+        output[1] = input[0] * matrix[3] + input[1] * matrix[4] + input[2] * matrix[5];
+        output[2] = input[0] * matrix[6] + input[1] * matrix[7] + input[2] * matrix[8];
+    }
+
+    private static void clamp(/*inout*/float[] v) {
+        for (int i = 0; i < 3; i++) {
+            v[i] = Math.max(0f, Math.min(v[i], 1f));
+        }
+    }
+}
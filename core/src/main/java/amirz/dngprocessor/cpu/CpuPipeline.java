@@ -0,0 +1,456 @@
+package amirz.dngprocessor.cpu;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import amirz.dngprocessor.color.ColorLut;
+import amirz.dngprocessor.params.AnalysisParams;
+
+/**
+ * Reference implementation of the shader pipeline that runs without an OpenGL context.
+ * Every stage mirrors the fragment shader of the same number, and is split into bands of rows
+ * that are processed in parallel. Scratch space is allocated per band, never per pixel.
+ */
+public class CpuPipeline {
+    private static final int BAND_HEIGHT = 32;
+
+    private static final float[] D65_XY = { 0.3127f, 0.3290f };
+
+    private final byte[] mRaw;
+    private final int mWidth, mHeight;
+    private float[] mIntermediate;
+    private int mIntermediateWidth, mIntermediateHeight;
+
+    /**
+     * @param raw RAW16 plane in little endian byte order, without row padding.
+     * @param width Width of the raw plane in pixels.
+     * @param height Height of the raw plane in pixels.
+     */
+    public CpuPipeline(byte[] raw, int width, int height) {
+        mRaw = raw;
+        mWidth = width;
+        mHeight = height;
+        mIntermediate = new float[width * height * 3];
+        mIntermediateWidth = width;
+        mIntermediateHeight = height;
+    }
+
+    /**
+     * @return Intermediate as xyY triples, to compare the stages with the shaders.
+     */
+    float[] getIntermediate() {
+        return mIntermediate;
+    }
+
+    int getIntermediateWidth() {
+        return mIntermediateWidth;
+    }
+
+    int getIntermediateHeight() {
+        return mIntermediateHeight;
+    }
+
+    /**
+     * Stage 1: Linearize, demosaic and convert to the xyY intermediate.
+     */
+    public void sensorToIntermediate(int cfaPattern, int[] blackLevel, int whiteLevel,
+                                     float[] neutralPoint, float[] sensorToXYZ) {
+        forEachBand(mHeight, (y0, y1) -> {
+            float[] patch = new float[9];
+            float[] sensor = new float[3];
+            for (int y = y0; y < y1; y++) {
+                int cy = clamp(y, 1, mHeight - 2);
+                for (int x = 0; x < mWidth; x++) {
+                    int cx = clamp(x, 1, mWidth - 2);
+
+                    int kk = 0;
+                    for (int j = cy - 1; j <= cy + 1; j++) {
+                        for (int i = cx - 1; i <= cx + 1; i++) {
+                            float bl = blackLevel[(i & 1) | ((j & 1) << 1)];
+                            patch[kk++] = (raw(i, j) - bl) / (whiteLevel - bl);
+                        }
+                    }
+
+                    demosaic(((cx & 1) | ((cy & 1) << 1)) ^ cfaPattern, patch, sensor);
+
+                    for (int c = 0; c < 3; c++) {
+                        sensor[c] = Math.min(Math.max(sensor[c], 0f), neutralPoint[c]);
+                    }
+
+                    float X = dot(sensorToXYZ, 0, sensor);
+                    float Y = dot(sensorToXYZ, 3, sensor);
+                    float Z = dot(sensorToXYZ, 6, sensor);
+
+                    int o = (y * mWidth + x) * 3;
+                    float sum = X + Y + Z;
+                    if (sum > 0f) {
+                        mIntermediate[o] = X / sum;
+                        mIntermediate[o + 1] = Y / sum;
+                        mIntermediate[o + 2] = Y;
+                    } else {
+                        mIntermediate[o] = 0f;
+                        mIntermediate[o + 1] = 0f;
+                        mIntermediate[o + 2] = 0f;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Replaces the intermediate by an area average of it, averaging in XYZ.
+     * @param scale Intermediate pixels per output pixel in each dimension, above one.
+     */
+    public void downscaleIntermediate(float scale) {
+        int width = (int) Math.ceil(mIntermediateWidth / scale);
+        int height = (int) Math.ceil(mIntermediateHeight / scale);
+        float[] scaled = new float[width * height * 3];
+
+        forEachBand(height, (y0, y1) -> {
+            for (int y = y0; y < y1; y++) {
+                float startY = y * scale;
+                float endY = startY + scale;
+                int lastY = Math.min((int) Math.ceil(endY) - 1, mIntermediateHeight - 1);
+                for (int x = 0; x < width; x++) {
+                    float startX = x * scale;
+                    float endX = startX + scale;
+                    int lastX = Math.min((int) Math.ceil(endX) - 1, mIntermediateWidth - 1);
+
+                    float X = 0f, Y = 0f, Z = 0f, totalWeight = 0f;
+                    for (int j = (int) startY; j <= lastY; j++) {
+                        float wy = Math.min(j + 1, endY) - Math.max(j, startY);
+                        for (int i = (int) startX; i <= lastX; i++) {
+                            float w = wy * (Math.min(i + 1, endX) - Math.max(i, startX));
+                            int o = (j * mIntermediateWidth + i) * 3;
+                            float cx = mIntermediate[o];
+                            float cy = mIntermediate[o + 1];
+                            float cY = mIntermediate[o + 2];
+                            if (cy > 0f) {
+                                float f = w * cY / cy;
+                                X += f * cx;
+                                Y += f * cy;
+                                Z += f * (1f - cx - cy);
+                            }
+                            totalWeight += w;
+                        }
+                    }
+
+                    int o = (y * width + x) * 3;
+                    float sum = X + Y + Z;
+                    if (sum > 0f) {
+                        scaled[o] = X / sum;
+                        scaled[o + 1] = Y / sum;
+                        scaled[o + 2] = Y / totalWeight;
+                    }
+                }
+            }
+        });
+
+        mIntermediate = scaled;
+        mIntermediateWidth = width;
+        mIntermediateHeight = height;
+    }
+
+    /**
+     * Stage 2: Sample the intermediate for its luminance and local standard deviations.
+     * @return Samples laid out as (z, chroma sigma, luma sigma, 1), as read back from the GPU.
+     */
+    public float[] analyzeIntermediate(int w, int h, int offsetX, int offsetY,
+                                       int samplingFactor) {
+        int aw = w / samplingFactor;
+        int ah = h / samplingFactor;
+        float[] analysis = new float[aw * ah * 4];
+
+        forEachBand(ah, (y0, y1) -> {
+            float[] patch = new float[27];
+            for (int y = y0; y < y1; y++) {
+                for (int x = 0; x < aw; x++) {
+                    load3x3(samplingFactor * x + offsetX, samplingFactor * y + offsetY, patch);
+
+                    float meanX = 0f, meanY = 0f, meanZ = 0f;
+                    for (int i = 0; i < 27; i += 3) {
+                        meanX += patch[i];
+                        meanY += patch[i + 1];
+                        meanZ += patch[i + 2];
+                    }
+                    meanX /= 9f;
+                    meanY /= 9f;
+                    meanZ /= 9f;
+
+                    float chromaSigma = 0f, lumaSigma = 0f;
+                    for (int i = 0; i < 27; i += 3) {
+                        float dx = meanX - patch[i];
+                        float dy = meanY - patch[i + 1];
+                        float dz = meanZ - patch[i + 2];
+                        chromaSigma += dx * dx + dy * dy;
+                        lumaSigma += dz * dz;
+                    }
+
+                    int o = (y * aw + x) * 4;
+                    analysis[o] = patch[14];
+                    analysis[o + 1] = (float) Math.sqrt(chromaSigma / 9f);
+                    analysis[o + 2] = (float) Math.sqrt(lumaSigma / 9f);
+                    analysis[o + 3] = 1f;
+                }
+            }
+        });
+
+        return analysis;
+    }
+
+    /**
+     * Stage 3: Denoise, sharpen, stretch the histogram and convert to sRGB.
+     * @param argbOutput Set to the output pixels, in the byte order of an RGBA readback.
+     */
+    public void intermediateToOutput(int outWidth, int outHeight, int offsetX, int offsetY,
+                                     AnalysisParams analysis, int denoiseFactor,
+                                     float sharpenFactor, ColorLut lut, int[] argbOutput) {
+        int radiusDenoise = analysis.denoiseRadius(denoiseFactor);
+        float effectiveSharpen = analysis.sharpenFactor(sharpenFactor);
+
+        forEachBand(outHeight, (y0, y1) -> {
+            float[] patch = new float[27];
+            float[] xyz = new float[3];
+            float[] tmp = new float[3];
+            float[] rgb = new float[3];
+            for (int y = y0; y < y1; y++) {
+                for (int x = 0; x < outWidth; x++) {
+                    processPatch(x + offsetX, y + offsetY, analysis, radiusDenoise,
+                            effectiveSharpen, patch, xyz);
+                    lut.apply(xyz, tmp, rgb);
+
+                    argbOutput[y * outWidth + x] = 0xFF000000
+                            | (toByte(rgb[2]) << 16)
+                            | (toByte(rgb[1]) << 8)
+                            | toByte(rgb[0]);
+                }
+            }
+        });
+    }
+
+    private void processPatch(int px, int py, AnalysisParams analysis, int radiusDenoise,
+                              float sharpenFactor, float[] patch, /*out*/float[] xyz) {
+        load3x3(px, py, patch);
+
+        // Take unfiltered xy and z as starting point.
+        float x = patch[12];
+        float y = patch[13];
+        float z = patch[14];
+        float distxy = 0f, distz = 0f;
+
+        /*
+         * CHROMA NOISE REDUCE
+         */
+        if (radiusDenoise > 0) {
+            float meanX = 0f, meanY = 0f, meanZ = 0f;
+            for (int i = 0; i < 27; i += 3) {
+                meanX += patch[i];
+                meanY += patch[i + 1];
+                meanZ += patch[i + 2];
+            }
+            meanX /= 9f;
+            meanY /= 9f;
+            meanZ /= 9f;
+
+            float chromaSigmaLocal = 0f, lumaSigmaLocal = 0f;
+            float minX = patch[0], minY = patch[1], minZ = patch[2];
+            float maxX = minX, maxY = minY, maxZ = minZ;
+            for (int i = 0; i < 27; i += 3) {
+                float dx = meanX - patch[i];
+                float dy = meanY - patch[i + 1];
+                float dz = meanZ - patch[i + 2];
+                chromaSigmaLocal += dx * dx + dy * dy;
+                lumaSigmaLocal += dz * dz;
+
+                minX = Math.min(minX, patch[i]);
+                minY = Math.min(minY, patch[i + 1]);
+                minZ = Math.min(minZ, patch[i + 2]);
+                maxX = Math.max(maxX, patch[i]);
+                maxY = Math.max(maxY, patch[i + 1]);
+                maxZ = Math.max(maxZ, patch[i + 2]);
+            }
+            chromaSigmaLocal /= 9f;
+            lumaSigmaLocal /= 9f;
+            distxy = distance(minX, minY, maxX, maxY);
+            distz = maxZ - minZ;
+
+            // Set thresholds as an average of local and global variance
+            float thXY = Math.max(analysis.chromaSigma * 8f + chromaSigmaLocal, 0.01f);
+            float thZ = Math.max(analysis.lumaSigma * 3f + lumaSigmaLocal * 1.5f, 0.01f);
+            float thZStop = thZ * 5f;
+
+            // Expand in a plus, (dx, dy) for left, right, up and down
+            float sumX = x, sumY = y;
+            int totalCount = 1;
+            for (int dir = 0; dir < 4; dir++) {
+                boolean horizontal = dir < 2;
+                int step = (dir & 1) == 0 ? -1 : 1;
+                int coord = horizontal ? px : py;
+                int bound = step < 0
+                        ? Math.max(coord - radiusDenoise, 0)
+                        : Math.min(coord + radiusDenoise,
+                                (horizontal ? mIntermediateWidth : mIntermediateHeight) - 1);
+
+                int count = 0;
+                float localdistz = 0f;
+                while ((step < 0 ? coord > bound : coord < bound) && localdistz < thZStop) {
+                    int o = horizontal
+                            ? (py * mIntermediateWidth + coord) * 3
+                            : (coord * mIntermediateWidth + px) * 3;
+                    coord += step * (2 << (count / 12));
+                    localdistz = Math.abs(z - mIntermediate[o + 2]);
+                    if (distance(x, y, mIntermediate[o], mIntermediate[o + 1]) <= thXY
+                            && localdistz <= thZ) {
+                        sumX += mIntermediate[o];
+                        sumY += mIntermediate[o + 1];
+                        count++;
+                    }
+                }
+                totalCount += count;
+            }
+
+            x = sumX / totalCount;
+            y = sumY / totalCount;
+
+            // Grayshift xy based on noise level
+            float grayShift = clamp(30f * chromaSigmaLocal, 0f, 1f);
+            x = grayShift * D65_XY[0] + (1f - grayShift) * x;
+            y = grayShift * D65_XY[1] + (1f - grayShift) * y;
+        }
+
+        /*
+         * LUMA DENOISE AND SHARPEN
+         */
+        if (sharpenFactor > 0f) {
+            float effectiveSharpen = sharpenFactor;
+            if (radiusDenoise > 0) {
+                // Bias in favour of edges and against noise
+                effectiveSharpen *= clamp(0.8f + distz - 2f * distxy, 0f, 1f);
+            }
+
+            // Sum of difference with all pixels nearby
+            float dz = patch[14] * 9f;
+            for (int i = 2; i < 27; i += 3) {
+                dz -= patch[i];
+            }
+
+            // Use this difference to boost sharpness
+            z += effectiveSharpen * dz;
+        }
+
+        // Histogram equalization and contrast stretching
+        float[] zRange = analysis.zRange;
+        z = clamp((z - zRange[0]) / (zRange[1] - zRange[0]), 0f, 1f);
+        z = analysis.histCurve[0] * z * z + analysis.histCurve[1] * z;
+
+        xyz[0] = x;
+        xyz[1] = y;
+        xyz[2] = z;
+    }
+
+    private int raw(int x, int y) {
+        int i = (y * mWidth + x) * 2;
+        return (mRaw[i] & 0xFF) | ((mRaw[i + 1] & 0xFF) << 8);
+    }
+
+    private void load3x3(int x, int y, /*out*/float[] patch) {
+        int kk = 0;
+        for (int j = y - 1; j <= y + 1; j++) {
+            int row = clamp(j, 0, mIntermediateHeight - 1) * mIntermediateWidth;
+            for (int i = x - 1; i <= x + 1; i++) {
+                int o = (row + clamp(i, 0, mIntermediateWidth - 1)) * 3;
+                patch[kk++] = mIntermediate[o];
+                patch[kk++] = mIntermediate[o + 1];
+                patch[kk++] = mIntermediate[o + 2];
+            }
+        }
+    }
+
+    // Apply bilinear-interpolation to demosaic
+    private static void demosaic(int index, float[] in, /*out*/float[] rgb) {
+        float gMin, gMax;
+        switch (index) {
+            case 0: // Red centered
+                rgb[0] = in[4];
+                gMin = Math.min(Math.min(in[1], in[3]), Math.min(in[5], in[7]));
+                gMax = Math.max(Math.max(in[1], in[3]), Math.max(in[5], in[7]));
+                rgb[1] = (in[1] + in[3] + in[5] + in[7] - gMin - gMax) / 2f;
+                rgb[2] = (in[0] + in[2] + in[6] + in[8]) / 4f;
+                break;
+            case 1: // Green centered w/ horizontally adjacent Red
+                rgb[0] = (in[3] + in[5]) / 2f;
+                gMin = (Math.min(in[0], in[8]) + Math.min(in[2], in[6])) * 0.5f;
+                gMax = (Math.max(in[0], in[8]) + Math.max(in[2], in[6])) * 0.5f;
+                rgb[1] = clamp(in[4], gMin * 0.5f, gMax * 2f);
+                rgb[2] = (in[1] + in[7]) / 2f;
+                break;
+            case 2: // Green centered w/ horizontally adjacent Blue
+                rgb[0] = (in[1] + in[7]) / 2f;
+                gMin = (Math.min(in[0], in[8]) + Math.min(in[2], in[6])) * 0.5f;
+                gMax = (Math.max(in[0], in[8]) + Math.max(in[2], in[6])) * 0.5f;
+                rgb[1] = clamp(in[4], gMin * 0.5f, gMax * 2f);
+                rgb[2] = (in[3] + in[5]) / 2f;
+                break;
+            case 3: // Blue centered
+                rgb[0] = (in[0] + in[2] + in[6] + in[8]) / 4f;
+                gMin = Math.min(Math.min(in[1], in[3]), Math.min(in[5], in[7]));
+                gMax = Math.max(Math.max(in[1], in[3]), Math.max(in[5], in[7]));
+                rgb[1] = (in[1] + in[3] + in[5] + in[7] - gMin - gMax) / 2f;
+                rgb[2] = in[4];
+                break;
+        }
+    }
+
+    private static float dot(float[] matrix, int row, float[] v) {
+        return matrix[row] * v[0] + matrix[row + 1] * v[1] + matrix[row + 2] * v[2];
+    }
+
+    private static float distance(float x1, float y1, float x2, float y2) {
+        float dx = x1 - x2;
+        float dy = y1 - y2;
+        return (float) Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private static float clamp(float v, float min, float max) {
+        return Math.max(min, Math.min(v, max));
+    }
+
+    private static int clamp(int v, int min, int max) {
+        return Math.max(min, Math.min(v, max));
+    }
+
+    private static int toByte(float v) {
+        return (int) (v * 255f + 0.5f);
+    }
+
+    private interface BandKernel {
+        void run(int y0, int y1);
+    }
+
+    private static void forEachBand(int height, BandKernel kernel) {
+        ForkJoinPool.commonPool().invoke(new Bands(kernel, 0, height));
+    }
+
+    private static class Bands extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final BandKernel mKernel;
+        private final int mY0, mY1;
+
+        private Bands(BandKernel kernel, int y0, int y1) {
+            mKernel = kernel;
+            mY0 = y0;
+            mY1 = y1;
+        }
+
+        @Override
+        protected void compute() {
+            if (mY1 - mY0 <= BAND_HEIGHT) {
+                mKernel.run(mY0, mY1);
+            } else {
+                int mid = (mY0 + mY1) >>> 1;
+                invokeAll(new Bands(mKernel, mY0, mid), new Bands(mKernel, mid, mY1));
+            }
+        }
+    }
+}
@@ -1,24 +1,23 @@
 package amirz.dngprocessor.device;
 
-import android.util.Rational;
-import android.util.SparseArray;
-
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
+import amirz.dngprocessor.math.Rational;
 import amirz.dngprocessor.parser.TIFFTag;
 
 public class DeviceMap {
     public interface Device {
         boolean isModel(String model);
 
-        void neutralPointCorrection(SparseArray<TIFFTag> tags, Rational[] neutral);
+        void neutralPointCorrection(Map<Integer, TIFFTag> tags, Rational[] neutral);
 
         // [0, 1] is the default, closer means more histogram stretching.
-        float[] stretchPerc(SparseArray<TIFFTag> tags);
+        float[] stretchPerc(Map<Integer, TIFFTag> tags);
 
         // 0 is the default, higher means more value sharpening.
-        float sharpenFactor(SparseArray<TIFFTag> tags);
+        float sharpenFactor(Map<Integer, TIFFTag> tags);
     }
 
     private static final List<Device> sDevices = new ArrayList<>();
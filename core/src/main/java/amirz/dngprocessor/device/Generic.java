@@ -1,8 +1,8 @@
 package amirz.dngprocessor.device;
 
-import android.util.Rational;
-import android.util.SparseArray;
+import java.util.Map;
 
+import amirz.dngprocessor.math.Rational;
 import amirz.dngprocessor.parser.TIFFTag;
 
 public class Generic implements DeviceMap.Device {
@@ -12,16 +12,16 @@ public class Generic implements DeviceMap.Device {
     }
 
     @Override
-    public void neutralPointCorrection(SparseArray<TIFFTag> tags, Rational[] neutral) {
+    public void neutralPointCorrection(Map<Integer, TIFFTag> tags, Rational[] neutral) {
     }
 
     @Override
-    public float sharpenFactor(SparseArray<TIFFTag> tags) {
+    public float sharpenFactor(Map<Integer, TIFFTag> tags) {
         return 0.7f;
     }
 
     @Override
-    public float[] stretchPerc(SparseArray<TIFFTag> tags) {
+    public float[] stretchPerc(Map<Integer, TIFFTag> tags) {
         return new float[] { 0.01f, 0.995f };
     }
 }
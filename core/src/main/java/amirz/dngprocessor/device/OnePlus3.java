@@ -1,8 +1,8 @@
 package amirz.dngprocessor.device;
 
-import android.util.Rational;
-import android.util.SparseArray;
+import java.util.Map;
 
+import amirz.dngprocessor.math.Rational;
 import amirz.dngprocessor.parser.TIFF;
 import amirz.dngprocessor.parser.TIFFTag;
 
@@ -13,7 +13,7 @@ public class OnePlus3 extends Generic {
     }
 
     @Override
-    public void neutralPointCorrection(SparseArray<TIFFTag> tags, Rational[] neutral) {
+    public void neutralPointCorrection(Map<Integer, TIFFTag> tags, Rational[] neutral) {
         if (lowLight(tags)) {
             // Set a more red neutral point, to blue shift the final image
             neutral[2] = new Rational(neutral[2].getNumerator() * 14, neutral[2].getDenominator() * 15);
@@ -23,21 +23,21 @@ public class OnePlus3 extends Generic {
     }
 
     @Override
-    public float[] stretchPerc(SparseArray<TIFFTag> tags) {
+    public float[] stretchPerc(Map<Integer, TIFFTag> tags) {
         return noLight(tags)
                 ? new float[] { 0f, 1f }
                 : super.stretchPerc(tags);
     }
 
-    private boolean lowLight(SparseArray<TIFFTag> tags) {
+    private boolean lowLight(Map<Integer, TIFFTag> tags) {
         return exposureAtLeast(tags, 0.05f);
     }
 
-    private boolean noLight(SparseArray<TIFFTag> tags) {
+    private boolean noLight(Map<Integer, TIFFTag> tags) {
         return exposureAtLeast(tags, 0.1f);
     }
 
-    private boolean exposureAtLeast(SparseArray<TIFFTag> tags, float min) {
+    private boolean exposureAtLeast(Map<Integer, TIFFTag> tags, float min) {
         TIFFTag exposure = tags.get(TIFF.TAG_ExposureTime);
         return exposure != null && exposure.getRational().floatValue() >= min;
     }
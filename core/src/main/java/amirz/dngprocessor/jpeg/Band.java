@@ -0,0 +1,118 @@
+package amirz.dngprocessor.jpeg;
+
+/**
+ * One row of MCUs, which is also one restart interval. Bands do not depend on each other, as the
+ * DC predictions are reset at every restart marker, so they can be coded on any thread.
+ */
+class Band {
+    static final int MCU_SIZE = 16;
+
+    private final int mWidth;
+    private final int mMcuColumns;
+    private final float[] mLumaDivisors;
+    private final float[] mChromaDivisors;
+
+    // Pixels of the band, and its planes with the width padded to whole MCUs
+    final int[] pixels;
+    int rows;
+    private final float[] mY;
+    private final float[] mCb, mCr;
+    private final float[] mCbHalf, mCrHalf;
+
+    private final float[] mBlock = new float[64];
+    private final int[] mCoefficients = new int[64];
+    private final int[] mLastDc = new int[3];
+    final BitWriter bits = new BitWriter();
+
+    Band(int width, float[] lumaDivisors, float[] chromaDivisors) {
+        mWidth = width;
+        mMcuColumns = mcuColumns(width);
+        mLumaDivisors = lumaDivisors;
+        mChromaDivisors = chromaDivisors;
+
+        int paddedWidth = mMcuColumns * MCU_SIZE;
+        pixels = new int[width * MCU_SIZE];
+        mY = new float[paddedWidth * MCU_SIZE];
+        mCb = new float[paddedWidth * MCU_SIZE];
+        mCr = new float[paddedWidth * MCU_SIZE];
+        mCbHalf = new float[paddedWidth * MCU_SIZE / 4];
+        mCrHalf = new float[paddedWidth * MCU_SIZE / 4];
+    }
+
+    static int mcuColumns(int width) {
+        return (width + MCU_SIZE - 1) / MCU_SIZE;
+    }
+
+    /**
+     * Codes the rows that were filled in into {@link #bits}, padded to a whole byte.
+     */
+    void encode() {
+        // The last band of the image is padded by repeating its bottom row
+        for (int row = rows; row < MCU_SIZE; row++) {
+            System.arraycopy(pixels, (rows - 1) * mWidth, pixels, row * mWidth, mWidth);
+        }
+
+        toYCbCr();
+
+        bits.reset();
+        mLastDc[0] = mLastDc[1] = mLastDc[2] = 0;
+        int paddedWidth = mMcuColumns * MCU_SIZE;
+        for (int mcu = 0; mcu < mMcuColumns; mcu++) {
+            int x = mcu * MCU_SIZE;
+            encodeBlock(mY, paddedWidth, x, 0, 0, mLumaDivisors, true);
+            encodeBlock(mY, paddedWidth, x + 8, 0, 0, mLumaDivisors, true);
+            encodeBlock(mY, paddedWidth, x, 8, 0, mLumaDivisors, true);
+            encodeBlock(mY, paddedWidth, x + 8, 8, 0, mLumaDivisors, true);
+            encodeBlock(mCbHalf, paddedWidth / 2, x / 2, 0, 1, mChromaDivisors, false);
+            encodeBlock(mCrHalf, paddedWidth / 2, x / 2, 0, 2, mChromaDivisors, false);
+        }
+        bits.pad();
+    }
+
+    private void toYCbCr() {
+        int paddedWidth = mMcuColumns * MCU_SIZE;
+        for (int row = 0; row < MCU_SIZE; row++) {
+            for (int x = 0; x < paddedWidth; x++) {
+                // Columns beyond the edge repeat the last pixel
+                int px = pixels[row * mWidth + Math.min(x, mWidth - 1)];
+                float r = px & 0xFF;
+                float g = (px >> 8) & 0xFF;
+                float b = (px >> 16) & 0xFF;
+
+                int i = row * paddedWidth + x;
+                mY[i] = 0.299f * r + 0.587f * g + 0.114f * b - 128f;
+                mCb[i] = -0.168736f * r - 0.331264f * g + 0.5f * b;
+                mCr[i] = 0.5f * r - 0.418688f * g - 0.081312f * b;
+            }
+        }
+
+        int halfWidth = paddedWidth / 2;
+        for (int row = 0; row < MCU_SIZE / 2; row++) {
+            for (int x = 0; x < halfWidth; x++) {
+                int i = 2 * row * paddedWidth + 2 * x;
+                int j = i + paddedWidth;
+                mCbHalf[row * halfWidth + x] = 0.25f * (mCb[i] + mCb[i + 1] + mCb[j] + mCb[j + 1]);
+                mCrHalf[row * halfWidth + x] = 0.25f * (mCr[i] + mCr[i + 1] + mCr[j] + mCr[j + 1]);
+            }
+        }
+    }
+
+    private void encodeBlock(float[] plane, int stride, int x, int y, int component,
+                             float[] divisors, boolean luma) {
+        for (int row = 0; row < 8; row++) {
+            System.arraycopy(plane, (y + row) * stride + x, mBlock, row * 8, 8);
+        }
+        Dct.forward(mBlock);
+
+        for (int i = 0; i < 64; i++) {
+            int n = JpegTables.ZIGZAG[i];
+            mCoefficients[i] = Math.round(mBlock[n] * divisors[n]);
+        }
+
+        int diff = mCoefficients[0] - mLastDc[component];
+        mLastDc[component] = mCoefficients[0];
+        bits.writeBlock(mCoefficients, diff,
+                luma ? JpegTables.DC_LUMA : JpegTables.DC_CHROMA,
+                luma ? JpegTables.AC_LUMA : JpegTables.AC_CHROMA);
+    }
+}
@@ -0,0 +1,99 @@
+package amirz.dngprocessor.jpeg;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Collects Huffman coded blocks as entropy coded data, with byte stuffing after every 0xFF.
+ * Every restart interval is coded into its own writer, so intervals can be coded concurrently.
+ */
+class BitWriter {
+    private byte[] mBuffer = new byte[64 * 1024];
+    private int mLength;
+    private int mBits;
+    private int mBitCount;
+
+    void writeBlock(int[] zigzag, int dcDiff, JpegTables.Huffman dc, JpegTables.Huffman ac) {
+        int category = category(dcDiff);
+        write(dc.codes[category], dc.sizes[category]);
+        writeValue(dcDiff, category);
+
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            int value = zigzag[k];
+            if (value == 0) {
+                run++;
+                continue;
+            }
+
+            // Runs longer than 15 zeros are split off with ZRL
+            while (run > 15) {
+                write(ac.codes[0xF0], ac.sizes[0xF0]);
+                run -= 16;
+            }
+
+            category = category(value);
+            int symbol = (run << 4) | category;
+            write(ac.codes[symbol], ac.sizes[symbol]);
+            writeValue(value, category);
+            run = 0;
+        }
+
+        if (run > 0) {
+            write(ac.codes[0x00], ac.sizes[0x00]); // EOB
+        }
+    }
+
+    /**
+     * Pads the last byte with ones, as required before a marker.
+     */
+    void pad() {
+        if (mBitCount > 0) {
+            int padding = 8 - mBitCount;
+            write((1 << padding) - 1, padding);
+        }
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(mBuffer, 0, mLength);
+    }
+
+    void reset() {
+        mLength = 0;
+        mBits = 0;
+        mBitCount = 0;
+    }
+
+    private void writeValue(int value, int category) {
+        if (category > 0) {
+            // Negative values are stored as their ones' complement
+            write(value < 0 ? value - 1 : value, category);
+        }
+    }
+
+    private void write(int bits, int count) {
+        mBits = (mBits << count) | (bits & ((1 << count) - 1));
+        mBitCount += count;
+
+        while (mBitCount >= 8) {
+            int b = (mBits >> (mBitCount - 8)) & 0xFF;
+            mBitCount -= 8;
+            put(b);
+            if (b == 0xFF) {
+                put(0);
+            }
+        }
+    }
+
+    private void put(int b) {
+        if (mLength == mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer, mLength * 2);
+        }
+        mBuffer[mLength++] = (byte) b;
+    }
+
+    private static int category(int value) {
+        return 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+    }
+}
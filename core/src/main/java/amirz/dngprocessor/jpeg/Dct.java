@@ -0,0 +1,80 @@
+package amirz.dngprocessor.jpeg;
+
+/**
+ * Floating point forward DCT using the factorization of Arai, Agui and Nakajima, as in libjpeg.
+ * Its output is scaled per coefficient, which is folded into the quantization divisors.
+ */
+class Dct {
+    private static final float[] AAN_SCALE = {
+            1f, 1.387039845f, 1.306562965f, 1.175875602f,
+            1f, 0.785694958f, 0.541196100f, 0.275899379f
+    };
+
+    /**
+     * @return Multipliers that undo the scaling of the transform and quantize in one step.
+     */
+    static float[] divisors(int[] quant) {
+        float[] divisors = new float[64];
+        for (int row = 0; row < 8; row++) {
+            for (int col = 0; col < 8; col++) {
+                int i = row * 8 + col;
+                divisors[i] = 1f / (quant[i] * AAN_SCALE[row] * AAN_SCALE[col] * 8f);
+            }
+        }
+        return divisors;
+    }
+
+    /**
+     * Transforms an 8x8 block of level shifted samples in place.
+     */
+    static void forward(float[] block) {
+        for (int i = 0; i < 8; i++) {
+            pass(block, i * 8, 1);
+        }
+        for (int i = 0; i < 8; i++) {
+            pass(block, i, 8);
+        }
+    }
+
+    private static void pass(float[] d, int o, int s) {
+        float tmp0 = d[o] + d[o + 7 * s];
+        float tmp7 = d[o] - d[o + 7 * s];
+        float tmp1 = d[o + s] + d[o + 6 * s];
+        float tmp6 = d[o + s] - d[o + 6 * s];
+        float tmp2 = d[o + 2 * s] + d[o + 5 * s];
+        float tmp5 = d[o + 2 * s] - d[o + 5 * s];
+        float tmp3 = d[o + 3 * s] + d[o + 4 * s];
+        float tmp4 = d[o + 3 * s] - d[o + 4 * s];
+
+        // Even part
+        float tmp10 = tmp0 + tmp3;
+        float tmp13 = tmp0 - tmp3;
+        float tmp11 = tmp1 + tmp2;
+        float tmp12 = tmp1 - tmp2;
+
+        d[o] = tmp10 + tmp11;
+        d[o + 4 * s] = tmp10 - tmp11;
+
+        float z1 = (tmp12 + tmp13) * 0.707106781f;
+        d[o + 2 * s] = tmp13 + z1;
+        d[o + 6 * s] = tmp13 - z1;
+
+        // Odd part
+        tmp10 = tmp4 + tmp5;
+        tmp11 = tmp5 + tmp6;
+        tmp12 = tmp6 + tmp7;
+
+        float z5 = (tmp10 - tmp12) * 0.382683433f;
+        float z2 = 0.541196100f * tmp10 + z5;
+        float z4 = 1.306562965f * tmp12 + z5;
+        float z3 = tmp11 * 0.707106781f;
+
+        float z11 = tmp7 + z3;
+        float z13 = tmp7 - z3;
+
+        d[o + 5 * s] = z13 + z2;
+        d[o + 3 * s] = z13 - z2;
+        d[o + s] = z11 + z4;
+        d[o + 7 * s] = z11 - z4;
+    }
+}
@@ -0,0 +1,225 @@
+package amirz.dngprocessor.jpeg;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+import amirz.dngprocessor.math.Rational;
+
+/**
+ * Assembles an EXIF APP1 segment, so the metadata is written together with the JPEG stream
+ * instead of rewriting the finished file. Tags from 0x829A upward are placed in the Exif IFD,
+ * all others in IFD0. A thumbnail is not known yet when the segment is written, so IFD1 only
+ * reserves space for it, which is filled in after the image was encoded.
+ */
+public class ExifWriter {
+    public static final int TAG_MAKE = 0x010F;
+    public static final int TAG_MODEL = 0x0110;
+    public static final int TAG_ORIENTATION = 0x0112;
+    public static final int TAG_X_RESOLUTION = 0x011A;
+    public static final int TAG_Y_RESOLUTION = 0x011B;
+    public static final int TAG_SOFTWARE = 0x0131;
+    public static final int TAG_DATETIME = 0x0132;
+    public static final int TAG_EXPOSURE_TIME = 0x829A;
+    public static final int TAG_F_NUMBER = 0x829D;
+    public static final int TAG_ISO_SPEED_RATINGS = 0x8827;
+    public static final int TAG_FOCAL_LENGTH = 0x920A;
+
+    private static final int TAG_COMPRESSION = 0x0103;
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_EXIF_VERSION = 0x9000;
+    private static final int FIRST_EXIF_TAG = TAG_EXPOSURE_TIME;
+
+    private static final short TYPE_ASCII = 2;
+    private static final short TYPE_SHORT = 3;
+    private static final short TYPE_LONG = 4;
+    private static final short TYPE_RATIONAL = 5;
+    private static final short TYPE_UNDEFINED = 7;
+
+    private static final int TIFF_HEADER_SIZE = 8;
+    private static final int ENTRY_SIZE = 12;
+
+    // SOI, the APP1 marker and length, and the Exif identifier come before the TIFF header
+    private static final int TIFF_FILE_OFFSET = 2 + 4 + 6;
+    private static final int COMPRESSION_JPEG = 6;
+
+    private static class Entry {
+        final short type;
+        final int count;
+        final byte[] data; // Big endian value
+
+        Entry(short type, int count, byte[] data) {
+            this.type = type;
+            this.count = count;
+            this.data = data;
+        }
+    }
+
+    private final Map<Integer, Entry> mIfd0 = new TreeMap<>();
+    private final Map<Integer, Entry> mExifIfd = new TreeMap<>();
+
+    private int mThumbnailCapacity;
+    private int mThumbnailOffset;
+    private int mThumbnailLengthOffset;
+
+    public ExifWriter() {
+        put(TAG_EXIF_VERSION, new Entry(TYPE_UNDEFINED, 4,
+                "0230".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    public void setAscii(int tag, String value) {
+        byte[] text = value.getBytes(StandardCharsets.US_ASCII);
+        byte[] data = new byte[text.length + 1]; // NUL terminated
+        System.arraycopy(text, 0, data, 0, text.length);
+        put(tag, new Entry(TYPE_ASCII, data.length, data));
+    }
+
+    public void setShort(int tag, int value) {
+        put(tag, new Entry(TYPE_SHORT, 1, new byte[] { (byte) (value >> 8), (byte) value }));
+    }
+
+    public void setRational(int tag, Rational value) {
+        put(tag, new Entry(TYPE_RATIONAL, 1, ByteBuffer.allocate(8)
+                .putInt(value.getNumerator())
+                .putInt(value.getDenominator())
+                .array()));
+    }
+
+    /**
+     * Reserves space for a JPEG thumbnail of up to the given number of bytes in IFD1.
+     */
+    public void reserveThumbnail(int capacity) {
+        mThumbnailCapacity = capacity;
+    }
+
+    /**
+     * Fills in the reserved thumbnail of a file in which this segment directly follows SOI, as
+     * {@link JpegEncoder} writes it.
+     */
+    public void writeThumbnail(RandomAccessFile file, byte[] jpeg) throws IOException {
+        if (jpeg.length > mThumbnailCapacity) {
+            throw new IllegalArgumentException("Thumbnail of " + jpeg.length
+                    + " bytes exceeds the reserved " + mThumbnailCapacity + " bytes");
+        }
+        if (mThumbnailOffset == 0) {
+            throw new IllegalStateException("Segment has not been written yet");
+        }
+
+        file.seek(TIFF_FILE_OFFSET + mThumbnailOffset);
+        file.write(jpeg);
+        file.seek(TIFF_FILE_OFFSET + mThumbnailLengthOffset);
+        file.writeInt(jpeg.length);
+    }
+
+    private void put(int tag, Entry entry) {
+        (tag >= FIRST_EXIF_TAG ? mExifIfd : mIfd0).put(tag, entry);
+    }
+
+    /**
+     * Writes the complete APP1 segment, including its marker.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        byte[] tiff = toTiff();
+        int length = 2 + 6 + tiff.length;
+        if (length > 0xFFFF) {
+            throw new IllegalStateException("EXIF segment of " + length + " bytes is too large");
+        }
+
+        out.write(0xFF);
+        out.write(0xE1); // APP1
+        out.write(length >> 8);
+        out.write(length & 0xFF);
+        out.write(new byte[] { 'E', 'x', 'i', 'f', 0, 0 });
+        out.write(tiff);
+    }
+
+    private byte[] toTiff() {
+        // The pointer to the Exif IFD is an entry of IFD0 itself
+        Map<Integer, Entry> ifd0 = new TreeMap<>(mIfd0);
+        ifd0.put(TAG_EXIF_IFD, new Entry(TYPE_LONG, 1, new byte[4]));
+
+        int exifOffset = TIFF_HEADER_SIZE + ifdSize(ifd0);
+        int ifd1Offset = exifOffset + ifdSize(mExifIfd);
+        int size = ifd1Offset;
+
+        // The length of the thumbnail stays zero until it is written
+        TreeMap<Integer, Entry> ifd1 = new TreeMap<>();
+        if (mThumbnailCapacity > 0) {
+            ifd1.put(TAG_COMPRESSION, new Entry(TYPE_SHORT, 1,
+                    new byte[] { 0, COMPRESSION_JPEG }));
+            ifd1.put(TAG_THUMBNAIL_OFFSET, new Entry(TYPE_LONG, 1, new byte[4]));
+            ifd1.put(TAG_THUMBNAIL_LENGTH, new Entry(TYPE_LONG, 1, new byte[4]));
+
+            mThumbnailOffset = ifd1Offset + ifdSize(ifd1);
+            ifd1.put(TAG_THUMBNAIL_OFFSET, new Entry(TYPE_LONG, 1,
+                    ByteBuffer.allocate(4).putInt(mThumbnailOffset).array()));
+
+            // Entries are sorted by tag, and the value follows the tag, type and count
+            int lengthIndex = ifd1.headMap(TAG_THUMBNAIL_LENGTH).size();
+            mThumbnailLengthOffset = ifd1Offset + 2 + lengthIndex * ENTRY_SIZE + 8;
+            size = mThumbnailOffset + mThumbnailCapacity;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.BIG_ENDIAN);
+        buffer.put(new byte[] { 'M', 'M' });
+        buffer.putShort((short) 42);
+        buffer.putInt(TIFF_HEADER_SIZE);
+
+        ifd0.put(TAG_EXIF_IFD, new Entry(TYPE_LONG, 1,
+                ByteBuffer.allocate(4).putInt(exifOffset).array()));
+        writeIfd(buffer, ifd0, TIFF_HEADER_SIZE, ifd1.isEmpty() ? 0 : ifd1Offset);
+        writeIfd(buffer, mExifIfd, exifOffset, 0);
+        if (!ifd1.isEmpty()) {
+            writeIfd(buffer, ifd1, ifd1Offset, 0);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @return Bytes of the directory and of the values that do not fit in its entries.
+     */
+    private static int ifdSize(Map<Integer, Entry> ifd) {
+        int size = 2 + ifd.size() * ENTRY_SIZE + 4;
+        for (Entry entry : ifd.values()) {
+            if (entry.data.length > 4) {
+                size += entry.data.length + (entry.data.length & 1);
+            }
+        }
+        return size;
+    }
+
+    private static void writeIfd(ByteBuffer buffer, Map<Integer, Entry> ifd, int offset,
+                                 int nextOffset) {
+        int valueOffset = offset + 2 + ifd.size() * ENTRY_SIZE + 4;
+
+        buffer.position(offset);
+        buffer.putShort((short) ifd.size());
+        for (Map.Entry<Integer, Entry> tag : ifd.entrySet()) {
+            Entry entry = tag.getValue();
+            buffer.putShort(tag.getKey().shortValue());
+            buffer.putShort(entry.type);
+            buffer.putInt(entry.count);
+            if (entry.data.length <= 4) {
+                // Small values are stored left aligned in the entry
+                byte[] inline = new byte[4];
+                System.arraycopy(entry.data, 0, inline, 0, entry.data.length);
+                buffer.put(inline);
+            } else {
+                buffer.putInt(valueOffset);
+                int position = buffer.position();
+                buffer.position(valueOffset);
+                buffer.put(entry.data);
+                buffer.position(position);
+                valueOffset += entry.data.length + (entry.data.length & 1);
+            }
+        }
+        buffer.putInt(nextOffset);
+    }
+}
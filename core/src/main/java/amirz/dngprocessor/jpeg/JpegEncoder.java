@@ -0,0 +1,213 @@
+package amirz.dngprocessor.jpeg;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Baseline JPEG encoder with 4:2:0 chroma subsampling, which encodes every band of 16 rows as
+ * soon as it arrives. Bands are separated by restart markers, so they are coded concurrently and
+ * written in order. Only a few bands of pixels are buffered, so the full image never has to be
+ * in memory, and encoding overlaps the rendering of the next band.
+ */
+public class JpegEncoder implements RowSink {
+    private final OutputStream mOut;
+    private final int mWidth, mHeight;
+    private final ExecutorService mExecutor;
+    private final ExifWriter mExif;
+
+    private final int[] mLumaQuant;
+    private final int[] mChromaQuant;
+
+    // Bands that can be filled, and bands that are being coded in the order of the image
+    private final Deque<Band> mFree = new ArrayDeque<>();
+    private final Deque<Future<Band>> mCoding = new ArrayDeque<>();
+    private Band mBand;
+    private int mRowsDone;
+    private int mBandsWritten;
+
+    public JpegEncoder(OutputStream out, int width, int height, int quality) {
+        this(out, width, height, quality, null);
+    }
+
+    /**
+     * @param exif Metadata written in place of the JFIF header, or null to write no metadata.
+     */
+    public JpegEncoder(OutputStream out, int width, int height, int quality, ExifWriter exif) {
+        this(out, width, height, quality, exif, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param executor Codes the bands, up to two per thread of its parallelism are buffered.
+     */
+    public JpegEncoder(OutputStream out, int width, int height, int quality, ExifWriter exif,
+                       ExecutorService executor) {
+        mOut = out;
+        mWidth = width;
+        mHeight = height;
+        mExif = exif;
+        mExecutor = executor;
+
+        mLumaQuant = JpegTables.scaleQuant(JpegTables.LUMA_QUANT, quality);
+        mChromaQuant = JpegTables.scaleQuant(JpegTables.CHROMA_QUANT, quality);
+        float[] lumaDivisors = Dct.divisors(mLumaQuant);
+        float[] chromaDivisors = Dct.divisors(mChromaQuant);
+
+        int bands = 2 * Runtime.getRuntime().availableProcessors();
+        if (executor instanceof ForkJoinPool) {
+            bands = 2 * Math.max(((ForkJoinPool) executor).getParallelism(), 1);
+        }
+        for (int i = 0; i < bands; i++) {
+            mFree.add(new Band(width, lumaDivisors, chromaDivisors));
+        }
+        mBand = mFree.poll();
+
+        try {
+            writeHeaders();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void onRows(int[] pixels, int offset, int rows) {
+        while (rows > 0) {
+            int copy = Math.min(rows, Band.MCU_SIZE - mBand.rows);
+            System.arraycopy(pixels, offset, mBand.pixels, mBand.rows * mWidth, copy * mWidth);
+            mBand.rows += copy;
+            offset += copy * mWidth;
+            rows -= copy;
+
+            if (mBand.rows == Band.MCU_SIZE) {
+                submitBand();
+            }
+        }
+    }
+
+    @Override
+    public void finish() {
+        if (mBand.rows > 0) {
+            submitBand();
+        }
+        try {
+            while (!mCoding.isEmpty()) {
+                writeOldest();
+            }
+            if (mRowsDone < mHeight) {
+                throw new IllegalStateException("Only " + mRowsDone + " of " + mHeight
+                        + " rows were encoded");
+            }
+
+            writeMarker(0xD9); // EOI
+            mOut.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void submitBand() {
+        Band band = mBand;
+        mRowsDone += band.rows;
+        mCoding.add(mExecutor.submit(() -> {
+            band.encode();
+            return band;
+        }));
+
+        try {
+            // Wait for the oldest band when all of them are in use
+            while (mFree.isEmpty()) {
+                writeOldest();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        mBand = mFree.poll();
+    }
+
+    private void writeOldest() throws IOException {
+        Band band;
+        try {
+            band = mCoding.poll().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+
+        if (mBandsWritten > 0) {
+            writeMarker(0xD0 + (mBandsWritten - 1) % 8); // RSTn
+        }
+        band.bits.writeTo(mOut);
+        mBandsWritten++;
+
+        band.rows = 0;
+        mFree.add(band);
+    }
+
+    private void writeHeaders() throws IOException {
+        writeMarker(0xD8); // SOI
+
+        if (mExif != null) {
+            // Both must directly follow SOI, so EXIF files leave out JFIF as cameras do
+            mExif.writeTo(mOut);
+        } else {
+            // JFIF
+            writeMarker(0xE0);
+            writeShort(16);
+            mOut.write(new byte[] { 'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0 });
+        }
+
+        // Quantization tables in zigzag order
+        writeMarker(0xDB);
+        writeShort(2 + 2 * 65);
+        mOut.write(0);
+        for (int i = 0; i < 64; i++) {
+            mOut.write(mLumaQuant[JpegTables.ZIGZAG[i]]);
+        }
+        mOut.write(1);
+        for (int i = 0; i < 64; i++) {
+            mOut.write(mChromaQuant[JpegTables.ZIGZAG[i]]);
+        }
+
+        // Frame with 2x2 subsampled chroma
+        writeMarker(0xC0);
+        writeShort(17);
+        mOut.write(8);
+        writeShort(mHeight);
+        writeShort(mWidth);
+        mOut.write(3);
+        mOut.write(new byte[] { 1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1 });
+
+        JpegTables.DC_LUMA.writeTo(mOut, 0x00);
+        JpegTables.AC_LUMA.writeTo(mOut, 0x10);
+        JpegTables.DC_CHROMA.writeTo(mOut, 0x01);
+        JpegTables.AC_CHROMA.writeTo(mOut, 0x11);
+
+        // One restart interval per row of MCUs
+        writeMarker(0xDD); // DRI
+        writeShort(4);
+        writeShort(Band.mcuColumns(mWidth));
+
+        writeMarker(0xDA); // SOS
+        writeShort(12);
+        mOut.write(3);
+        mOut.write(new byte[] { 1, 0x00, 2, 0x11, 3, 0x11, 0, 63, 0 });
+    }
+
+    private void writeMarker(int marker) throws IOException {
+        mOut.write(0xFF);
+        mOut.write(marker);
+    }
+
+    private void writeShort(int value) throws IOException {
+        mOut.write(value >> 8);
+        mOut.write(value & 0xFF);
+    }
+}
@@ -0,0 +1,18 @@
+package amirz.dngprocessor.jpeg;
+
+/**
+ * Receives the rows of an output image from top to bottom, in bands as they are rendered.
+ */
+public interface RowSink {
+    /**
+     * @param pixels Pixels in the byte order of an RGBA readback, so red is the lowest byte.
+     * @param offset Index of the first pixel of the band in the array.
+     * @param rows Number of full rows in the band.
+     */
+    void onRows(int[] pixels, int offset, int rows);
+
+    /**
+     * Called once after the last row was delivered.
+     */
+    void finish();
+}
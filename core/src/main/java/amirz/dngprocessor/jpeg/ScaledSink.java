@@ -0,0 +1,93 @@
+package amirz.dngprocessor.jpeg;
+
+import java.util.Arrays;
+
+/**
+ * Downscales the rows of an image by an integer factor while they arrive, by averaging every
+ * box of factor by factor pixels. Only one row of sums is kept, and every output row is passed
+ * on as soon as its box is complete. Boxes at the right and bottom edge may be partial.
+ */
+public class ScaledSink implements RowSink {
+    private final int mWidth;
+    private final int mFactor;
+    private final int mOutWidth, mOutHeight;
+    private final RowSink mTarget;
+
+    // Channel sums of the output row in progress
+    private final int[] mSums;
+    private final int[] mRow;
+    private int mBoxRows;
+
+    public ScaledSink(int width, int height, int factor, RowSink target) {
+        mWidth = width;
+        mFactor = factor;
+        mOutWidth = (width + factor - 1) / factor;
+        mOutHeight = (height + factor - 1) / factor;
+        mTarget = target;
+
+        mSums = new int[4 * mOutWidth];
+        mRow = new int[mOutWidth];
+    }
+
+    /**
+     * @return Smallest factor that fits the longest side of the image in maxSize pixels.
+     */
+    public static int factorFor(int width, int height, int maxSize) {
+        int size = Math.max(width, height);
+        return Math.max((size + maxSize - 1) / maxSize, 1);
+    }
+
+    public int getWidth() {
+        return mOutWidth;
+    }
+
+    public int getHeight() {
+        return mOutHeight;
+    }
+
+    @Override
+    public void onRows(int[] pixels, int offset, int rows) {
+        for (int row = 0; row < rows; row++) {
+            int start = offset + row * mWidth;
+            for (int x = 0; x < mWidth; x++) {
+                int px = pixels[start + x];
+                int i = 4 * (x / mFactor);
+                mSums[i] += px & 0xFF;
+                mSums[i + 1] += (px >> 8) & 0xFF;
+                mSums[i + 2] += (px >> 16) & 0xFF;
+                mSums[i + 3] += px >>> 24;
+            }
+
+            if (++mBoxRows == mFactor) {
+                emitRow();
+            }
+        }
+    }
+
+    @Override
+    public void finish() {
+        if (mBoxRows > 0) {
+            emitRow();
+        }
+        mTarget.finish();
+    }
+
+    private void emitRow() {
+        for (int x = 0; x < mOutWidth; x++) {
+            int boxWidth = Math.min(mFactor, mWidth - x * mFactor);
+            int count = boxWidth * mBoxRows;
+            int half = count / 2;
+
+            int i = 4 * x;
+            int r = (mSums[i] + half) / count;
+            int g = (mSums[i + 1] + half) / count;
+            int b = (mSums[i + 2] + half) / count;
+            int a = (mSums[i + 3] + half) / count;
+            mRow[x] = r | (g << 8) | (b << 16) | (a << 24);
+        }
+
+        mTarget.onRows(mRow, 0, 1);
+        Arrays.fill(mSums, 0);
+        mBoxRows = 0;
+    }
+}
@@ -0,0 +1,27 @@
+package amirz.dngprocessor.jpeg;
+
+/**
+ * Passes every band to several sinks, so one rendering produces all outputs. The sinks get the
+ * same array in turn, and none of them may keep it after returning.
+ */
+public class TeeSink implements RowSink {
+    private final RowSink[] mSinks;
+
+    public TeeSink(RowSink... sinks) {
+        mSinks = sinks;
+    }
+
+    @Override
+    public void onRows(int[] pixels, int offset, int rows) {
+        for (RowSink sink : mSinks) {
+            sink.onRows(pixels, offset, rows);
+        }
+    }
+
+    @Override
+    public void finish() {
+        for (RowSink sink : mSinks) {
+            sink.finish();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package amirz.dngprocessor.jpeg;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Builds the EXIF thumbnail from the rows of the full image, so it does not have to be decoded
+ * again. The downscaled pixels are kept, and encoded at a lower quality when the result does not
+ * fit in the space reserved for it.
+ */
+public class ThumbnailSink implements RowSink {
+    private static final int[] QUALITIES = { 90, 75, 60, 40, 20 };
+
+    private final int mCapacity;
+    private final ScaledSink mScaler;
+    private final int[] mPixels;
+    private int mRows;
+    private byte[] mJpeg;
+
+    /**
+     * @param maxSize Maximum length of the longest side of the thumbnail.
+     * @param capacity Maximum number of bytes of the encoded thumbnail.
+     */
+    public ThumbnailSink(int width, int height, int maxSize, int capacity) {
+        mCapacity = capacity;
+        mScaler = new ScaledSink(width, height, ScaledSink.factorFor(width, height, maxSize),
+                new RowSink() {
+                    @Override
+                    public void onRows(int[] pixels, int offset, int rows) {
+                        int length = rows * mScaler.getWidth();
+                        System.arraycopy(pixels, offset, mPixels, mRows * mScaler.getWidth(),
+                                length);
+                        mRows += rows;
+                    }
+
+                    @Override
+                    public void finish() {
+                        encode();
+                    }
+                });
+        mPixels = new int[mScaler.getWidth() * mScaler.getHeight()];
+    }
+
+    @Override
+    public void onRows(int[] pixels, int offset, int rows) {
+        mScaler.onRows(pixels, offset, rows);
+    }
+
+    @Override
+    public void finish() {
+        mScaler.finish();
+    }
+
+    /**
+     * @return The encoded thumbnail without a JFIF header, or null when it did not fit.
+     */
+    public byte[] getJpeg() {
+        return mJpeg;
+    }
+
+    private void encode() {
+        for (int quality : QUALITIES) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            JpegEncoder encoder = new JpegEncoder(out,
+                    mScaler.getWidth(), mScaler.getHeight(), quality);
+            encoder.onRows(mPixels, 0, mRows);
+            encoder.finish();
+
+            byte[] jpeg = stripJfif(out.toByteArray());
+            if (jpeg.length <= mCapacity) {
+                mJpeg = jpeg;
+                return;
+            }
+        }
+    }
+
+    /**
+     * EXIF thumbnails are plain JPEG streams, without an APP0 segment after SOI.
+     */
+    private static byte[] stripJfif(byte[] jpeg) {
+        if ((jpeg[2] & 0xFF) != 0xFF || (jpeg[3] & 0xFF) != 0xE0) {
+            return jpeg;
+        }
+        int skip = 2 + (((jpeg[4] & 0xFF) << 8) | (jpeg[5] & 0xFF));
+        byte[] stripped = Arrays.copyOf(jpeg, jpeg.length - skip);
+        System.arraycopy(jpeg, 2 + skip, stripped, 2, jpeg.length - 2 - skip);
+        return stripped;
+    }
+}
@@ -0,0 +1,31 @@
+package amirz.dngprocessor.math;
+
+/**
+ * Immutable fraction, as stored in TIFF rational tags.
+ */
+public class Rational {
+    private final int mNumerator;
+    private final int mDenominator;
+
+    public Rational(int numerator, int denominator) {
+        mNumerator = numerator;
+        mDenominator = denominator;
+    }
+
+    public int getNumerator() {
+        return mNumerator;
+    }
+
+    public int getDenominator() {
+        return mDenominator;
+    }
+
+    public float floatValue() {
+        return (float) mNumerator / (float) mDenominator;
+    }
+
+    @Override
+    public String toString() {
+        return mNumerator + "/" + mDenominator;
+    }
+}
@@ -0,0 +1,60 @@
+package amirz.dngprocessor.merge;
+
+/**
+ * Grayscale pyramid of a raw frame used for alignment. The finest level has one value per
+ * Bayer quad, so offsets found on it never change the CFA phase. Every next level halves
+ * the resolution with a 2x2 box filter.
+ */
+public class Pyramid {
+    final float[][] levels;
+    final int[] widths;
+    final int[] heights;
+
+    /**
+     * @param raw RAW16 plane in little endian byte order, without row padding.
+     * @param width Width of the raw plane in pixels.
+     * @param height Height of the raw plane in pixels.
+     * @param levelCount Number of levels, including the quad resolution one.
+     */
+    public Pyramid(byte[] raw, int width, int height, int levelCount) {
+        levels = new float[levelCount][];
+        widths = new int[levelCount];
+        heights = new int[levelCount];
+
+        int w = width / 2;
+        int h = height / 2;
+        float[] quads = new float[w * h];
+        for (int y = 0; y < h; y++) {
+            int top = 2 * y * width;
+            int bottom = top + width;
+            for (int x = 0; x < w; x++) {
+                quads[y * w + x] = (sample(raw, top + 2 * x) + sample(raw, top + 2 * x + 1)
+                        + sample(raw, bottom + 2 * x) + sample(raw, bottom + 2 * x + 1)) * 0.25f;
+            }
+        }
+        levels[0] = quads;
+        widths[0] = w;
+        heights[0] = h;
+
+        for (int l = 1; l < levelCount; l++) {
+            int pw = widths[l - 1];
+            float[] prev = levels[l - 1];
+            w = pw / 2;
+            h = heights[l - 1] / 2;
+            float[] level = new float[w * h];
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    int p = 2 * y * pw + 2 * x;
+                    level[y * w + x] = (prev[p] + prev[p + 1] + prev[p + pw] + prev[p + pw + 1]) * 0.25f;
+                }
+            }
+            levels[l] = level;
+            widths[l] = w;
+            heights[l] = h;
+        }
+    }
+
+    private static int sample(byte[] raw, int i) {
+        return (raw[2 * i] & 0xFF) | ((raw[2 * i + 1] & 0xFF) << 8);
+    }
+}
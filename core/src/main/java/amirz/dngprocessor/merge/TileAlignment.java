@@ -0,0 +1,105 @@
+package amirz.dngprocessor.merge;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Coarse to fine block matching of a frame against the reference frame of a burst.
+ * Every tile of {@link #TILE_SIZE} quads gets one offset, found by minimizing the mean absolute
+ * difference first on the coarsest pyramid level and then refining it on every finer level.
+ */
+public class TileAlignment {
+    public static final int TILE_SIZE = 16; // In quads
+    public static final int LEVELS = 4;
+
+    private static final int COARSE_RADIUS = 4;
+    private static final int FINE_RADIUS = 1;
+    private static final int MIN_WINDOW = 8;
+
+    public final int tilesX, tilesY;
+    public final int[] offsets; // Interleaved x and y per tile, in quads
+    public final float noiseLevel; // Median residual of aligned tiles, in raw units
+
+    public TileAlignment(Pyramid reference, Pyramid frame) {
+        tilesX = (reference.widths[0] + TILE_SIZE - 1) / TILE_SIZE;
+        tilesY = (reference.heights[0] + TILE_SIZE - 1) / TILE_SIZE;
+        offsets = new int[tilesX * tilesY * 2];
+        float[] residuals = new float[tilesX * tilesY];
+
+        IntStream.range(0, tilesX * tilesY).parallel().forEach(tile -> {
+            int tx = tile % tilesX;
+            int ty = tile / tilesX;
+            int dx = 0, dy = 0;
+            float best = 0f;
+            for (int l = LEVELS - 1; l >= 0; l--) {
+                int radius = l == LEVELS - 1 ? COARSE_RADIUS : FINE_RADIUS;
+                if (l != LEVELS - 1) {
+                    dx *= 2;
+                    dy *= 2;
+                }
+
+                // The tile shrinks with every level, so coarse levels use a larger window
+                int size = Math.max(TILE_SIZE >> l, MIN_WINDOW);
+                int x0 = ((tx * TILE_SIZE) >> l) + ((TILE_SIZE >> l) - size) / 2;
+                int y0 = ((ty * TILE_SIZE) >> l) + ((TILE_SIZE >> l) - size) / 2;
+
+                int bestX = dx, bestY = dy;
+                best = Float.MAX_VALUE;
+                for (int oy = dy - radius; oy <= dy + radius; oy++) {
+                    for (int ox = dx - radius; ox <= dx + radius; ox++) {
+                        float diff = meanAbsDiff(reference, frame, l, x0, y0, size, ox, oy, best);
+                        if (diff < best) {
+                            best = diff;
+                            bestX = ox;
+                            bestY = oy;
+                        }
+                    }
+                }
+                dx = bestX;
+                dy = bestY;
+            }
+            offsets[2 * tile] = dx;
+            offsets[2 * tile + 1] = dy;
+            residuals[tile] = best;
+        });
+
+        Arrays.sort(residuals);
+        noiseLevel = residuals[residuals.length / 2];
+    }
+
+    private static float meanAbsDiff(Pyramid reference, Pyramid frame, int l,
+                                     int x0, int y0, int size, int ox, int oy, float limit) {
+        int w = reference.widths[l];
+        int h = reference.heights[l];
+        float[] ref = reference.levels[l];
+        float[] cmp = frame.levels[l];
+
+        int x1 = Math.min(x0 + size, w);
+        int y1 = Math.min(y0 + size, h);
+        x0 = Math.max(x0, 0);
+        y0 = Math.max(y0, 0);
+        int count = (x1 - x0) * (y1 - y0);
+        if (count <= 0) {
+            return Float.MAX_VALUE;
+        }
+
+        float sum = 0f;
+        float stop = limit * count;
+        for (int y = y0; y < y1; y++) {
+            int fy = clamp(y + oy, 0, h - 1);
+            for (int x = x0; x < x1; x++) {
+                int fx = clamp(x + ox, 0, w - 1);
+                sum += Math.abs(ref[y * w + x] - cmp[fy * w + fx]);
+            }
+            if (sum >= stop) {
+                // Already worse than the best candidate
+                return Float.MAX_VALUE;
+            }
+        }
+        return sum / count;
+    }
+
+    private static int clamp(int x, int min, int max) {
+        return Math.min(Math.max(x, min), max);
+    }
+}
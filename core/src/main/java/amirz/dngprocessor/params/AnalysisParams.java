@@ -0,0 +1,145 @@
+package amirz.dngprocessor.params;
+
+import java.util.List;
+
+public class AnalysisParams {
+    public static final int HIST_BINS = 512;
+
+    public float chromaSigma;
+    public float lumaSigma;
+    public float brightenFactor;
+    public float[] histCurve; // ax² + bx
+    public float[] zRange;
+    public int[] hist; // Counts of the samples that the statistics were calculated from
+
+    /**
+     * Calculates the global statistics from the output of the analysis stage.
+     * @param f Samples laid out as (z, chroma sigma, luma sigma, 1).
+     * @param histEqualization Whether to brighten images with many dark pixels.
+     * @param stretchPerc Fractions of pixels that are stretched to black and white.
+     * @return Statistics used to configure the output stage.
+     */
+    public static AnalysisParams fromSamples(float[] f, boolean histEqualization,
+                                             float[] stretchPerc) {
+        int whPixels = f.length / 4;
+
+        // Calculate a histogram on the result
+        int histBins = HIST_BINS;
+        int[] hist = new int[histBins];
+
+        float chromaSigmaTotal = 0f;
+        float lumaSigmaTotal = 0f;
+
+        // Loop over all values
+        for (int i = 0; i < f.length; i += 4) {
+            int bin = (int) (f[i] * histBins);
+            if (bin >= histBins) bin = histBins - 1;
+            hist[bin]++;
+
+            chromaSigmaTotal += f[i + 1];
+            lumaSigmaTotal += f[i + 2];
+        }
+
+        return fromHistogram(hist, chromaSigmaTotal / whPixels, lumaSigmaTotal / whPixels,
+                histEqualization, stretchPerc);
+    }
+
+    /**
+     * Calculates the global statistics from a histogram that was already reduced, such as by the
+     * compute shader of the analysis stage.
+     * @param hist Counts of z in {@link #HIST_BINS} equal bins over [0, 1].
+     * @param chromaSigma Mean local chroma standard deviation.
+     * @param lumaSigma Mean local luma standard deviation.
+     */
+    public static AnalysisParams fromHistogram(int[] hist, float chromaSigma, float lumaSigma,
+                                               boolean histEqualization, float[] stretchPerc) {
+        AnalysisParams analysis = new AnalysisParams();
+        analysis.hist = hist;
+        int histBins = hist.length;
+
+        analysis.chromaSigma = chromaSigma; // [0, 0.2]
+        analysis.lumaSigma = lumaSigma;
+
+        float[] cumulativeHist = new float[histBins + 1];
+        for (int i = 1; i < cumulativeHist.length; i++) {
+            cumulativeHist[i] = cumulativeHist[i - 1] + hist[i - 1];
+        }
+
+        float max = cumulativeHist[histBins];
+        int minZ = 0;
+        int maxZ = histBins;
+        for (int i = 0; i < cumulativeHist.length; i++) {
+            cumulativeHist[i] /= max;
+            if (cumulativeHist[i] < stretchPerc[0]) {
+                minZ = i;
+            } else if (cumulativeHist[i] > stretchPerc[1]) {
+                maxZ = Math.min(maxZ, i);
+            }
+        }
+
+        float brightenFactor = 0.5f;
+        if (histEqualization) {
+            // What fraction of pixels are in the first 25% of luminance
+            brightenFactor = cumulativeHist[histBins / 4]; // [0,1]
+            brightenFactor -= analysis.chromaSigma;
+            if (brightenFactor < 0f) {
+                brightenFactor = 0f;
+            } else {
+                brightenFactor *= 0.6f;
+            }
+        }
+        analysis.brightenFactor = brightenFactor;
+
+        // Set quadratic compensation curve based on brightenFactor
+        analysis.histCurve = new float[] {
+                1f - 2f * brightenFactor,
+                2f * brightenFactor
+        };
+
+        analysis.zRange = new float[] {
+                0.5f * ((float) minZ) / histBins,
+                0.5f * ((float) maxZ) / histBins + 0.5f
+        };
+
+        return analysis;
+    }
+
+    /**
+     * Calculates the statistics of a frame from those of parts that cover it, such as strips
+     * that were analyzed one at a time, as if the whole frame had been analyzed at once.
+     * The sigmas are weighted by the samples of each part.
+     */
+    public static AnalysisParams combine(List<AnalysisParams> parts, boolean histEqualization,
+                                         float[] stretchPerc) {
+        int[] hist = new int[HIST_BINS];
+        double chromaSigmaTotal = 0;
+        double lumaSigmaTotal = 0;
+        long samples = 0;
+        for (AnalysisParams part : parts) {
+            long partSamples = 0;
+            for (int i = 0; i < HIST_BINS; i++) {
+                hist[i] += part.hist[i];
+                partSamples += part.hist[i];
+            }
+            chromaSigmaTotal += (double) part.chromaSigma * partSamples;
+            lumaSigmaTotal += (double) part.lumaSigma * partSamples;
+            samples += partSamples;
+        }
+        return fromHistogram(hist, (float) (chromaSigmaTotal / samples),
+                (float) (lumaSigmaTotal / samples), histEqualization, stretchPerc);
+    }
+
+    /**
+     * Radius of the chroma denoise walk, which grows with the noise in the image.
+     */
+    public int denoiseRadius(int denoiseFactor) {
+        return (int)((float) denoiseFactor * chromaSigma);
+    }
+
+    /**
+     * Sharpening strength, which is reduced for noisy images.
+     */
+    public float sharpenFactor(float sharpenFactor) {
+        return Math.max(sharpenFactor - 9f * chromaSigma, 0);
+    }
+}
@@ -0,0 +1,138 @@
+package amirz.dngprocessor.params;
+
+/**
+ * Estimates the heap and GPU memory of a conversion from the dimensions of the raw image, and
+ * picks the way of processing it that fits in the memory that is available.
+ */
+public class CostEstimate {
+    public enum Mode {
+        Full, // Whole frame at once
+        Tiled, // Strips of the frame with their own halo, streamed into one output
+        Downscaled // Whole frame at a lower output resolution
+    }
+
+    private static final int MAX_STRIPS = 16;
+    private static final int MIN_STRIP_ROWS = 4 * Region.HALO;
+    private static final int MIN_DOWNSCALED_SIZE = 2048;
+
+    public final Mode mode;
+    public final int outWidth, outHeight;
+    public final int strips;
+    public final long heapBytes;
+    public final long gpuBytes;
+
+    private CostEstimate(Mode mode, int outWidth, int outHeight, int strips,
+                         long heapBytes, long gpuBytes) {
+        this.mode = mode;
+        this.outWidth = outWidth;
+        this.outHeight = outHeight;
+        this.strips = strips;
+        this.heapBytes = heapBytes;
+        this.gpuBytes = gpuBytes;
+    }
+
+    /**
+     * Heap used by a job before its dimensions are known: the file buffer, and the raw plane
+     * that is about as large, or up to twice as large for compressed files. The raw planes of
+     * the other frames of a burst are kept until rendering, while their files are read one at
+     * a time.
+     * @param frames Number of frames in the burst, which are assumed to be as large.
+     */
+    public static long heapBeforeParse(long fileBytes, int frames) {
+        return 3 * fileBytes + 2 * fileBytes * (frames - 1);
+    }
+
+    /**
+     * @param frames Number of frames in the burst, which can only be merged on the full frame.
+     * @param outWidth Requested width of the output.
+     * @param outHeight Requested height of the output.
+     */
+    public static CostEstimate choose(SensorParams sensor, ProcessParams process, int frames,
+                                      int outWidth, int outHeight,
+                                      long heapBudget, long gpuBudget) {
+        long inPixels = (long) sensor.inputWidth * sensor.inputHeight;
+        long heap = heapBytes(inPixels, frames);
+        long gpu = gpuBytes(sensor, process, frames, inPixels, outWidth, outHeight);
+        if (heap <= heapBudget && gpu <= gpuBudget) {
+            return new CostEstimate(Mode.Full, outWidth, outHeight, 1, heap, gpu);
+        }
+
+        // Strips cost a share of the frame plus their halo, and the raw plane stays on the heap
+        if (frames == 1) {
+            for (int strips = 2; strips <= MAX_STRIPS; strips++) {
+                int rows = (sensor.outputHeight + strips - 1) / strips;
+                if (rows < MIN_STRIP_ROWS) {
+                    break;
+                }
+                long stripPixels = (long) sensor.inputWidth
+                        * Math.min(rows + 2 * Region.HALO, sensor.inputHeight);
+                int stripOutRows = (int) ((long) outHeight * rows / sensor.outputHeight);
+                long stripHeap = 2 * inPixels + 2 * 2 * stripPixels;
+                long stripGpu = gpuBytes(sensor, process, 1, stripPixels,
+                        outWidth, stripOutRows);
+                if (stripHeap <= heapBudget && stripGpu <= gpuBudget) {
+                    return new CostEstimate(Mode.Tiled, outWidth, outHeight, strips,
+                            stripHeap, stripGpu);
+                }
+            }
+        }
+
+        // Only the stages after the intermediate shrink with the output, so this is best effort
+        int width = outWidth, height = outHeight;
+        while (Math.max(width, height) / 2 >= MIN_DOWNSCALED_SIZE) {
+            width /= 2;
+            height /= 2;
+            gpu = gpuBytes(sensor, process, frames, inPixels, width, height);
+            if (gpu <= gpuBudget) {
+                break;
+            }
+        }
+        return new CostEstimate(Mode.Downscaled, width, height, 1, heap, gpu);
+    }
+
+    private static long heapBytes(long inPixels, int frames) {
+        // Raw plane and its upload copy, plus the planes of the other burst frames that were
+        // read before rendering, and the upload copy of the frame that is merged
+        long heap = 2 * 2 * inPixels;
+        if (frames > 1) {
+            heap += 2 * inPixels * (frames - 1) + 2 * inPixels;
+        }
+        return heap;
+    }
+
+    private static long gpuBytes(SensorParams sensor, ProcessParams process, int frames,
+                                 long inPixels, int outWidth, int outHeight) {
+        long outPixels = (long) outWidth * outHeight;
+
+        long gpu = 2 * inPixels; // Raw quads
+        switch (process.intermediateFormat) {
+            case Full:
+                gpu += 8 * inPixels; // RGB16F is usually padded to four channels
+                break;
+            case Split:
+                gpu += 7 * inPixels;
+                break;
+            case Packed:
+                gpu += 4 * inPixels;
+                break;
+        }
+        if (outPixels < (long) sensor.outputWidth * sensor.outputHeight) {
+            gpu += 8 * outPixels; // Area averaged intermediate
+        }
+        if (frames > 1) {
+            gpu += 4 * inPixels; // Merge accumulator and the frame being aligned
+        }
+        if (process.localTonemap) {
+            gpu += 10 * outPixels / 3; // Pyramid of half resolution levels
+        }
+        gpu += 4 * outPixels; // Output image
+        return gpu;
+    }
+
+    @Override
+    public String toString() {
+        return mode + " " + outWidth + "x" + outHeight + (strips > 1 ? " in " + strips
+                + " strips" : "") + ", heap " + (heapBytes >> 20) + " MB, gpu "
+                + (gpuBytes >> 20) + " MB";
+    }
+}
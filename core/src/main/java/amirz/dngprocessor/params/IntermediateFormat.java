@@ -0,0 +1,11 @@
+package amirz.dngprocessor.params;
+
+/**
+ * Storage layout of the xyY intermediate between demosaicing and the output stage. The output
+ * error of each layout is measured in IntermediateFormatTest.
+ */
+public enum IntermediateFormat {
+    Full, // xyY in RGB16F, 6 bytes per pixel
+    Split, // Y in R16F and half resolution xy in RG16F, 3 bytes per pixel, blends sharp hue edges
+    Packed // Yxy in R11F_G11F_B10F, 4 bytes per pixel, shifts saturated hues by a few levels
+}
@@ -0,0 +1,7 @@
+package amirz.dngprocessor.params;
+
+public enum PostProcessMode {
+    Disabled,
+    Natural,
+    Boosted
+}
@@ -1,14 +1,13 @@
 package amirz.dngprocessor.params;
 
-import android.util.SparseArray;
+import java.util.Map;
 
-import amirz.dngprocessor.Settings;
 import amirz.dngprocessor.device.DeviceMap;
 import amirz.dngprocessor.parser.TIFF;
 import amirz.dngprocessor.parser.TIFFTag;
 
 public class Presets {
-    public static void apply(Settings.PostProcessMode mode, SparseArray<TIFFTag> tags, SensorParams sensor, ProcessParams process) {
+    public static void apply(PostProcessMode mode, Map<Integer, TIFFTag> tags, SensorParams sensor, ProcessParams process) {
         switch (mode) {
             case Disabled:
                 process.sharpenFactor = 0f;
@@ -6,4 +6,6 @@ public class ProcessParams {
     public float[] saturationCurve; // x - y * s^z
     public float[] stretchPerc;
     public boolean histEqualization;
+    public boolean localTonemap;
+    public IntermediateFormat intermediateFormat;
 }
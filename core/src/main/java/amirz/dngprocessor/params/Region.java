@@ -0,0 +1,62 @@
+package amirz.dngprocessor.params;
+
+/**
+ * Part of a raw image that covers a rectangle of its default crop, plus a halo of extra pixels
+ * for the stages that look at neighbouring pixels. The part starts on a whole CFA quad, so the
+ * CFA pattern of the full image still applies.
+ */
+public class Region {
+    public static final int HALO = 64;
+
+    public final SensorParams sensor;
+    public final byte[] raw;
+
+    /**
+     * Copies the raw pixels that are needed to convert a rectangle of the default crop.
+     * @param full Parameters of the full raw image.
+     * @param fullRaw RAW16 plane of the full raw image, without row padding.
+     * @param x Left edge of the rectangle in the default crop.
+     * @param y Top edge of the rectangle in the default crop.
+     */
+    public Region(SensorParams full, byte[] fullRaw, int x, int y, int width, int height) {
+        if (x < 0 || y < 0 || x + width > full.outputWidth || y + height > full.outputHeight) {
+            throw new IllegalArgumentException("Region (" + x + ", " + y + ", " + width + ", "
+                    + height + ") is outside of the default crop.");
+        }
+
+        int left = full.outputOffsetX + x;
+        int top = full.outputOffsetY + y;
+        int x0 = Math.max(left - HALO, 0) & ~1;
+        int y0 = Math.max(top - HALO, 0) & ~1;
+        int x1 = Math.min((left + width + HALO + 1) & ~1, full.inputWidth);
+        int y1 = Math.min((top + height + HALO + 1) & ~1, full.inputHeight);
+
+        int rowBytes = (x1 - x0) * 2;
+        raw = new byte[rowBytes * (y1 - y0)];
+        for (int row = y0; row < y1; row++) {
+            System.arraycopy(fullRaw, (row * full.inputWidth + x0) * 2,
+                    raw, (row - y0) * rowBytes, rowBytes);
+        }
+
+        sensor = new SensorParams();
+        sensor.inputWidth = x1 - x0;
+        sensor.inputHeight = y1 - y0;
+        sensor.inputStride = rowBytes;
+        sensor.cfa = full.cfa;
+        sensor.blackLevelPattern = full.blackLevelPattern;
+        sensor.whiteLevel = full.whiteLevel;
+        sensor.referenceIlluminant1 = full.referenceIlluminant1;
+        sensor.referenceIlluminant2 = full.referenceIlluminant2;
+        sensor.calibrationTransform1 = full.calibrationTransform1;
+        sensor.calibrationTransform2 = full.calibrationTransform2;
+        sensor.colorMatrix1 = full.colorMatrix1;
+        sensor.colorMatrix2 = full.colorMatrix2;
+        sensor.forwardTransform1 = full.forwardTransform1;
+        sensor.forwardTransform2 = full.forwardTransform2;
+        sensor.neutralColorPoint = full.neutralColorPoint;
+        sensor.outputOffsetX = left - x0;
+        sensor.outputOffsetY = top - y0;
+        sensor.outputWidth = width;
+        sensor.outputHeight = height;
+    }
+}
@@ -1,6 +1,6 @@
 package amirz.dngprocessor.params;
 
-import android.util.Rational;
+import amirz.dngprocessor.math.Rational;
 
 public class SensorParams {
     public int inputWidth;
@@ -20,4 +20,6 @@ public class SensorParams {
     public Rational[] neutralColorPoint;
     public int outputOffsetX;
     public int outputOffsetY;
+    public int outputWidth;
+    public int outputHeight;
 }
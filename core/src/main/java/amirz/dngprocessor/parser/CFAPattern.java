@@ -0,0 +1,31 @@
+package amirz.dngprocessor.parser;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class CFAPattern {
+    // Values of CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT
+    public static final int RGGB = 0;
+    public static final int GRBG = 1;
+    public static final int GBRG = 2;
+    public static final int BGGR = 3;
+
+    private static final Map<int[], Integer> PATTERNS = new HashMap<>();
+
+    static {
+        PATTERNS.put(new int[] { 0, 1, 1, 2 }, RGGB);
+        PATTERNS.put(new int[] { 1, 0, 2, 1 }, GRBG);
+        PATTERNS.put(new int[] { 1, 2, 0, 1 }, GBRG);
+        PATTERNS.put(new int[] { 2, 1, 1, 0 }, BGGR);
+    }
+
+    public static int get(int[] cfaValues) {
+        for (Map.Entry<int[], Integer> kvp : PATTERNS.entrySet()) {
+            if (Arrays.equals(kvp.getKey(), cfaValues)) {
+                return kvp.getValue();
+            }
+        }
+        return -1;
+    }
+}
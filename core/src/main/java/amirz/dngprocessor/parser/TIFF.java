@@ -1,6 +1,7 @@
 package amirz.dngprocessor.parser;
 
-import android.util.SparseIntArray;
+import java.util.HashMap;
+import java.util.Map;
 
 public class TIFF {
     public static final int TAG_NewSubfileType = 254;
@@ -67,16 +68,16 @@ public class TIFF {
     public static final int TYPE_Frac = 10;
     public static final int TYPE_Double = 12;
 
-    public static final SparseIntArray TYPE_SIZES = new SparseIntArray();
+    public static final Map<Integer, Integer> TYPE_SIZES = new HashMap<>();
 
     static {
-        TYPE_SIZES.append(TYPE_Byte, 1);
-        TYPE_SIZES.append(TYPE_String, 1);
-        TYPE_SIZES.append(TYPE_UInt_16, 2);
-        TYPE_SIZES.append(TYPE_UInt_32, 4);
-        TYPE_SIZES.append(TYPE_UFrac, 8);
-        TYPE_SIZES.append(TYPE_Undef, 0);
-        TYPE_SIZES.append(TYPE_Frac, 8);
-        TYPE_SIZES.append(TYPE_Double, 8);
+        TYPE_SIZES.put(TYPE_Byte, 1);
+        TYPE_SIZES.put(TYPE_String, 1);
+        TYPE_SIZES.put(TYPE_UInt_16, 2);
+        TYPE_SIZES.put(TYPE_UInt_32, 4);
+        TYPE_SIZES.put(TYPE_UFrac, 8);
+        TYPE_SIZES.put(TYPE_Undef, 0);
+        TYPE_SIZES.put(TYPE_Frac, 8);
+        TYPE_SIZES.put(TYPE_Double, 8);
     }
 }
@@ -1,6 +1,6 @@
 package amirz.dngprocessor.parser;
 
-import android.util.Rational;
+import amirz.dngprocessor.math.Rational;
 
 public class TIFFTag {
     private final int type;
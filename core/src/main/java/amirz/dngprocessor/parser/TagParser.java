@@ -0,0 +1,203 @@
+package amirz.dngprocessor.parser;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+
+import amirz.dngprocessor.math.Rational;
+import amirz.dngprocessor.params.SensorParams;
+
+public class TagParser {
+    /**
+     * Parses the tags of the main image, merged with those of the raw SubIFD when the main
+     * image is only a preview.
+     * @param wrap Buffer with the full DNG file in little endian order.
+     * @return Tag values indexed by their TIFF tag number.
+     */
+    public static Map<Integer, TIFFTag> parse(ByteBuffer wrap) {
+        byte[] format = { wrap.get(), wrap.get() };
+        if (!new String(format).equals("II"))
+            throw new ParseException("Can only parse Intel byte order");
+
+        short version = wrap.getShort();
+        if (version != 42)
+            throw new ParseException("Can only parse v42");
+
+        int start = wrap.getInt();
+        wrap.position(start);
+
+        Map<Integer, TIFFTag> tags = parseTags(wrap);
+
+        TIFFTag subIFD = tags.get(TIFF.TAG_SubIFDs);
+        TIFFTag type = tags.get(TIFF.TAG_NewSubfileType);
+        if (subIFD != null && type != null && type.getInt() == 1) {
+            wrap.position(subIFD.getInt());
+            tags.putAll(parseTags(wrap));
+        }
+
+        //int rowsPerStrip = tags.get(TIFF.TAG_RowsPerStrip).getInt();
+        //if (rowsPerStrip != 1)
+        //    throw new ParseException("Can only parse RowsPerStrip = 1");
+
+        return tags;
+    }
+
+    /**
+     * Collects the sensor calibration from the parsed tags.
+     * @param forwardMatrix Whether to use the forward matrices when the file has them.
+     */
+    public static SensorParams readSensor(Map<Integer, TIFFTag> tags, boolean forwardMatrix) {
+        SensorParams sensor = new SensorParams();
+
+        // Continue image parsing.
+        sensor.inputHeight = tags.get(TIFF.TAG_ImageLength).getInt();
+        sensor.inputWidth = tags.get(TIFF.TAG_ImageWidth).getInt();
+        sensor.inputStride = tags.get(TIFF.TAG_StripByteCounts).getIntArray()[0];
+
+        sensor.cfa = CFAPattern.get(tags.get(TIFF.TAG_CFAPattern).getIntArray());
+        sensor.blackLevelPattern = tags.get(TIFF.TAG_BlackLevel).getIntArray();
+        sensor.whiteLevel = tags.get(TIFF.TAG_WhiteLevel).getInt();
+        sensor.referenceIlluminant1 = tags.get(TIFF.TAG_CalibrationIlluminant1).getInt();
+        sensor.referenceIlluminant2 = tags.get(TIFF.TAG_CalibrationIlluminant2).getInt();
+        sensor.calibrationTransform1 = tags.get(TIFF.TAG_CameraCalibration1).getFloatArray();
+        sensor.calibrationTransform2 = tags.get(TIFF.TAG_CameraCalibration2).getFloatArray();
+        sensor.colorMatrix1 = tags.get(TIFF.TAG_ColorMatrix1).getFloatArray();
+        sensor.colorMatrix2 = tags.get(TIFF.TAG_ColorMatrix2).getFloatArray();
+        if (forwardMatrix) {
+            TIFFTag fm1 = tags.get(TIFF.TAG_ForwardMatrix1);
+            TIFFTag fm2 = tags.get(TIFF.TAG_ForwardMatrix2);
+            if (fm1 != null && fm2 != null) {
+                sensor.forwardTransform1 = fm1.getFloatArray();
+                sensor.forwardTransform2 = fm2.getFloatArray();
+            }
+        }
+        sensor.neutralColorPoint = tags.get(TIFF.TAG_AsShotNeutral).getRationalArray();
+        //LensShadingMap shadingMap = dynamicMetadata.get(CaptureResult.STATISTICS_LENS_SHADING_CORRECTION_MAP);
+
+        int[] defaultCropOrigin = tags.get(TIFF.TAG_DefaultCropOrigin).getIntArray();
+        sensor.outputOffsetX = defaultCropOrigin[0];
+        sensor.outputOffsetY = defaultCropOrigin[1];
+
+        int[] defaultCropSize = tags.get(TIFF.TAG_DefaultCropSize).getIntArray();
+        sensor.outputWidth = defaultCropSize[0];
+        sensor.outputHeight = defaultCropSize[1];
+
+        // The raw texture holds whole 2x2 CFA quads, so an odd last row or column is dropped
+        sensor.inputWidth &= ~1;
+        sensor.inputHeight &= ~1;
+        int[] x = fitCrop(sensor.outputOffsetX, sensor.outputWidth, sensor.inputWidth);
+        sensor.outputOffsetX = x[0];
+        sensor.outputWidth = x[1];
+        int[] y = fitCrop(sensor.outputOffsetY, sensor.outputHeight, sensor.inputHeight);
+        sensor.outputOffsetY = y[0];
+        sensor.outputHeight = y[1];
+
+        return sensor;
+    }
+
+    /**
+     * Moves a crop that reaches past the edge back inwards, or shrinks it when it covers the
+     * whole plane.
+     * @return Offset and size of the crop.
+     */
+    private static int[] fitCrop(int offset, int size, int limit) {
+        int over = offset + size - limit;
+        if (over > 0) {
+            int shift = Math.min(over, offset);
+            offset -= shift;
+            size -= over - shift;
+        }
+        return new int[] { offset, size };
+    }
+
+    /**
+     * Copies the strips of the raw image into one RAW16 plane, with rows of the whole quads
+     * that {@link #readSensor(Map, boolean)} keeps. The array may be longer than those rows.
+     */
+    public static byte[] readRawPlane(Map<Integer, TIFFTag> tags, SensorParams sensor,
+                                      ByteBuffer wrap) {
+        int[] stripOffsets = tags.get(TIFF.TAG_StripOffsets).getIntArray();
+        int[] stripByteCounts = tags.get(TIFF.TAG_StripByteCounts).getIntArray();
+
+        if (stripOffsets.length != stripByteCounts.length) {
+            throw new ParseException("StripOffsets was not equal to StripByteCounts");
+        }
+
+        int fileWidth = tags.get(TIFF.TAG_ImageWidth).getInt();
+        int fileHeight = tags.get(TIFF.TAG_ImageLength).getInt();
+        byte[] rawImageInput = new byte[fileWidth * fileHeight * 2];
+        int rawImageOffset = 0;
+        for (int i = 0; i < stripOffsets.length; i++) {
+            ((ByteBuffer) wrap.position(stripOffsets[i]))
+                    .get(rawImageInput, rawImageOffset, stripByteCounts[i]);
+            rawImageOffset += stripByteCounts[i];
+        }
+
+        // Drop the odd last column in place, every row moves towards the start
+        if (fileWidth != sensor.inputWidth) {
+            int rowBytes = sensor.inputWidth * 2;
+            for (int row = 1; row < sensor.inputHeight; row++) {
+                System.arraycopy(rawImageInput, row * fileWidth * 2,
+                        rawImageInput, row * rowBytes, rowBytes);
+            }
+        }
+        return rawImageInput;
+    }
+
+    private static Map<Integer, TIFFTag> parseTags(ByteBuffer wrap) {
+        short tagCount = wrap.getShort();
+        Map<Integer, TIFFTag> tags = new HashMap<>(tagCount);
+
+        for (int tagNum = 0; tagNum < tagCount; tagNum++) {
+            short tag = wrap.getShort();
+            short type = wrap.getShort();
+            int elementCount = wrap.getInt();
+            int elementSize = TIFF.TYPE_SIZES.getOrDefault((int) type, 0);
+
+            byte[] buffer = new byte[Math.max(4, elementCount * elementSize)];
+            if (buffer.length == 4) {
+                wrap.get(buffer);
+            } else {
+                int dataPos = wrap.getInt();
+                independentMove(wrap, dataPos).get(buffer);
+            }
+
+            ByteBuffer valueWrap = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+            Object[] values = new Object[elementCount];
+            for (int elementNum = 0; elementNum < elementCount; elementNum++) {
+                if (type == TIFF.TYPE_Byte) {
+                    values[elementNum] = valueWrap.get() & 0xFF;
+                } else if (type == TIFF.TYPE_String) {
+                    values[elementNum] = (char) valueWrap.get();
+                } else if (type == TIFF.TYPE_UInt_16) {
+                    values[elementNum] = valueWrap.getShort() & 0xFFFF;
+                } else if (type == TIFF.TYPE_UInt_32) {
+                    values[elementNum] = valueWrap.getInt();
+                } else if (type == TIFF.TYPE_UFrac) {
+                    values[elementNum] = new Rational(valueWrap.getInt(), valueWrap.getInt());
+                } else if (type == TIFF.TYPE_Frac) {
+                    values[elementNum] = new Rational(valueWrap.getInt(), valueWrap.getInt());
+                } else if (type == TIFF.TYPE_Double) {
+                    values[elementNum] = valueWrap.getDouble();
+                }
+            }
+
+            tags.put(tag & 0xFFFF, new TIFFTag(type, values));
+        }
+
+        return tags;
+    }
+
+    private static ByteBuffer independentMove(ByteBuffer wrap, int position) {
+        return (ByteBuffer) wrap.duplicate().order(ByteOrder.LITTLE_ENDIAN).position(position);
+    }
+
+    public static class ParseException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private ParseException(String s) {
+            super(s);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package amirz.dngprocessor.color;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ColorLutTest {
+    private static final float[] SATURATION = { 1.5f, 0.6f, 2f };
+
+    private static ColorLut lut() {
+        return ColorLut.get(Transforms.CUSTOM_ACR3_TONEMAP_CURVE_COEFFS,
+                Transforms.XYZtoProPhoto(), Transforms.proPhotoToSRGB(), SATURATION);
+    }
+
+    @Test
+    public void tableHoldsExactValuesAtGridPoints() {
+        ColorLut lut = lut();
+        FloatBuffer table = lut.getTable();
+        float[] xyY = new float[3];
+        float[] rgb = new float[3];
+        int step = 8;
+        for (int k = 0; k < ColorLut.SIZE; k += step) {
+            float sqrtY = (float) k / (ColorLut.SIZE - 1);
+            xyY[2] = sqrtY * sqrtY;
+            for (int j = 0; j < ColorLut.SIZE; j += step) {
+                xyY[1] = (float) j / (ColorLut.SIZE - 1);
+                for (int i = 0; i < ColorLut.SIZE; i += step) {
+                    xyY[0] = (float) i / (ColorLut.SIZE - 1);
+                    lut.apply(xyY, new float[3], rgb);
+                    int o = ((k * ColorLut.SIZE + j) * ColorLut.SIZE + i) * 3;
+                    for (int c = 0; c < 3; c++) {
+                        assertEquals(rgb[c], table.get(o + c), 0f);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void interpolatedTableIsCloseToExactEvaluation() {
+        // Colours that occur in photos, not the corners of the xy plane. Saturated colours that
+        // are clipped by the conversions have a kink that the interpolation rounds off, so only
+        // the tail of the error distribution is bounded for them.
+        ColorLut lut = lut();
+        FloatBuffer table = lut.getTable();
+        Random random = new Random(1);
+        int samples = 20000;
+        float[] errors = new float[samples];
+        double sumError = 0;
+        for (int n = 0; n < samples; n++) {
+            float x = 0.2f + 0.3f * random.nextFloat();
+            float y = 0.25f + 0.2f * random.nextFloat();
+            float Y = random.nextFloat();
+            errors[n] = maxError(lut, table, x, y, Y);
+            sumError += errors[n];
+        }
+        Arrays.sort(errors);
+
+        assertTrue("Mean error " + sumError / samples, sumError / samples < 1f / 255f);
+        float percentile = errors[samples * 98 / 100];
+        assertTrue("98th percentile of error " + percentile, percentile < 6f / 255f);
+    }
+
+    @Test
+    public void interpolatedTableKeepsGraysAccurate() {
+        ColorLut lut = lut();
+        FloatBuffer table = lut.getTable();
+        for (int i = 0; i <= 1000; i++) {
+            float Y = i / 1000f;
+            float error = maxError(lut, table, 0.3457f, 0.3585f, Y);
+            assertTrue("Error " + error + " at Y " + Y, error < 2f / 255f);
+        }
+    }
+
+    @Test
+    public void sameParametersShareTable() {
+        assertSame(lut(), lut());
+    }
+
+    private static float maxError(ColorLut lut, FloatBuffer table, float x, float y, float Y) {
+        float[] rgb = new float[3];
+        lut.apply(new float[] { x, y, Y }, new float[3], rgb);
+        float[] sampled = sample(table, x, y, (float) Math.sqrt(Y));
+        float error = 0f;
+        for (int c = 0; c < 3; c++) {
+            error = Math.max(error, Math.abs(sampled[c] - rgb[c]));
+        }
+        return error;
+    }
+
+    /**
+     * Trilinear filtering at texel centers, as applyColorLut of stage3_fs.glsl samples it.
+     */
+    private static float[] sample(FloatBuffer table, float x, float y, float sqrtY) {
+        int n = ColorLut.SIZE;
+        float[] coord = { x * (n - 1), y * (n - 1), sqrtY * (n - 1) };
+        int[] lo = new int[3];
+        float[] f = new float[3];
+        for (int d = 0; d < 3; d++) {
+            lo[d] = Math.min((int) coord[d], n - 2);
+            f[d] = coord[d] - lo[d];
+        }
+
+        float[] result = new float[3];
+        for (int corner = 0; corner < 8; corner++) {
+            int i = lo[0] + (corner & 1);
+            int j = lo[1] + ((corner >> 1) & 1);
+            int k = lo[2] + (corner >> 2);
+            float weight = ((corner & 1) != 0 ? f[0] : 1f - f[0])
+                    * (((corner >> 1) & 1) != 0 ? f[1] : 1f - f[1])
+                    * ((corner >> 2) != 0 ? f[2] : 1f - f[2]);
+            int o = ((k * n + j) * n + i) * 3;
+            for (int c = 0; c < 3; c++) {
+                result[c] += weight * table.get(o + c);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,293 @@
+package amirz.dngprocessor.cpu;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import amirz.dngprocessor.color.ColorLut;
+import amirz.dngprocessor.color.Transforms;
+import amirz.dngprocessor.math.Rational;
+import amirz.dngprocessor.params.AnalysisParams;
+import amirz.dngprocessor.params.SensorParams;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class CpuPipelineTest {
+    private static final int WIDTH = 16;
+    private static final int HEIGHT = 12;
+    private static final int WHITE_LEVEL = 1023;
+    private static final int[] BLACK_LEVEL = { 32, 48, 64, 80 };
+    private static final float[] IDENTITY = { 1f, 0f, 0f, 0f, 1f, 0f, 0f, 0f, 1f };
+    private static final float[] NO_CLIP = { 1f, 1f, 1f };
+    private static final float[] D50_XY = { 0.3457f, 0.3585f };
+
+    @Test
+    public void flatChannelsSurviveDemosaicForEveryCfa() {
+        float[] rgb = { 0.2f, 0.5f, 0.3f };
+        for (int cfa = 0; cfa < 4; cfa++) {
+            byte[] raw = flatFrame(cfa, rgb);
+            CpuPipeline cpu = new CpuPipeline(raw, WIDTH, HEIGHT);
+            cpu.sensorToIntermediate(cfa, BLACK_LEVEL, WHITE_LEVEL, NO_CLIP, IDENTITY);
+
+            // Every channel is flat, so the interpolation of each position recovers it, up to
+            // the rounding of the two greens with their own black levels
+            float[] sensor = new float[3];
+            for (int c = 0; c < 3; c++) {
+                sensor[c] = linearize(raw, positionOf(cfa, c), BLACK_LEVEL[positionOf(cfa, c)]);
+            }
+            assertFlat(cpu, toxyY(sensor), 2e-3f);
+        }
+    }
+
+    @Test
+    public void sensorIsClippedToNeutralPoint() {
+        float[] neutral = { 0.4f, 1f, 0.6f };
+        byte[] raw = flatFrame(0, new float[] { 0.9f, 0.8f, 0.9f });
+        CpuPipeline cpu = new CpuPipeline(raw, WIDTH, HEIGHT);
+        cpu.sensorToIntermediate(0, BLACK_LEVEL, WHITE_LEVEL, neutral, IDENTITY);
+
+        float green = linearize(raw, positionOf(0, 1), BLACK_LEVEL[positionOf(0, 1)]);
+        assertFlat(cpu, toxyY(new float[] { 0.4f, green, 0.6f }), 2e-3f);
+    }
+
+    @Test
+    public void neutralPointMapsToD50White() {
+        SensorParams sensor = sensor(new float[] { 0.5f, 1f, 0.7f });
+        float[] neutral = { 0.5f, 1f, 0.7f };
+        float[] sensorToXYZ = Transforms.sensorToXYZ_D50(sensor);
+
+        float[] level = { 0.5f * neutral[0], 0.5f * neutral[1], 0.5f * neutral[2] };
+        CpuPipeline cpu = new CpuPipeline(flatFrame(0, level), WIDTH, HEIGHT);
+        cpu.sensorToIntermediate(0, BLACK_LEVEL, WHITE_LEVEL, neutral, sensorToXYZ);
+
+        float[] xyY = cpu.getIntermediate();
+        for (int i = 0; i < WIDTH * HEIGHT * 3; i += 3) {
+            assertEquals(D50_XY[0], xyY[i], 2e-3f);
+            assertEquals(D50_XY[1], xyY[i + 1], 2e-3f);
+        }
+    }
+
+    @Test
+    public void quadFetchOfShaderMatchesDirectPatch() {
+        Random random = new Random(1);
+        int[] raw = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < raw.length; i++) {
+            raw[i] = random.nextInt(WHITE_LEVEL + 1);
+        }
+        int[][] quads = packQuads(raw);
+
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                // The shader clamps the centre, so the patch never leaves the frame
+                int cx = Math.max(1, Math.min(x, WIDTH - 2));
+                int cy = Math.max(1, Math.min(y, HEIGHT - 2));
+
+                int[] direct = new int[9];
+                for (int i = 0; i < 9; i++) {
+                    direct[i] = raw[(cy - 1 + i / 3) * WIDTH + cx - 1 + i % 3];
+                }
+                assertArrayEquals("Patch at " + x + ", " + y, direct,
+                        shaderLoad3x3(quads, cx, cy));
+            }
+        }
+    }
+
+    @Test
+    public void downscaleKeepsFlatIntermediate() {
+        float[] rgb = { 0.2f, 0.5f, 0.3f };
+        for (float scale : new float[] { 2f, 3f, 5.5f }) {
+            CpuPipeline cpu = new CpuPipeline(flatFrame(0, rgb), WIDTH, HEIGHT);
+            cpu.sensorToIntermediate(0, BLACK_LEVEL, WHITE_LEVEL, NO_CLIP, IDENTITY);
+            float[] expected = cpu.getIntermediate().clone();
+
+            // Partial cells at the edges are weighted by their area, so they stay flat too
+            cpu.downscaleIntermediate(scale);
+            assertEquals((int) Math.ceil(WIDTH / scale), cpu.getIntermediateWidth());
+            assertEquals((int) Math.ceil(HEIGHT / scale), cpu.getIntermediateHeight());
+            assertFlat(cpu, new float[] { expected[0], expected[1], expected[2] }, 1e-5f);
+        }
+    }
+
+    @Test
+    public void analysisOfFlatFieldHasNoNoise() {
+        CpuPipeline cpu = new CpuPipeline(flatFrame(0, new float[] { 0.2f, 0.5f, 0.3f }),
+                WIDTH, HEIGHT);
+        cpu.sensorToIntermediate(0, BLACK_LEVEL, WHITE_LEVEL, NO_CLIP, IDENTITY);
+        float luminance = cpu.getIntermediate()[2];
+
+        float[] samples = cpu.analyzeIntermediate(WIDTH - 4, HEIGHT - 4, 2, 2, 2);
+        assertEquals((WIDTH - 4) / 2 * ((HEIGHT - 4) / 2) * 4, samples.length);
+        for (int i = 0; i < samples.length; i += 4) {
+            // Both greens are rounded separately, which leaves a trace of noise
+            assertEquals(luminance, samples[i], 1e-4f);
+            assertEquals(0f, samples[i + 1], 1e-4f);
+            assertEquals(0f, samples[i + 2], 1e-4f);
+            assertEquals(1f, samples[i + 3], 0f);
+        }
+    }
+
+    @Test
+    public void outputOfFlatFieldMatchesColorLut() {
+        CpuPipeline cpu = new CpuPipeline(flatFrame(0, new float[] { 0.2f, 0.5f, 0.3f }),
+                WIDTH, HEIGHT);
+        cpu.sensorToIntermediate(0, BLACK_LEVEL, WHITE_LEVEL, NO_CLIP, IDENTITY);
+        float[] xyY = cpu.getIntermediate().clone();
+
+        AnalysisParams analysis = AnalysisParams.fromSamples(
+                cpu.analyzeIntermediate(WIDTH, HEIGHT, 0, 0, 1), true,
+                new float[] { 0f, 1f });
+        ColorLut lut = ColorLut.get(Transforms.CUSTOM_ACR3_TONEMAP_CURVE_COEFFS,
+                Transforms.XYZtoProPhoto(), Transforms.proPhotoToSRGB(),
+                new float[] { 1.5f, 0.6f, 2f });
+
+        // Stretch and curve of the stage, then the exact colour pipeline
+        float z = (xyY[2] - analysis.zRange[0]) / (analysis.zRange[1] - analysis.zRange[0]);
+        z = Math.max(0f, Math.min(z, 1f));
+        z = analysis.histCurve[0] * z * z + analysis.histCurve[1] * z;
+        float[] rgb = new float[3];
+        lut.apply(new float[] { xyY[0], xyY[1], z }, new float[3], rgb);
+        int expected = 0xFF000000 | (toByte(rgb[2]) << 16) | (toByte(rgb[1]) << 8)
+                | toByte(rgb[0]);
+
+        // A flat field has nothing to sharpen
+        int[] out = new int[(WIDTH - 2) * (HEIGHT - 2)];
+        cpu.intermediateToOutput(WIDTH - 2, HEIGHT - 2, 1, 1, analysis, 0, 1f, lut, out);
+        for (int pixel : out) {
+            assertEquals(Integer.toHexString(expected), Integer.toHexString(pixel));
+        }
+    }
+
+    /**
+     * Port of load3x3 of stage1_fs.glsl, which reads the patch from four quad texels.
+     */
+    private static int[] shaderLoad3x3(int[][] quads, int x, int y) {
+        int qx = (x - 1) >> 1;
+        int qy = (y - 1) >> 1;
+        int quadWidth = WIDTH / 2;
+        int[] q00 = quads[qy * quadWidth + qx];
+        int[] q10 = quads[qy * quadWidth + qx + 1];
+        int[] q01 = quads[(qy + 1) * quadWidth + qx];
+        int[] q11 = quads[(qy + 1) * quadWidth + qx + 1];
+
+        int[] block = {
+                q00[0], q00[1], q10[0], q10[1],
+                q00[2], q00[3], q10[2], q10[3],
+                q01[0], q01[1], q11[0], q11[1],
+                q01[2], q01[3], q11[2], q11[3]
+        };
+
+        int dx = 1 - (x & 1);
+        int dy = 1 - (y & 1);
+        int[] patch = new int[9];
+        for (int i = 0; i < 9; i++) {
+            patch[i] = block[(dy + i / 3) * 4 + dx + i % 3];
+        }
+        return patch;
+    }
+
+    /**
+     * Same layout as the upload of GLProgram, one texel per 2x2 quad.
+     */
+    private static int[][] packQuads(int[] raw) {
+        int[][] quads = new int[WIDTH / 2 * HEIGHT / 2][];
+        for (int qy = 0; qy < HEIGHT / 2; qy++) {
+            for (int qx = 0; qx < WIDTH / 2; qx++) {
+                int top = 2 * qy * WIDTH + 2 * qx;
+                int bottom = top + WIDTH;
+                quads[qy * WIDTH / 2 + qx] = new int[] {
+                        raw[top], raw[top + 1], raw[bottom], raw[bottom + 1]
+                };
+            }
+        }
+        return quads;
+    }
+
+    /**
+     * @param rgb Normalized level of every colour channel.
+     */
+    private static byte[] flatFrame(int cfa, float[] rgb) {
+        byte[] raw = new byte[WIDTH * HEIGHT * 2];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int position = (x & 1) | ((y & 1) << 1);
+                int bl = BLACK_LEVEL[position];
+                int value = Math.round(bl + rgb[colorOf(cfa, position)] * (WHITE_LEVEL - bl));
+                int i = (y * WIDTH + x) * 2;
+                raw[i] = (byte) value;
+                raw[i + 1] = (byte) (value >> 8);
+            }
+        }
+        return raw;
+    }
+
+    /**
+     * @return Colour channel of a position in the quad, as demosaic in the shader reads it.
+     */
+    private static int colorOf(int cfa, int position) {
+        int index = position ^ cfa;
+        return index == 0 ? 0 : index == 3 ? 2 : 1;
+    }
+
+    private static int positionOf(int cfa, int color) {
+        for (int position = 0; position < 4; position++) {
+            if (colorOf(cfa, position) == color) {
+                return position;
+            }
+        }
+        throw new IllegalArgumentException();
+    }
+
+    private static float linearize(byte[] raw, int position, int bl) {
+        int x = position & 1;
+        int y = position >> 1;
+        int i = (y * WIDTH + x) * 2;
+        int value = (raw[i] & 0xFF) | ((raw[i + 1] & 0xFF) << 8);
+        return (float) (value - bl) / (WHITE_LEVEL - bl);
+    }
+
+    /**
+     * XYZtoxyY of stage1_fs.glsl, for a sensor that is already in XYZ.
+     */
+    private static float[] toxyY(float[] XYZ) {
+        float sum = XYZ[0] + XYZ[1] + XYZ[2];
+        return new float[] { XYZ[0] / sum, XYZ[1] / sum, XYZ[1] };
+    }
+
+    private static void assertFlat(CpuPipeline cpu, float[] xyY, float delta) {
+        float[] intermediate = cpu.getIntermediate();
+        int pixels = cpu.getIntermediateWidth() * cpu.getIntermediateHeight();
+        for (int i = 0; i < pixels * 3; i += 3) {
+            assertEquals("x of pixel " + i / 3, xyY[0], intermediate[i], delta);
+            assertEquals("y of pixel " + i / 3, xyY[1], intermediate[i + 1], delta);
+            assertEquals("Y of pixel " + i / 3, xyY[2], intermediate[i + 2], delta);
+        }
+    }
+
+    private static SensorParams sensor(float[] neutral) {
+        SensorParams sensor = new SensorParams();
+        sensor.referenceIlluminant1 = 17; // Standard A
+        sensor.referenceIlluminant2 = 21; // D65
+        sensor.calibrationTransform1 = IDENTITY;
+        sensor.calibrationTransform2 = IDENTITY;
+        sensor.colorMatrix1 = new float[] {
+                1.0469f, -0.4688f, -0.0469f,
+                -0.3828f, 1.1406f, 0.2500f,
+                -0.0625f, 0.1719f, 0.5938f
+        };
+        sensor.colorMatrix2 = new float[] {
+                0.8438f, -0.2734f, -0.1016f,
+                -0.4219f, 1.2422f, 0.1875f,
+                -0.0859f, 0.2031f, 0.5391f
+        };
+        sensor.neutralColorPoint = new Rational[3];
+        for (int c = 0; c < 3; c++) {
+            sensor.neutralColorPoint[c] = new Rational(Math.round(neutral[c] * 1000), 1000);
+        }
+        return sensor;
+    }
+
+    private static int toByte(float v) {
+        return (int) (v * 255f + 0.5f);
+    }
+}
@@ -0,0 +1,181 @@
+package amirz.dngprocessor.jpeg;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import amirz.dngprocessor.math.Rational;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ExifWriterTest {
+    private static final int WIDTH = 200;
+    private static final int HEIGHT = 150;
+    private static final int THUMBNAIL_SIZE = 40;
+    private static final int THUMBNAIL_CAPACITY = 16 * 1024;
+
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+    private static final int TAG_EXIF_IFD = 0x8769;
+
+    // SOI, the APP1 marker and length, and the Exif identifier
+    private static final int TIFF_FILE_OFFSET = 12;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void thumbnailIsPatchedIntoReservedSpace() throws IOException {
+        ExifWriter exif = exif();
+        ThumbnailSink thumbnail = new ThumbnailSink(WIDTH, HEIGHT, THUMBNAIL_SIZE,
+                THUMBNAIL_CAPACITY);
+        File file = write(exif, thumbnail);
+
+        byte[] jpeg = thumbnail.getJpeg();
+        assertNotNull("Thumbnail does not fit", jpeg);
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            exif.writeThumbnail(out, jpeg);
+        }
+
+        ByteBuffer tiff = tiff(Files.readAllBytes(file.toPath()));
+        Map<Integer, Integer> ifd0 = readIfd(tiff, tiff.getInt(4));
+        assertEquals("Make", "Camera", readAscii(tiff, ifd0, ExifWriter.TAG_MAKE));
+        assertEquals(6, (int) ifd0.get(ExifWriter.TAG_ORIENTATION) >>> 16);
+
+        Map<Integer, Integer> exifIfd = readIfd(tiff, ifd0.get(TAG_EXIF_IFD));
+        int exposure = exifIfd.get(ExifWriter.TAG_EXPOSURE_TIME);
+        assertEquals(1, tiff.getInt(exposure));
+        assertEquals(125, tiff.getInt(exposure + 4));
+
+        int ifd1Offset = tiff.getInt(ifd0.get(-1));
+        assertTrue("IFD0 does not link to IFD1", ifd1Offset > 0);
+        Map<Integer, Integer> ifd1 = readIfd(tiff, ifd1Offset);
+        int offset = ifd1.get(TAG_THUMBNAIL_OFFSET);
+        int length = ifd1.get(TAG_THUMBNAIL_LENGTH);
+        assertEquals(jpeg.length, length);
+
+        byte[] stored = new byte[length];
+        tiff.position(offset);
+        tiff.get(stored);
+        assertArrayEquals(jpeg, stored);
+
+        // EXIF thumbnails start with SOI and go straight to the tables, without JFIF
+        assertEquals(0xFF, stored[0] & 0xFF);
+        assertEquals(0xD8, stored[1] & 0xFF);
+        assertEquals(0xFF, stored[2] & 0xFF);
+        assertTrue("Thumbnail has an APP0 segment", (stored[3] & 0xFF) != 0xE0);
+
+        BufferedImage decoded = JpegEncoderTest.decode(stored);
+        assertEquals(WIDTH / ScaledSink.factorFor(WIDTH, HEIGHT, THUMBNAIL_SIZE),
+                decoded.getWidth());
+        assertEquals(HEIGHT / ScaledSink.factorFor(WIDTH, HEIGHT, THUMBNAIL_SIZE),
+                decoded.getHeight());
+
+        // The main image is still intact around the segment
+        decoded = JpegEncoderTest.decode(Files.readAllBytes(file.toPath()));
+        assertEquals(WIDTH, decoded.getWidth());
+        assertEquals(HEIGHT, decoded.getHeight());
+    }
+
+    @Test
+    public void unwrittenThumbnailHasZeroLength() throws IOException {
+        File file = write(exif(), null);
+        ByteBuffer tiff = tiff(Files.readAllBytes(file.toPath()));
+        Map<Integer, Integer> ifd0 = readIfd(tiff, tiff.getInt(4));
+        Map<Integer, Integer> ifd1 = readIfd(tiff, tiff.getInt(ifd0.get(-1)));
+        assertEquals(0, (int) ifd1.get(TAG_THUMBNAIL_LENGTH));
+    }
+
+    @Test
+    public void thumbnailLargerThanReservationIsRejected() throws IOException {
+        ExifWriter exif = exif();
+        File file = write(exif, null);
+        byte[] before = Files.readAllBytes(file.toPath());
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            exif.writeThumbnail(out, new byte[THUMBNAIL_CAPACITY + 1]);
+            fail("Wrote a thumbnail beyond its reservation");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertArrayEquals(before, Files.readAllBytes(file.toPath()));
+    }
+
+    private static ExifWriter exif() {
+        ExifWriter exif = new ExifWriter();
+        exif.setAscii(ExifWriter.TAG_MAKE, "Camera");
+        exif.setAscii(ExifWriter.TAG_SOFTWARE, "DNG Processor");
+        exif.setShort(ExifWriter.TAG_ORIENTATION, 6);
+        exif.setRational(ExifWriter.TAG_EXPOSURE_TIME, new Rational(1, 125));
+        exif.reserveThumbnail(THUMBNAIL_CAPACITY);
+        return exif;
+    }
+
+    /**
+     * Encodes a test image with the segment, and feeds the rows to the thumbnail as well.
+     */
+    private File write(ExifWriter exif, ThumbnailSink thumbnail) throws IOException {
+        File file = mFolder.newFile();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            RowSink encoder = new JpegEncoder(out, WIDTH, HEIGHT, 90, exif);
+            RowSink sink = thumbnail == null ? encoder : new TeeSink(encoder, thumbnail);
+            sink.onRows(JpegEncoderTest.image(WIDTH, HEIGHT), 0, HEIGHT);
+            sink.finish();
+        }
+        return file;
+    }
+
+    private static ByteBuffer tiff(byte[] file) {
+        assertEquals(0xE1, file[3] & 0xFF);
+        assertArrayEquals("Exif\0\0".getBytes(StandardCharsets.US_ASCII),
+                Arrays.copyOfRange(file, 6, TIFF_FILE_OFFSET));
+        ByteBuffer tiff = ByteBuffer.wrap(Arrays.copyOfRange(file, TIFF_FILE_OFFSET,
+                file.length));
+        assertEquals('M', tiff.get(0));
+        assertEquals(42, tiff.getShort(2));
+        return tiff;
+    }
+
+    /**
+     * @return Raw value field of every entry by tag, and the position of the link to the next
+     *         directory as tag -1.
+     */
+    private static Map<Integer, Integer> readIfd(ByteBuffer tiff, int offset) {
+        Map<Integer, Integer> ifd = new HashMap<>();
+        int count = tiff.getShort(offset);
+        int previous = -1;
+        for (int i = 0; i < count; i++) {
+            int entry = offset + 2 + i * 12;
+            int tag = tiff.getShort(entry) & 0xFFFF;
+            assertTrue("Tags are not sorted", tag > previous);
+            previous = tag;
+            ifd.put(tag, tiff.getInt(entry + 8));
+        }
+        ifd.put(-1, offset + 2 + count * 12);
+        return ifd;
+    }
+
+    private static String readAscii(ByteBuffer tiff, Map<Integer, Integer> ifd, int tag) {
+        byte[] text = new byte[32];
+        tiff.position(ifd.get(tag));
+        tiff.get(text);
+        String value = new String(text, StandardCharsets.US_ASCII);
+        return value.substring(0, value.indexOf('\0'));
+    }
+}
@@ -0,0 +1,126 @@
+package amirz.dngprocessor.jpeg;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JpegEncoderTest {
+    private static final int QUALITY = 95;
+
+    // Two threads buffer four bands, so tall images reuse every band several times
+    private static final ForkJoinPool EXECUTOR = new ForkJoinPool(2);
+
+    @AfterClass
+    public static void shutdown() {
+        EXECUTOR.shutdown();
+    }
+
+    @Test
+    public void decodedImageMatchesInput() throws IOException {
+        int[][] sizes = { { 1, 1 }, { 17, 9 }, { 37, 23 }, { 100, 75 }, { 129, 131 } };
+        for (int[] size : sizes) {
+            int width = size[0];
+            int height = size[1];
+            int[] pixels = image(width, height);
+
+            BufferedImage decoded = decode(encode(pixels, width, height, height));
+            assertEquals(width, decoded.getWidth());
+            assertEquals(height, decoded.getHeight());
+
+            // Small images have steep gradients, which lose more to the chroma subsampling
+            double psnr = psnr(pixels, decoded);
+            assertTrue("PSNR " + psnr + " at " + width + "x" + height, psnr > 34.0);
+        }
+    }
+
+    @Test
+    public void rowChunksAcrossBandsGiveSameFile() throws IOException {
+        int width = 45;
+        int height = 150;
+        int[] pixels = image(width, height);
+
+        byte[] whole = encode(pixels, width, height, height);
+        for (int chunk : new int[] { 1, 7, 16, 23, 40 }) {
+            assertArrayEquals("Chunks of " + chunk + " rows", whole,
+                    encode(pixels, width, height, chunk));
+        }
+    }
+
+    @Test
+    public void finishChecksRowCount() {
+        int width = 20;
+        int height = 40;
+        int[] pixels = image(width, height);
+
+        JpegEncoder encoder = new JpegEncoder(new ByteArrayOutputStream(), width, height,
+                QUALITY, null, EXECUTOR);
+        encoder.onRows(pixels, 0, height - 3);
+        try {
+            encoder.finish();
+            fail("Encoded an image with missing rows");
+        } catch (IllegalStateException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("37 of 40"));
+        }
+    }
+
+    /**
+     * Smooth gradients with some detail, in the byte order of an RGBA readback.
+     */
+    static int[] image(int width, int height) {
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = 255 * x / Math.max(width - 1, 1);
+                int g = 255 * y / Math.max(height - 1, 1);
+                int b = (int) (128 + 60 * Math.sin(x * 0.3) * Math.cos(y * 0.2));
+                pixels[y * width + x] = 0xFF000000 | b << 16 | g << 8 | r;
+            }
+        }
+        return pixels;
+    }
+
+    private static byte[] encode(int[] pixels, int width, int height, int chunk) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JpegEncoder encoder = new JpegEncoder(out, width, height, QUALITY, null, EXECUTOR);
+        for (int row = 0; row < height; row += chunk) {
+            encoder.onRows(pixels, row * width, Math.min(chunk, height - row));
+        }
+        encoder.finish();
+        return out.toByteArray();
+    }
+
+    static BufferedImage decode(byte[] jpeg) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+        assertNotNull("Cannot decode JPEG", image);
+        return image;
+    }
+
+    private static double psnr(int[] pixels, BufferedImage decoded) {
+        int width = decoded.getWidth();
+        double sumSquares = 0;
+        for (int i = 0; i < pixels.length; i++) {
+            int expected = pixels[i];
+            int actual = decoded.getRGB(i % width, i / width);
+            for (int shift = 0; shift < 24; shift += 8) {
+                // The input has red in the lowest byte, the decoded ARGB has it in the third
+                int diff = ((expected >> shift) & 0xFF) - ((actual >> (16 - shift)) & 0xFF);
+                sumSquares += diff * diff;
+            }
+        }
+        double mse = sumSquares / (pixels.length * 3);
+        return mse == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10(255 * 255 / mse);
+    }
+}
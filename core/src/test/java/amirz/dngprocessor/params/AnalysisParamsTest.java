@@ -0,0 +1,45 @@
+package amirz.dngprocessor.params;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class AnalysisParamsTest {
+    private static final float[] STRETCH = { 0.01f, 0.99f };
+
+    @Test
+    public void stripsCombineToWholeFrame() {
+        // A dark top and a bright bottom, which differ a lot when analyzed by themselves
+        int rows = 90;
+        int columns = 40;
+        Random random = new Random(1);
+        float[] frame = new float[rows * columns * 4];
+        for (int i = 0; i < rows * columns; i++) {
+            float brightness = i < rows * columns / 3 ? 0.1f : 0.7f;
+            frame[4 * i] = brightness + 0.2f * random.nextFloat();
+            frame[4 * i + 1] = 0.05f * random.nextFloat();
+            frame[4 * i + 2] = 0.02f * random.nextFloat();
+            frame[4 * i + 3] = 1f;
+        }
+        AnalysisParams whole = AnalysisParams.fromSamples(frame, true, STRETCH);
+
+        // Strips of different heights, so the sigmas need their weights
+        int[] bounds = { 0, 20, 65, 90 };
+        AnalysisParams[] strips = new AnalysisParams[bounds.length - 1];
+        for (int i = 0; i < strips.length; i++) {
+            strips[i] = AnalysisParams.fromSamples(Arrays.copyOfRange(frame,
+                    4 * columns * bounds[i], 4 * columns * bounds[i + 1]), true, STRETCH);
+        }
+        AnalysisParams combined = AnalysisParams.combine(Arrays.asList(strips), true, STRETCH);
+
+        assertArrayEquals(whole.hist, combined.hist);
+        assertArrayEquals(whole.zRange, combined.zRange, 0f);
+        assertArrayEquals(whole.histCurve, combined.histCurve, 1e-6f);
+        assertEquals(whole.chromaSigma, combined.chromaSigma, 1e-6f);
+        assertEquals(whole.lumaSigma, combined.lumaSigma, 1e-6f);
+    }
+}
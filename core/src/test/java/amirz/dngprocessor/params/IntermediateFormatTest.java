@@ -0,0 +1,242 @@
+package amirz.dngprocessor.params;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import amirz.dngprocessor.color.ColorLut;
+import amirz.dngprocessor.color.Transforms;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stores a synthetic intermediate in every format the way the GL path does, and measures how
+ * far the output colour moves from the exact intermediate, in 8 bit levels.
+ */
+public class IntermediateFormatTest {
+    private static final int WIDTH = 96;
+    private static final int HEIGHT = 72;
+    private static final int PATCH = 12;
+    private static final float[] SATURATION = { 1.5f, 0.6f, 2f };
+
+    // Chromaticities of sky, skin, foliage, a red and a neutral grey
+    private static final float[][] PALETTE = {
+            { 0.22f, 0.25f }, { 0.40f, 0.37f }, { 0.32f, 0.48f }, { 0.55f, 0.33f },
+            { 0.3457f, 0.3585f }
+    };
+
+    @Test
+    public void fullKeepsOutputWithinRounding() {
+        Error error = measure(IntermediateFormat.Full);
+        assertTrue("Full " + error, error.mean < 0.1 && error.percentile99 < 0.5);
+    }
+
+    @Test
+    public void packedLosesFewLevelsInSaturatedColours() {
+        // The 5 and 6 bit mantissas of xy shift the hue, which the saturation boost amplifies.
+        // Measured at a mean of 2.3 and a 99th percentile of 5.7 levels.
+        Error error = measure(IntermediateFormat.Packed);
+        assertTrue("Packed " + error, error.mean < 3 && error.percentile99 < 8);
+    }
+
+    @Test
+    public void splitOnlyLosesAtChromaEdges() {
+        // Away from the edges the chroma is flat, so averaging it loses nothing
+        Error flat = measure(IntermediateFormat.Split, PATCH / 2 - 2);
+        assertTrue("Split inside patches " + flat, flat.mean < 0.1 && flat.percentile99 < 0.5);
+
+        // Pixels next to an edge between two saturated colours get a blend of both hues, at
+        // their own luminance. Measured at a mean of 7.5 and a 99th percentile of 101 levels.
+        Error edges = measure(IntermediateFormat.Split);
+        assertTrue("Split " + edges, edges.mean < 10 && edges.percentile99 < 120);
+    }
+
+    private static class Error {
+        double mean;
+        double percentile99;
+        double max;
+
+        @Override
+        public String toString() {
+            return String.format("mean %.3f, 99th percentile %.3f, max %.3f levels",
+                    mean, percentile99, max);
+        }
+    }
+
+    private static Error measure(IntermediateFormat format) {
+        return measure(format, 0);
+    }
+
+    /**
+     * @param margin Pixels next to the patch borders that are left out.
+     */
+    private static Error measure(IntermediateFormat format, int margin) {
+        float[][] exact = scene();
+        float[][] stored = store(format, exact);
+
+        ColorLut lut = ColorLut.get(Transforms.CUSTOM_ACR3_TONEMAP_CURVE_COEFFS,
+                Transforms.XYZtoProPhoto(), Transforms.proPhotoToSRGB(), SATURATION);
+        float[] tmp = new float[3];
+        float[] expected = new float[3];
+        float[] actual = new float[3];
+        double[] errors = new double[WIDTH * HEIGHT];
+        int count = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                if (distanceToBorder(x) < margin || distanceToBorder(y) < margin) {
+                    continue;
+                }
+                int i = y * WIDTH + x;
+                lut.apply(exact[i], tmp, expected);
+                lut.apply(stored[i], tmp, actual);
+                double error = 0;
+                for (int c = 0; c < 3; c++) {
+                    error = Math.max(error, 255 * Math.abs(actual[c] - expected[c]));
+                }
+                errors[count++] = error;
+            }
+        }
+
+        errors = Arrays.copyOf(errors, count);
+        Arrays.sort(errors);
+        Error result = new Error();
+        for (double error : errors) {
+            result.mean += error / count;
+        }
+        result.percentile99 = errors[count * 99 / 100];
+        result.max = errors[count - 1];
+        return result;
+    }
+
+    private static int distanceToBorder(int position) {
+        int inPatch = position % PATCH;
+        return Math.min(inPatch, PATCH - 1 - inPatch);
+    }
+
+    /**
+     * Patches of flat chroma with hard edges between them, and luminance with gradients and
+     * fine texture, from deep shadows to highlights.
+     */
+    private static float[][] scene() {
+        Random random = new Random(1);
+        int columns = WIDTH / PATCH;
+        int[] patchColours = new int[columns * (HEIGHT / PATCH)];
+        for (int i = 0; i < patchColours.length; i++) {
+            patchColours[i] = random.nextInt(PALETTE.length);
+        }
+
+        float[][] xyY = new float[WIDTH * HEIGHT][];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                float[] xy = PALETTE[patchColours[y / PATCH * columns + x / PATCH]];
+                double base = Math.pow(0.005 + 0.9 * x / (WIDTH - 1), 1 + (double) y / HEIGHT);
+                double texture = 1 + 0.2 * Math.sin(x * 1.3) * Math.sin(y * 1.7);
+                xyY[y * WIDTH + x] = new float[] { xy[0], xy[1], (float) (base * texture) };
+            }
+        }
+        return xyY;
+    }
+
+    private static float[][] store(IntermediateFormat format, float[][] exact) {
+        float[][] stored = new float[exact.length][];
+        switch (format) {
+            case Full:
+                for (int i = 0; i < exact.length; i++) {
+                    stored[i] = new float[] {
+                            toFloat(exact[i][0], 10), toFloat(exact[i][1], 10),
+                            toFloat(exact[i][2], 10) };
+                }
+                break;
+            case Split:
+                float[][] chroma = splitChroma(exact);
+                for (int y = 0; y < HEIGHT; y++) {
+                    for (int x = 0; x < WIDTH; x++) {
+                        float[] xy = sampleChroma(chroma, x, y);
+                        stored[y * WIDTH + x] = new float[] {
+                                xy[0], xy[1], toFloat(exact[y * WIDTH + x][2], 10) };
+                    }
+                }
+                break;
+            case Packed:
+                // Y in the 11 bit red channel, x in green and y in the 10 bit blue channel
+                for (int i = 0; i < exact.length; i++) {
+                    stored[i] = new float[] {
+                            toFloat(exact[i][0], 6), toFloat(exact[i][1], 5),
+                            toFloat(exact[i][2], 6) };
+                }
+                break;
+        }
+        return stored;
+    }
+
+    /**
+     * Half resolution xy in RG16F, as the linear blit at half size averages every 2x2 block of
+     * the full resolution half float xy.
+     */
+    private static float[][] splitChroma(float[][] exact) {
+        float[][] chroma = new float[(WIDTH / 2) * (HEIGHT / 2)][];
+        for (int y = 0; y < HEIGHT / 2; y++) {
+            for (int x = 0; x < WIDTH / 2; x++) {
+                float[] xy = new float[2];
+                for (int c = 0; c < 2; c++) {
+                    float sum = 0;
+                    for (int dy = 0; dy < 2; dy++) {
+                        for (int dx = 0; dx < 2; dx++) {
+                            sum += toFloat(exact[(2 * y + dy) * WIDTH + 2 * x + dx][c], 10);
+                        }
+                    }
+                    xy[c] = toFloat(sum / 4, 10);
+                }
+                chroma[y * (WIDTH / 2) + x] = xy;
+            }
+        }
+        return chroma;
+    }
+
+    /**
+     * Bilinear sample at the center of a full resolution pixel, with clamping at the edges, as
+     * loadIntermediate of stage3_fs.glsl reads the chroma.
+     */
+    private static float[] sampleChroma(float[][] chroma, int x, int y) {
+        int w = WIDTH / 2;
+        int h = HEIGHT / 2;
+        float u = (x + 0.5f) / 2 - 0.5f;
+        float v = (y + 0.5f) / 2 - 0.5f;
+        int x0 = (int) Math.floor(u);
+        int y0 = (int) Math.floor(v);
+        float fx = u - x0;
+        float fy = v - y0;
+
+        float[] xy = new float[2];
+        for (int c = 0; c < 2; c++) {
+            float top = lerp(texel(chroma, w, h, x0, y0)[c], texel(chroma, w, h, x0 + 1, y0)[c],
+                    fx);
+            float bottom = lerp(texel(chroma, w, h, x0, y0 + 1)[c],
+                    texel(chroma, w, h, x0 + 1, y0 + 1)[c], fx);
+            xy[c] = lerp(top, bottom, fy);
+        }
+        return xy;
+    }
+
+    private static float[] texel(float[][] chroma, int w, int h, int x, int y) {
+        return chroma[Math.max(0, Math.min(y, h - 1)) * w + Math.max(0, Math.min(x, w - 1))];
+    }
+
+    private static float lerp(float a, float b, float f) {
+        return a + (b - a) * f;
+    }
+
+    /**
+     * Rounds a non-negative value to the nearest float with the given mantissa bits and the five
+     * exponent bits that half floats and the packed 11 and 10 bit floats all use.
+     */
+    static float toFloat(float value, int mantissaBits) {
+        if (value <= 0) {
+            return 0;
+        }
+        int exponent = Math.max(Math.getExponent(value), -14);
+        double step = Math.scalb(1.0, exponent - mantissaBits);
+        return (float) (Math.round(value / step) * step);
+    }
+}